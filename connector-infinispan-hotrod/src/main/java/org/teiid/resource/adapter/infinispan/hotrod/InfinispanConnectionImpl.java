@@ -32,7 +32,7 @@ import org.infinispan.protostream.BaseMarshaller;
 import org.infinispan.protostream.SerializationContext;
 import org.infinispan.protostream.SerializationContext.MarshallerProvider;
 import org.teiid.infinispan.api.InfinispanConnection;
-import org.teiid.infinispan.api.InfinispanDocument;
+import org.teiid.infinispan.api.NearCache;
 import org.teiid.infinispan.api.ProtobufResource;
 import org.teiid.resource.adapter.infinispan.hotrod.InfinispanManagedConnectionFactory.InfinispanConnectionFactory;
 import org.teiid.resource.spi.BasicConnection;
@@ -85,15 +85,20 @@ public class InfinispanConnectionImpl extends BasicConnection implements Infinis
     }
 
     @Override
-    public void registerMarshaller(BaseMarshaller<InfinispanDocument> marshaller) throws TranslatorException {
+    public void registerMarshaller(BaseMarshaller<?> marshaller) throws TranslatorException {
         ThreadAwareMarshallerProvider.setMarsheller(marshaller);
     }
 
     @Override
-    public void unRegisterMarshaller(BaseMarshaller<InfinispanDocument> marshaller) throws TranslatorException {
+    public void unRegisterMarshaller(BaseMarshaller<?> marshaller) throws TranslatorException {
         ThreadAwareMarshallerProvider.setMarsheller(null);
     }
 
+    @Override
+    public NearCache getNearCache(String cacheName) throws TranslatorException {
+        return this.icf.getNearCache(cacheName);
+    }
+
     /**
      * The reason for thread aware marshaller is due to fact the serialization context is JVM wide, so if some other
      * connection is also trying to register a marshaller for same object, they should not conflict.
@@ -123,7 +128,7 @@ public class InfinispanConnectionImpl extends BasicConnection implements Infinis
         @Override
         public BaseMarshaller<?> getMarshaller(Class<?> javaClass) {
             BaseMarshaller<?> m = context.get();
-            if (m != null && javaClass.isAssignableFrom(InfinispanDocument.class)) {
+            if (m != null && javaClass.isAssignableFrom(m.getJavaClass())) {
                 return context.get();
             }
             return null;
@@ -21,8 +21,15 @@
  */
 package org.teiid.resource.adapter.infinispan.hotrod;
 
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.resource.ResourceException;
 
 import org.infinispan.client.hotrod.RemoteCache;
@@ -33,7 +40,10 @@ import org.infinispan.protostream.FileDescriptorSource;
 import org.infinispan.protostream.SerializationContext;
 import org.infinispan.query.remote.client.ProtobufMetadataManagerConstants;
 import org.teiid.core.BundleUtil;
+import org.teiid.infinispan.api.NearCache;
 import org.teiid.infinispan.api.ProtobufResource;
+import org.teiid.logging.LogConstants;
+import org.teiid.logging.LogManager;
 import org.teiid.resource.spi.BasicConnectionFactory;
 import org.teiid.resource.spi.BasicManagedConnectionFactory;
 import org.teiid.translator.TranslatorException;
@@ -45,6 +55,8 @@ public class InfinispanManagedConnectionFactory extends BasicManagedConnectionFa
 
     private String remoteServerList;
     private String cacheName;
+    private Integer nearCacheMaxEntries = 0;
+    private String nearCacheNames;
 
     public String getRemoteServerList() {
         return remoteServerList;
@@ -62,10 +74,31 @@ public class InfinispanManagedConnectionFactory extends BasicManagedConnectionFa
         this.cacheName = cacheName;
     }
 
+    public Integer getNearCacheMaxEntries() {
+        return nearCacheMaxEntries;
+    }
+
+    public void setNearCacheMaxEntries(Integer nearCacheMaxEntries) {
+        this.nearCacheMaxEntries = nearCacheMaxEntries;
+    }
+
+    public String getNearCacheNames() {
+        return nearCacheNames;
+    }
+
+    public void setNearCacheNames(String nearCacheNames) {
+        this.nearCacheNames = nearCacheNames;
+    }
+
     @Override
     public BasicConnectionFactory<InfinispanConnectionImpl> createConnectionFactory()
             throws ResourceException {
-        return new InfinispanConnectionFactory();
+        InfinispanConnectionFactory factory = new InfinispanConnectionFactory();
+        if (getResourceAdapter() instanceof InfinispanResourceAdapter) {
+            // cleaned up when the adapter stops
+            ((InfinispanResourceAdapter)getResourceAdapter()).addConnectionFactory(factory);
+        }
+        return factory;
     }
 
     class InfinispanConnectionFactory extends BasicConnectionFactory<InfinispanConnectionImpl> {
@@ -73,8 +106,16 @@ public class InfinispanManagedConnectionFactory extends BasicManagedConnectionFa
         private RemoteCacheManager cacheManager;
         private HashSet<String> registeredProtoFiles = new HashSet<>();
         private SerializationContext ctx;
+        private ConcurrentHashMap<String, NearCache> nearCaches = new ConcurrentHashMap<>();
+        private Set<String> nearCacheNameSet;
 
         public InfinispanConnectionFactory() throws ResourceException {
+            if (nearCacheNames != null && !nearCacheNames.trim().isEmpty()) {
+                this.nearCacheNameSet = new HashSet<>();
+                for (String name : Arrays.asList(nearCacheNames.split(","))) { //$NON-NLS-1$
+                    this.nearCacheNameSet.add(name.trim());
+                }
+            }
             try {
                 ConfigurationBuilder builder = new ConfigurationBuilder();
                 builder.addServers(remoteServerList);
@@ -120,6 +161,72 @@ public class InfinispanManagedConnectionFactory extends BasicManagedConnectionFa
             }
         }
 
+        /**
+         * @return the near cache shared by the connections, null if not configured for the cache
+         */
+        public NearCache getNearCache(String name) {
+            if (nearCacheMaxEntries == null || nearCacheMaxEntries <= 0
+                    || (this.nearCacheNameSet != null && !this.nearCacheNameSet.contains(name))) {
+                return null;
+            }
+            NearCache nearCache = this.nearCaches.get(name);
+            if (nearCache == null) {
+                synchronized (this.nearCaches) {
+                    nearCache = this.nearCaches.get(name);
+                    if (nearCache == null) {
+                        nearCache = new NearCache(this.cacheManager.getCache(name), nearCacheMaxEntries);
+                        this.nearCaches.put(name, nearCache);
+                        registerStatistics(nearCache);
+                    }
+                }
+            }
+            return nearCache;
+        }
+
+        private ObjectName getStatisticsName(NearCache nearCache) throws JMException {
+            return new ObjectName("org.teiid.infinispan:type=NearCache,servers=" //$NON-NLS-1$
+                    + ObjectName.quote(String.valueOf(remoteServerList)) + ",name=" //$NON-NLS-1$
+                    + ObjectName.quote(nearCache.getCacheName()));
+        }
+
+        /**
+         * Expose the hits and misses of the near cache through JMX, in place of the statistics of a connection
+         * factory that was not cleaned up
+         */
+        private void registerStatistics(NearCache nearCache) {
+            try {
+                ObjectName name = getStatisticsName(nearCache);
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(nearCache, name);
+            } catch (JMException e) {
+                LogManager.logDetail(LogConstants.CTX_CONNECTOR, e, "Near cache statistics not registered"); //$NON-NLS-1$
+            }
+        }
+
+        /**
+         * Unregister the statistics and the listeners of the near caches, and stop the cache manager
+         */
+        void cleanUp() {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (NearCache nearCache : this.nearCaches.values()) {
+                try {
+                    ObjectName name = getStatisticsName(nearCache);
+                    if (server.isRegistered(name)) {
+                        server.unregisterMBean(name);
+                    }
+                } catch (JMException e) {
+                    LogManager.logDetail(LogConstants.CTX_CONNECTOR, e,
+                            "Near cache statistics not unregistered"); //$NON-NLS-1$
+                }
+                nearCache.close();
+            }
+            this.nearCaches.clear();
+            this.cacheManager.stop();
+        }
+
         @Override
         public InfinispanConnectionImpl getConnection() throws ResourceException {
             return new InfinispanConnectionImpl(this.cacheManager, cacheName,this.ctx, this);
@@ -21,9 +21,29 @@
  */
 package org.teiid.resource.adapter.infinispan.hotrod;
 
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.teiid.resource.adapter.infinispan.hotrod.InfinispanManagedConnectionFactory.InfinispanConnectionFactory;
 import org.teiid.resource.spi.BasicResourceAdapter;
 
 public class InfinispanResourceAdapter extends BasicResourceAdapter {
+    private Set<InfinispanConnectionFactory> connectionFactories = Collections
+            .newSetFromMap(new ConcurrentHashMap<InfinispanConnectionFactory, Boolean>());
+
+    void addConnectionFactory(InfinispanConnectionFactory connectionFactory) {
+        this.connectionFactories.add(connectionFactory);
+    }
+
+    @Override
+    public void stop() {
+        for (InfinispanConnectionFactory connectionFactory : this.connectionFactories) {
+            connectionFactory.cleanUp();
+        }
+        this.connectionFactories.clear();
+        super.stop();
+    }
 
     @Override
     public int hashCode() {
@@ -34,7 +34,12 @@ public interface InfinispanConnection {
 
     void registerProtobufFile(ProtobufResource protobuf) throws TranslatorException;
 
-    void registerMarshaller(BaseMarshaller<InfinispanDocument> marshller) throws TranslatorException;
+    void registerMarshaller(BaseMarshaller<?> marshller) throws TranslatorException;
 
-    void unRegisterMarshaller(BaseMarshaller<InfinispanDocument> marshller) throws TranslatorException;
+    void unRegisterMarshaller(BaseMarshaller<?> marshller) throws TranslatorException;
+
+    /**
+     * @return local copy of the entries read from the given cache, null if not configured for the cache
+     */
+    NearCache getNearCache(String cacheName) throws TranslatorException;
 }
@@ -0,0 +1,166 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.infinispan.api;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.infinispan.client.hotrod.RemoteCache;
+import org.infinispan.client.hotrod.annotation.ClientCacheEntryExpired;
+import org.infinispan.client.hotrod.annotation.ClientCacheEntryModified;
+import org.infinispan.client.hotrod.annotation.ClientCacheEntryRemoved;
+import org.infinispan.client.hotrod.annotation.ClientCacheFailover;
+import org.infinispan.client.hotrod.annotation.ClientListener;
+import org.infinispan.client.hotrod.event.ClientCacheEntryExpiredEvent;
+import org.infinispan.client.hotrod.event.ClientCacheEntryModifiedEvent;
+import org.infinispan.client.hotrod.event.ClientCacheEntryRemovedEvent;
+import org.infinispan.client.hotrod.event.ClientCacheFailoverEvent;
+
+/**
+ * Local copy of the most recently read entries of a remote cache, bounded by the number of entries. An entry is
+ * dropped as soon as the server reports it changed; all of them when the events may have been missed.
+ */
+public class NearCache implements NearCacheMXBean {
+    private String cacheName;
+    private RemoteCache<?, ?> cache;
+    private Invalidator invalidator = new Invalidator();
+    private LinkedHashMap<Object, Object> entries;
+    private long version;
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+
+    @ClientListener
+    public class Invalidator {
+        @ClientCacheEntryModified
+        public void modified(ClientCacheEntryModifiedEvent<Object> event) {
+            invalidate(event.getKey());
+        }
+
+        @ClientCacheEntryRemoved
+        public void removed(ClientCacheEntryRemovedEvent<Object> event) {
+            invalidate(event.getKey());
+        }
+
+        @ClientCacheEntryExpired
+        public void expired(ClientCacheEntryExpiredEvent<Object> event) {
+            invalidate(event.getKey());
+        }
+
+        @ClientCacheFailover
+        public void failover(ClientCacheFailoverEvent event) {
+            clear();
+        }
+    }
+
+    public NearCache(RemoteCache<?, ?> cache, final int maxEntries) {
+        this.cache = cache;
+        this.cacheName = cache.getName();
+        this.entries = new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+            private static final long serialVersionUID = 3473150471530862514L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        cache.addClientListener(this.invalidator);
+    }
+
+    /**
+     * Stop listening to the changes of the cache, and drop the entries
+     */
+    public void close() {
+        this.cache.removeClientListener(this.invalidator);
+        clear();
+    }
+
+    @Override
+    public String getCacheName() {
+        return this.cacheName;
+    }
+
+    /**
+     * @return the local value, null if the key needs to be read from the server
+     */
+    public synchronized Object get(Object key) {
+        Object value = this.entries.get(key);
+        if (value == null) {
+            this.misses.incrementAndGet();
+        } else {
+            this.hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * @return version to be given to {@link #put(Object, Object, long)}, read before reading the values from the
+     *         server
+     */
+    public synchronized long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Keep the value read from the server, unless an entry changed since the given version was read.
+     */
+    public synchronized void put(Object key, Object value, long version) {
+        if (value != null && this.version == version) {
+            this.entries.put(key, value);
+        }
+    }
+
+    public synchronized void invalidate(Object key) {
+        this.version++;
+        this.entries.remove(key);
+    }
+
+    public synchronized void clear() {
+        this.version++;
+        this.entries.clear();
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    @Override
+    public int getSize() {
+        return size();
+    }
+
+    @Override
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "NearCache " + this.cacheName + " entries=" + size() + " hits=" + getHits() //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                + " misses=" + getMisses(); //$NON-NLS-1$
+    }
+}
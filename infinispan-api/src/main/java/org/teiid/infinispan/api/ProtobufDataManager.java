@@ -27,6 +27,7 @@ import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.sql.Blob;
 import java.sql.Clob;
 import java.sql.Date;
@@ -38,20 +39,39 @@ import java.util.HashMap;
 
 import org.infinispan.protostream.descriptors.Type;
 import org.teiid.core.TeiidRuntimeException;
+import org.teiid.core.types.BinaryType;
 import org.teiid.core.types.BlobImpl;
 import org.teiid.core.types.ClobImpl;
 import org.teiid.core.types.DataTypeManager;
 import org.teiid.core.types.InputStreamFactory;
 import org.teiid.core.types.SQLXMLImpl;
+import org.teiid.core.types.Transform;
 import org.teiid.core.types.TransformationException;
 import org.teiid.core.types.basic.ObjectToAnyTransform;
 import org.teiid.core.util.ObjectConverterUtil;
+import org.teiid.core.util.ReaderInputStream;
 
 import com.squareup.protoparser.DataType;
 import com.squareup.protoparser.DataType.ScalarType;
 
 public class ProtobufDataManager {
 
+    /**
+     * Converts a single non-null value of a field, resolved once for the field's Teiid runtime type and the java type
+     * protostream uses for its protobuf type. See {@link #getRuntimeConverter(Class, Class)} and
+     * {@link #getInfinispanConverter(Class, Class)}
+     */
+    public interface Converter {
+        Object convert(Object value) throws IOException;
+    }
+
+    public static final Converter IDENTITY = new Converter() {
+        @Override
+        public Object convert(Object value) {
+            return value;
+        }
+    };
+
     private static HashMap<ScalarType, String> protoTypes = new HashMap<ScalarType, String>();
     private static HashMap<String, ScalarType> teiidTypes = new HashMap<String, ScalarType>();
 
@@ -195,9 +215,12 @@ public class ProtobufDataManager {
             return expectedType.cast(java.nio.ByteBuffer.allocate(Long.SIZE / 8).putLong(l).array());
         } else if (contents instanceof String && expectedType.isAssignableFrom(byte[].class)) {
             return expectedType.cast(((String)contents).getBytes("UTF-8"));
+        } else if (contents instanceof BinaryType && expectedType.isAssignableFrom(byte[].class)) {
+            return expectedType.cast(((BinaryType)contents).getBytesDirect());
         } else if (contents instanceof Clob && expectedType.isAssignableFrom(byte[].class)) {
             try {
-                return expectedType.cast(ObjectConverterUtil.convertToByteArray(((Clob) contents).getAsciiStream()));
+                return expectedType.cast(ObjectConverterUtil.convertToByteArray(
+                        new ReaderInputStream(((Clob) contents).getCharacterStream(), StandardCharsets.UTF_8)));
             } catch (SQLException e) {
                 throw new IOException(e);
             }
@@ -227,6 +250,211 @@ public class ProtobufDataManager {
         throw new IOException("unknown type to write:" + contents.getClass());
     }
 
+    /**
+     * Resolve the converter from the value read by protostream to the Teiid runtime type, the same conversions as
+     * {@link #convertToRuntime(Class, Object)} without the type checks on every value.
+     *
+     * @param expectedType Teiid runtime type, component type in case of arrays
+     * @param infinispanType type of the values read from protostream
+     */
+    public static Converter getRuntimeConverter(final Class<?> expectedType, Class<?> infinispanType) {
+        if (expectedType.isAssignableFrom(infinispanType) || infinispanType == String.class) {
+            return IDENTITY;
+        }
+
+        if (infinispanType == Long.class) {
+            if (expectedType.isAssignableFrom(Date.class)) {
+                return new Converter() {
+                    @Override
+                    public Object convert(Object value) {
+                        return new Date((Long)value);
+                    }
+                };
+            } else if (expectedType.isAssignableFrom(Timestamp.class)) {
+                return new Converter() {
+                    @Override
+                    public Object convert(Object value) {
+                        return new Timestamp((Long)value);
+                    }
+                };
+            } else if (expectedType.isAssignableFrom(Time.class)) {
+                return new Converter() {
+                    @Override
+                    public Object convert(Object value) {
+                        return new Time((Long)value);
+                    }
+                };
+            }
+        } else if (infinispanType == byte[].class) {
+            if (expectedType.isAssignableFrom(String.class)) {
+                return new Converter() {
+                    @Override
+                    public Object convert(Object value) throws IOException {
+                        return new String((byte[])value, "UTF-8");
+                    }
+                };
+            } else if (expectedType.isAssignableFrom(BigInteger.class)) {
+                return new Converter() {
+                    @Override
+                    public Object convert(Object value) {
+                        return new BigInteger((byte[])value);
+                    }
+                };
+            } else if (expectedType.isAssignableFrom(BigDecimal.class)) {
+                return new Converter() {
+                    @Override
+                    public Object convert(Object value) {
+                        return new BigDecimal(new BigInteger((byte[])value));
+                    }
+                };
+            } else if (expectedType.isAssignableFrom(Clob.class)
+                    || expectedType.isAssignableFrom(Blob.class)
+                    || expectedType.isAssignableFrom(SQLXML.class)) {
+                return new Converter() {
+                    @Override
+                    public Object convert(Object value) throws IOException {
+                        return convertToRuntime(expectedType, value);
+                    }
+                };
+            }
+            return IDENTITY;
+        }
+
+        final Transform transform = DataTypeManager.getTransform(infinispanType, expectedType);
+        if (transform != null) {
+            return new Converter() {
+                @Override
+                public Object convert(Object value) throws IOException {
+                    try {
+                        return transform.transform(value, expectedType);
+                    } catch (TransformationException e) {
+                        throw new IOException(e);
+                    }
+                }
+            };
+        }
+        return new Converter() {
+            @Override
+            public Object convert(Object value) throws IOException {
+                return convertToRuntime(expectedType, value);
+            }
+        };
+    }
+
+    /**
+     * Resolve the converter from the Teiid runtime type to the type protostream expects to write, the same
+     * conversions as {@link #convertToInfinispan(Class, Object)} without the type checks on every value. When the
+     * value is not of the given runtime type, the converter falls back to {@link #convertToInfinispan(Class, Object)}
+     *
+     * @param infinispanType type of the values written by protostream
+     * @param runtimeType Teiid runtime type, component type in case of arrays
+     */
+    public static Converter getInfinispanConverter(final Class<?> infinispanType, final Class<?> runtimeType) {
+        if (infinispanType.isAssignableFrom(runtimeType)) {
+            return new Converter() {
+                @Override
+                public Object convert(Object value) throws IOException {
+                    if (infinispanType.isInstance(value)) {
+                        return value;
+                    }
+                    return convertToInfinispan(infinispanType, value);
+                }
+            };
+        }
+
+        Converter converter = null;
+        if (java.util.Date.class.isAssignableFrom(runtimeType)) {
+            if (infinispanType == Long.class) {
+                converter = new Converter() {
+                    @Override
+                    public Object convert(Object value) {
+                        return ((java.util.Date)value).getTime();
+                    }
+                };
+            } else if (infinispanType == byte[].class) {
+                converter = new Converter() {
+                    @Override
+                    public Object convert(Object value) {
+                        long l = ((java.util.Date)value).getTime();
+                        return java.nio.ByteBuffer.allocate(Long.SIZE / 8).putLong(l).array();
+                    }
+                };
+            }
+        } else if (runtimeType == String.class && infinispanType == byte[].class) {
+            converter = new Converter() {
+                @Override
+                public Object convert(Object value) throws IOException {
+                    return ((String)value).getBytes("UTF-8");
+                }
+            };
+        } else if (Number.class.isAssignableFrom(runtimeType) && runtimeType != BigInteger.class
+                && runtimeType != BigDecimal.class) {
+            // widening of the short, byte etc. that are written as the protobuf integer types
+            if (infinispanType == Integer.class) {
+                converter = new Converter() {
+                    @Override
+                    public Object convert(Object value) {
+                        return ((Number)value).intValue();
+                    }
+                };
+            } else if (infinispanType == Long.class) {
+                converter = new Converter() {
+                    @Override
+                    public Object convert(Object value) {
+                        return ((Number)value).longValue();
+                    }
+                };
+            }
+        }
+
+        if (converter == null) {
+            // lobs, big numbers and the types that need the instance checks
+            return new Converter() {
+                @Override
+                public Object convert(Object value) throws IOException {
+                    return convertToInfinispan(infinispanType, value);
+                }
+            };
+        }
+
+        final Converter resolved = converter;
+        return new Converter() {
+            @Override
+            public Object convert(Object value) throws IOException {
+                if (value.getClass() != runtimeType && !runtimeType.isInstance(value)) {
+                    return convertToInfinispan(infinispanType, value);
+                }
+                return resolved.convert(value);
+            }
+        };
+    }
+
+    /**
+     * @return java type protostream reads and writes for the given protobuf scalar type
+     */
+    public static Class<?> getInfinispanType(Type type) {
+        switch (type) {
+        case DOUBLE:
+            return Double.class;
+        case FLOAT:
+            return Float.class;
+        case BOOL:
+            return Boolean.class;
+        case STRING:
+            return String.class;
+        case BYTES:
+            return byte[].class;
+        case INT64:
+        case UINT64:
+        case FIXED64:
+        case SFIXED64:
+        case SINT64:
+            return Long.class;
+        default:
+            return Integer.class;
+        }
+    }
+
     public static Type parseProtobufType(String name) {
         switch (name) {
         case "bool":
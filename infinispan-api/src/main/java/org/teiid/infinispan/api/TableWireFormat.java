@@ -35,6 +35,8 @@ public class TableWireFormat {
     private Column column;
     private TreeMap<Integer, TableWireFormat> nested;
     private String attributeName;
+    private ProtobufDataManager.Converter runtimeConverter;
+    private ProtobufDataManager.Converter infinispanConverter;
 
     public String getAttributeName() {
         return this.attributeName;
@@ -60,6 +62,20 @@ public class TableWireFormat {
         return type;
     }
 
+    /**
+     * @return converter from the value read from protobuf to the column's runtime type; null for nested messages
+     */
+    public ProtobufDataManager.Converter getRuntimeConverter() {
+        return this.runtimeConverter;
+    }
+
+    /**
+     * @return converter from the column's runtime type to the value written to protobuf; null for nested messages
+     */
+    public ProtobufDataManager.Converter getInfinispanConverter() {
+        return this.infinispanConverter;
+    }
+
     public boolean isArrayType() {
         return (column.getJavaType().getComponentType() != null);
     }
@@ -72,6 +88,11 @@ public class TableWireFormat {
         this.type = protobufType;
         this.column = column;
         this.attributeName = name;
+
+        Class<?> runtimeType = columnType.isArray() ? columnType.getComponentType() : columnType;
+        Class<?> infinispanType = ProtobufDataManager.getInfinispanType(protobufType);
+        this.runtimeConverter = ProtobufDataManager.getRuntimeConverter(runtimeType, infinispanType);
+        this.infinispanConverter = ProtobufDataManager.getInfinispanConverter(infinispanType, runtimeType);
     }
 
     public TableWireFormat(String name, int parentTag) {
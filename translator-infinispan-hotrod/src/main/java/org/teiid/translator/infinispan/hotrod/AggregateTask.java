@@ -0,0 +1,254 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.translator.infinispan.hotrod;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.teiid.core.types.DataTypeManager;
+import org.teiid.core.types.TransformationException;
+import org.teiid.language.AggregateFunction;
+import org.teiid.language.ColumnReference;
+import org.teiid.language.DerivedColumn;
+import org.teiid.language.Expression;
+import org.teiid.language.NamedTable;
+import org.teiid.language.Select;
+import org.teiid.metadata.Column;
+import org.teiid.metadata.Table;
+import org.teiid.translator.TranslatorException;
+
+/**
+ * Aggregates over the columns of a merged child table, computed by a task registered on the server. Each node
+ * aggregates the child documents of its own parent documents, and only these partial aggregates are returned and
+ * merged here.
+ * <p>
+ * The task is given the parameters:
+ * <ul>
+ * <li>{@value #QUERY} - the Ickle query of the parent documents, with its named parameters as the other task
+ * parameters</li>
+ * <li>{@value #AGGREGATES} - comma separated SUM, COUNT, MIN or MAX of a field path of the documents, e.g.
+ * <code>SUM(o.lines.amount)</code>; COUNT of the child message path counts the child documents</li>
+ * </ul>
+ * and returns a list with the value of each aggregate, or a list of such lists, one for each node. AVG is computed
+ * from the SUM and the COUNT.
+ */
+class AggregateTask {
+    static final String QUERY = "query"; //$NON-NLS-1$
+    static final String AGGREGATES = "aggregates"; //$NON-NLS-1$
+
+    private List<String> partials = new ArrayList<>();
+    private List<AggregateFunction> functions = new ArrayList<>();
+    // positions in the partials of the aggregate of each selected column
+    private List<int[]> positions = new ArrayList<>();
+
+    /**
+     * @return null if the select is not only plain aggregates of a single merged child table, with criteria only on
+     *         the parent document
+     */
+    static AggregateTask getAggregateTask(Select select, IckleConvertionVisitor visitor) {
+        if (select.getGroupBy() != null || select.getHaving() != null || select.getOrderBy() != null
+                || select.getLimit() != null || select.isDistinct() || select.getFrom().size() != 1
+                || !(select.getFrom().get(0) instanceof NamedTable) || !visitor.isNestedOperation()) {
+            return null;
+        }
+        if (select.getWhere() != null
+                && InfinispanQueryExecution.getChildCondition(select.getWhere(), visitor.getParentTable()) != null) {
+            return null;
+        }
+        Table childTable = visitor.getQueryTable();
+        String documents = visitor.getParentNamedTable().getCorrelationName() + '.'
+                + ProtobufMetadataProcessor.getParentColumnName(childTable);
+
+        AggregateTask task = new AggregateTask();
+        for (DerivedColumn column : select.getDerivedColumns()) {
+            if (!(column.getExpression() instanceof AggregateFunction)) {
+                return null;
+            }
+            AggregateFunction function = (AggregateFunction)column.getExpression();
+            if (function.isDistinct() || function.getCondition() != null || function.getParameters().size() > 1) {
+                return null;
+            }
+            String path = documents;
+            if (!function.getParameters().isEmpty()) {
+                Expression param = function.getParameters().get(0);
+                if (!(param instanceof ColumnReference)) {
+                    return null;
+                }
+                Column arg = ((ColumnReference)param).getMetadataObject();
+                if (arg == null || !childTable.equals(arg.getParent()) || ProtobufMetadataProcessor.isPseudo(arg)) {
+                    return null;
+                }
+                path = visitor.getQualifiedName(arg);
+            }
+            String name = function.getName().toUpperCase();
+            if (name.equals(AggregateFunction.AVG)) {
+                task.add(function, task.addPartial(AggregateFunction.SUM, path),
+                        task.addPartial(AggregateFunction.COUNT, path));
+            } else if (name.equals(AggregateFunction.SUM) || name.equals(AggregateFunction.COUNT)
+                    || name.equals(AggregateFunction.MIN) || name.equals(AggregateFunction.MAX)) {
+                task.add(function, task.addPartial(name, path));
+            } else {
+                return null;
+            }
+        }
+        return task;
+    }
+
+    private void add(AggregateFunction function, int... partialPositions) {
+        this.functions.add(function);
+        this.positions.add(partialPositions);
+    }
+
+    private int addPartial(String function, String path) {
+        String partial = function + '(' + path + ')';
+        int index = this.partials.indexOf(partial);
+        if (index == -1) {
+            this.partials.add(partial);
+            index = this.partials.size() - 1;
+        }
+        return index;
+    }
+
+    List<String> getPartials() {
+        return this.partials;
+    }
+
+    Map<String, Object> getParameters(IckleConvertionVisitor visitor) {
+        Map<String, Object> params = new HashMap<>(visitor.getParameters());
+        params.put(QUERY, visitor.getCountQuery());
+        StringBuilder sb = new StringBuilder();
+        for (String partial : this.partials) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(partial);
+        }
+        params.put(AGGREGATES, sb.toString());
+        return params;
+    }
+
+    /**
+     * @return the result row, from the result of the task
+     */
+    Object[] getRow(Object result) throws TranslatorException {
+        Object[] values = merge(result);
+        Object[] row = new Object[this.functions.size()];
+        for (int i = 0; i < row.length; i++) {
+            AggregateFunction function = this.functions.get(i);
+            int[] position = this.positions.get(i);
+            Object value = values[position[0]];
+            String name = function.getName().toUpperCase();
+            if (name.equals(AggregateFunction.AVG)) {
+                Object count = values[position[1]];
+                if (value == null || count == null || ((Number)count).longValue() == 0) {
+                    value = null;
+                } else {
+                    value = toBigDecimal((Number)value).divide(toBigDecimal((Number)count), MathContext.DECIMAL128);
+                }
+            } else if (name.equals(AggregateFunction.COUNT) && value == null) {
+                value = 0;
+            }
+            try {
+                row[i] = DataTypeManager.transformValue(value, function.getType());
+            } catch (TransformationException e) {
+                throw new TranslatorException(e);
+            }
+        }
+        return row;
+    }
+
+    private Object[] merge(Object result) {
+        List<?> nodes = Collections.singletonList(result);
+        List<?> list = asList(result);
+        if (list != null) {
+            for (Object value : list) {
+                if (asList(value) != null) {
+                    // the results of the nodes
+                    nodes = list;
+                    break;
+                }
+            }
+        }
+        Object[] values = new Object[this.partials.size()];
+        for (Object node : nodes) {
+            List<?> nodeValues = asList(node);
+            if (nodeValues == null) {
+                // no documents on the node
+                continue;
+            }
+            for (int i = 0; i < values.length && i < nodeValues.size(); i++) {
+                values[i] = merge(this.partials.get(i), values[i], nodeValues.get(i));
+            }
+        }
+        return values;
+    }
+
+    private static List<?> asList(Object value) {
+        if (value instanceof List) {
+            return (List<?>)value;
+        }
+        if (value instanceof Object[]) {
+            return Arrays.asList((Object[])value);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object merge(String partial, Object value, Object other) {
+        if (value == null) {
+            return other;
+        }
+        if (other == null) {
+            return value;
+        }
+        if (partial.startsWith(AggregateFunction.MIN)) {
+            return ((Comparable<Object>)value).compareTo(other) <= 0 ? value : other;
+        }
+        if (partial.startsWith(AggregateFunction.MAX)) {
+            return ((Comparable<Object>)value).compareTo(other) >= 0 ? value : other;
+        }
+        Number a = (Number)value;
+        Number b = (Number)other;
+        if (a instanceof BigDecimal || b instanceof BigDecimal || a instanceof BigInteger
+                || b instanceof BigInteger) {
+            return toBigDecimal(a).add(toBigDecimal(b));
+        }
+        if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float) {
+            return a.doubleValue() + b.doubleValue();
+        }
+        return a.longValue() + b.longValue();
+    }
+
+    private static BigDecimal toBigDecimal(Number value) {
+        if (value instanceof BigDecimal) {
+            return (BigDecimal)value;
+        }
+        return new BigDecimal(value.toString());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.translator.infinispan.hotrod;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.infinispan.client.hotrod.annotation.ClientCacheEntryCreated;
+import org.infinispan.client.hotrod.annotation.ClientCacheEntryExpired;
+import org.infinispan.client.hotrod.annotation.ClientCacheEntryModified;
+import org.infinispan.client.hotrod.annotation.ClientCacheEntryRemoved;
+import org.infinispan.client.hotrod.annotation.ClientCacheFailover;
+import org.infinispan.client.hotrod.annotation.ClientListener;
+import org.infinispan.client.hotrod.event.ClientCacheEntryCreatedEvent;
+import org.infinispan.client.hotrod.event.ClientCacheEntryExpiredEvent;
+import org.infinispan.client.hotrod.event.ClientCacheEntryModifiedEvent;
+import org.infinispan.client.hotrod.event.ClientCacheEntryRemovedEvent;
+import org.infinispan.client.hotrod.event.ClientCacheFailoverEvent;
+
+/**
+ * Keys of the entries of a cache that changed, with the last operation on each key. Each change is numbered, the
+ * changes are kept until the reader acknowledges the sequence number of the last change it applied, so a reader
+ * that fails reads the same changes again. When the events may have been missed, or there are too many changes,
+ * the table needs to be reloaded instead.
+ */
+@ClientListener
+public class ChangeFeed {
+    static final String INSERT = "INSERT"; //$NON-NLS-1$
+    static final String UPDATE = "UPDATE"; //$NON-NLS-1$
+    static final String DELETE = "DELETE"; //$NON-NLS-1$
+    static final String RELOAD = "RELOAD"; //$NON-NLS-1$
+
+    private static class Change {
+        String operation;
+        long sequence;
+    }
+
+    private int maxChanges;
+    // in the order of the sequence
+    private LinkedHashMap<Object, Change> changes = new LinkedHashMap<>();
+    private long sequence;
+    // nothing was observed before the listener was registered
+    private long reloadSequence = ++this.sequence;
+    private volatile long lastRead = System.currentTimeMillis();
+
+    ChangeFeed(int maxChanges) {
+        this.maxChanges = maxChanges;
+    }
+
+    @ClientCacheEntryCreated
+    public void created(ClientCacheEntryCreatedEvent<Object> event) {
+        add(event.getKey(), INSERT);
+    }
+
+    @ClientCacheEntryModified
+    public void modified(ClientCacheEntryModifiedEvent<Object> event) {
+        add(event.getKey(), UPDATE);
+    }
+
+    @ClientCacheEntryRemoved
+    public void removed(ClientCacheEntryRemovedEvent<Object> event) {
+        add(event.getKey(), DELETE);
+    }
+
+    @ClientCacheEntryExpired
+    public void expired(ClientCacheEntryExpiredEvent<Object> event) {
+        add(event.getKey(), DELETE);
+    }
+
+    @ClientCacheFailover
+    public void failover(ClientCacheFailoverEvent event) {
+        reload();
+    }
+
+    private synchronized void reload() {
+        this.changes.clear();
+        this.reloadSequence = ++this.sequence;
+    }
+
+    synchronized void add(Object key, String operation) {
+        Change previous = this.changes.remove(key);
+        if (previous != null) {
+            // the net change since the last acknowledged one
+            if (INSERT.equals(previous.operation) && UPDATE.equals(operation)) {
+                operation = INSERT;
+            } else if (DELETE.equals(previous.operation) && INSERT.equals(operation)) {
+                operation = UPDATE;
+            }
+        }
+        Change change = new Change();
+        change.operation = operation;
+        change.sequence = ++this.sequence;
+        this.changes.put(key, change);
+        if (this.changes.size() > this.maxChanges) {
+            reload();
+        }
+    }
+
+    /**
+     * @param acknowledged sequence of the last change the reader applied, the changes up to it are dropped; 0 if
+     *            none
+     * @return the operation, the key and the sequence of each change after the acknowledged one, in the order of
+     *         their last change; a single {@link #RELOAD} row if the changes are not known
+     */
+    synchronized List<List<?>> poll(long acknowledged) {
+        this.lastRead = System.currentTimeMillis();
+        Iterator<Change> iter = this.changes.values().iterator();
+        while (iter.hasNext() && iter.next().sequence <= acknowledged) {
+            iter.remove();
+        }
+        List<List<?>> rows = new ArrayList<>();
+        if (this.reloadSequence > acknowledged) {
+            rows.add(Arrays.asList(RELOAD, null, this.reloadSequence));
+            return rows;
+        }
+        for (Map.Entry<Object, Change> change : this.changes.entrySet()) {
+            rows.add(Arrays.asList(change.getValue().operation, change.getKey(), change.getValue().sequence));
+        }
+        return rows;
+    }
+
+    /**
+     * @return time of the last read of the changes, see {@link InfinispanExecutionFactory#removeIdleListeners()}
+     */
+    long getLastRead() {
+        return this.lastRead;
+    }
+}
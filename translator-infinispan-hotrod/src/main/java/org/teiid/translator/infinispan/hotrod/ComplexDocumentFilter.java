@@ -21,10 +21,17 @@
  */
 package org.teiid.translator.infinispan.hotrod;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.teiid.api.exception.query.ExpressionEvaluationException;
 import org.teiid.api.exception.query.QueryParserException;
@@ -35,9 +42,18 @@ import org.teiid.metadata.Column;
 import org.teiid.metadata.RuntimeMetadata;
 import org.teiid.query.eval.Evaluator;
 import org.teiid.query.parser.QueryParser;
+import org.teiid.query.sql.lang.CompareCriteria;
+import org.teiid.query.sql.lang.CompoundCriteria;
 import org.teiid.query.sql.lang.Criteria;
+import org.teiid.query.sql.lang.IsNullCriteria;
+import org.teiid.query.sql.lang.NotCriteria;
+import org.teiid.query.sql.lang.SetCriteria;
+import org.teiid.query.sql.symbol.Constant;
 import org.teiid.query.sql.symbol.ElementSymbol;
+import org.teiid.query.sql.symbol.Expression;
 import org.teiid.query.sql.symbol.GroupSymbol;
+import org.teiid.query.sql.visitor.ElementCollectorVisitor;
+import org.teiid.query.util.CommandContext;
 import org.teiid.translator.TranslatorException;
 
 public class ComplexDocumentFilter implements DocumentFilter {
@@ -48,6 +64,29 @@ public class ComplexDocumentFilter implements DocumentFilter {
     private RuntimeMetadata metadata;
     private Map<ElementSymbol, Integer> elementMap = new HashMap<>();
     private Action action;
+    private Set<String> documentAttributes = new HashSet<>();
+
+    // document attribute behind each tuple slot, and the document it comes from
+    private String[] slotAttributes;
+    private boolean[] slotInParent;
+    // only the slots referenced by the criteria are filled
+    private int[] usedSlots;
+    private Node predicate;
+    // the filter is shared by the threads that read the documents in parallel, the evaluator is not thread safe
+    private ThreadLocal<EvaluationContext> contexts = new ThreadLocal<EvaluationContext>() {
+        @Override
+        protected EvaluationContext initialValue() {
+            return new EvaluationContext();
+        }
+    };
+
+    /**
+     * The tuple and the evaluator reused by the evaluations of one thread
+     */
+    private class EvaluationContext {
+        final List<Object> tuple = Arrays.asList(new Object[slotAttributes.length]);
+        final Evaluator evaluator = new Evaluator(elementMap, null, new CommandContext());
+    }
 
     public ComplexDocumentFilter(NamedTable parentTable, NamedTable childTable, RuntimeMetadata metadata, String filter,
             Action action) throws TranslatorException {
@@ -56,41 +95,151 @@ public class ComplexDocumentFilter implements DocumentFilter {
         this.metadata = metadata;
         this.action = action;
 
+        List<String> attributes = new ArrayList<>();
+        List<Boolean> inParent = new ArrayList<>();
         int i = 0;
         for (Column column : parentTable.getMetadataObject().getColumns()) {
             GroupSymbol gs = new GroupSymbol(parentTable.getCorrelationName());
             gs.setMetadataID(parentTable.getMetadataObject());
             elementMap.put(new ElementSymbol(column.getName(), gs), i++);
+            attributes.add(MarshallerBuilder.getDocumentAttributeName(column, false, metadata));
+            inParent.add(true);
         }
 
-        for (Column column : childTable.getMetadataObject().getColumns()) {
+        // no child table when only the parent document is evaluated
+        for (Column column : (childTable == null) ? Collections.<Column>emptyList()
+                : childTable.getMetadataObject().getColumns()) {
             GroupSymbol gs = new GroupSymbol(childTable.getCorrelationName());
             gs.setMetadataID(childTable.getMetadataObject());
             elementMap.put(new ElementSymbol(column.getName(), gs), i++);
+            if (ProtobufMetadataProcessor.isPseudo(column)) {
+                // value of the pseudo column comes from the parent document
+                attributes.add(column.getNameInSource());
+                inParent.add(true);
+            } else {
+                attributes.add(MarshallerBuilder.getDocumentAttributeName(column, true, metadata));
+                inParent.add(false);
+            }
         }
         try {
             this.criteria = QueryParser.getQueryParser().parseCriteria(filter);
         } catch (QueryParserException e) {
             throw new TranslatorException(e);
         }
+
+        this.slotAttributes = attributes.toArray(new String[attributes.size()]);
+        this.slotInParent = new boolean[this.slotAttributes.length];
+        for (int j = 0; j < this.slotInParent.length; j++) {
+            this.slotInParent[j] = inParent.get(j);
+        }
+
+        Set<Integer> slots = new TreeSet<>();
+        for (ElementSymbol es : ElementCollectorVisitor.getElements(this.criteria, true)) {
+            Integer index = this.elementMap.get(es);
+            if (index == null) {
+                // can not tell which one, decode all the columns
+                this.documentAttributes.addAll(attributes);
+                slots.clear();
+                for (int j = 0; j < this.slotAttributes.length; j++) {
+                    slots.add(j);
+                }
+                break;
+            }
+            this.documentAttributes.add(attributes.get(index));
+            slots.add(index);
+        }
+        this.usedSlots = new int[slots.size()];
+        i = 0;
+        for (Integer slot : slots) {
+            this.usedSlots[i++] = slot;
+        }
+        this.predicate = compile(this.criteria);
     }
 
     @Override
     public boolean matches(Map<String, Object> parentProperties, Map<String, Object> childProperties)
             throws TranslatorException {
-        try {
-            List<Object> tuple = new ArrayList<>();
-            int i = 0;
-            for (Column column : parentTable.getMetadataObject().getColumns()) {
-                tuple.add(i++, parentProperties.get(MarshallerBuilder.getDocumentAttributeName(column, false, metadata)));
+        // only the used slots are ever set, each is overwritten for every document
+        List<Object> tuple = this.contexts.get().tuple;
+        for (int slot : this.usedSlots) {
+            Map<String, Object> properties = this.slotInParent[slot] ? parentProperties : childProperties;
+            tuple.set(slot, properties.get(this.slotAttributes[slot]));
+        }
+        return Boolean.TRUE.equals(this.predicate.evaluate(tuple));
+    }
+
+    @Override
+    public Action action() {
+        return this.action;
+    }
+
+    @Override
+    public Set<String> getDocumentAttributes() {
+        return this.documentAttributes;
+    }
+
+    /**
+     * Compile the criteria into a tree that reads the tuple slots directly, the criteria that is not handled here, or
+     * the values that can not be compared directly are evaluated with the engine's {@link Evaluator}
+     */
+    private Node compile(Criteria c) {
+        if (c instanceof CompoundCriteria) {
+            CompoundCriteria cc = (CompoundCriteria)c;
+            List<Criteria> crits = cc.getCriteria();
+            Node[] children = new Node[crits.size()];
+            for (int i = 0; i < children.length; i++) {
+                children[i] = compile(crits.get(i));
             }
+            return new Compound(c, cc.getOperator() == CompoundCriteria.AND, children);
+        } else if (c instanceof NotCriteria) {
+            return new Not(c, compile(((NotCriteria)c).getCriteria()));
+        } else if (c instanceof IsNullCriteria) {
+            IsNullCriteria inc = (IsNullCriteria)c;
+            int slot = getSlot(inc.getExpression());
+            if (slot != -1) {
+                return new IsNull(c, slot, inc.isNegated());
+            }
+        } else if (c instanceof CompareCriteria) {
+            CompareCriteria cc = (CompareCriteria)c;
+            int slot = getSlot(cc.getLeftExpression());
+            if (slot != -1 && cc.getRightExpression() instanceof Constant) {
+                return new Compare(c, slot, ((Constant)cc.getRightExpression()).getValue(), cc.getOperator());
+            }
+            slot = getSlot(cc.getRightExpression());
+            if (slot != -1 && cc.getLeftExpression() instanceof Constant) {
+                return new Compare(c, slot, ((Constant)cc.getLeftExpression()).getValue(),
+                        CompareCriteria.getReverseOperator(cc.getOperator()));
+            }
+        } else if (c instanceof SetCriteria) {
+            SetCriteria sc = (SetCriteria)c;
+            int slot = getSlot(sc.getExpression());
+            if (slot != -1) {
+                List<Object> values = new ArrayList<>();
+                for (Object value : sc.getValues()) {
+                    if (!(value instanceof Constant)) {
+                        return new Fallback(c);
+                    }
+                    values.add(((Constant)value).getValue());
+                }
+                return new In(c, slot, values.toArray(), sc.isNegated());
+            }
+        }
+        return new Fallback(c);
+    }
 
-            for (Column column : childTable.getMetadataObject().getColumns()) {
-                tuple.add(i++, childProperties.get(MarshallerBuilder.getDocumentAttributeName(column, true, metadata)));
+    private int getSlot(Expression expr) {
+        if (expr instanceof ElementSymbol) {
+            Integer index = this.elementMap.get(expr);
+            if (index != null) {
+                return index;
             }
-            org.teiid.query.util.CommandContext cc = new org.teiid.query.util.CommandContext();
-            final Evaluator evaluator = new Evaluator(elementMap, null, cc);
-            return evaluator.evaluate(criteria, tuple);
+        }
+        return -1;
+    }
+
+    private Boolean evaluate(Criteria c, List<Object> values) throws TranslatorException {
+        try {
+            return this.contexts.get().evaluator.evaluateTVL(c, values);
         } catch (ExpressionEvaluationException e) {
             throw new TranslatorException(e);
         } catch (BlockedException e) {
@@ -100,8 +249,190 @@ public class ComplexDocumentFilter implements DocumentFilter {
         }
     }
 
-    @Override
-    public Action action() {
-        return this.action;
+    /**
+     * @return compare result, null if the values are not directly comparable
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    static Integer compare(Object value, Object other) {
+        if (value.getClass() == other.getClass() && value instanceof Comparable) {
+            return ((Comparable)value).compareTo(other);
+        }
+        if (value instanceof Number && other instanceof Number) {
+            if (isIntegral(value) && isIntegral(other)) {
+                return Long.compare(((Number)value).longValue(), ((Number)other).longValue());
+            }
+            if (isExact(value) && isExact(other)) {
+                return new BigDecimal(value.toString()).compareTo(new BigDecimal(other.toString()));
+            }
+            // NaN and the infinities have no exact form
+            return Double.compare(((Number)value).doubleValue(), ((Number)other).doubleValue());
+        }
+        return null;
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+    }
+
+    private static boolean isExact(Object value) {
+        return isIntegral(value) || value instanceof BigDecimal || value instanceof BigInteger;
+    }
+
+    private abstract class Node {
+        final Criteria criteria;
+
+        Node(Criteria criteria) {
+            this.criteria = criteria;
+        }
+
+        /**
+         * @return null when unknown
+         */
+        abstract Boolean evaluate(List<Object> values) throws TranslatorException;
+    }
+
+    private class Fallback extends Node {
+        Fallback(Criteria criteria) {
+            super(criteria);
+        }
+
+        @Override
+        Boolean evaluate(List<Object> values) throws TranslatorException {
+            return ComplexDocumentFilter.this.evaluate(this.criteria, values);
+        }
+    }
+
+    private class Compound extends Node {
+        private final boolean and;
+        private final Node[] children;
+
+        Compound(Criteria criteria, boolean and, Node[] children) {
+            super(criteria);
+            this.and = and;
+            this.children = children;
+        }
+
+        @Override
+        Boolean evaluate(List<Object> values) throws TranslatorException {
+            boolean unknown = false;
+            for (Node child : this.children) {
+                Boolean result = child.evaluate(values);
+                if (result == null) {
+                    unknown = true;
+                } else if (result != this.and) {
+                    // false for AND, true for OR decides
+                    return result;
+                }
+            }
+            return unknown ? null : this.and;
+        }
+    }
+
+    private class Not extends Node {
+        private final Node child;
+
+        Not(Criteria criteria, Node child) {
+            super(criteria);
+            this.child = child;
+        }
+
+        @Override
+        Boolean evaluate(List<Object> values) throws TranslatorException {
+            Boolean result = this.child.evaluate(values);
+            return (result == null) ? null : !result;
+        }
+    }
+
+    private class IsNull extends Node {
+        private final int slot;
+        private final boolean negated;
+
+        IsNull(Criteria criteria, int slot, boolean negated) {
+            super(criteria);
+            this.slot = slot;
+            this.negated = negated;
+        }
+
+        @Override
+        Boolean evaluate(List<Object> values) {
+            return (values.get(this.slot) == null) != this.negated;
+        }
+    }
+
+    private class Compare extends Node {
+        private final int slot;
+        private final Object constant;
+        private final int operator;
+
+        Compare(Criteria criteria, int slot, Object constant, int operator) {
+            super(criteria);
+            this.slot = slot;
+            this.constant = constant;
+            this.operator = operator;
+        }
+
+        @Override
+        Boolean evaluate(List<Object> values) throws TranslatorException {
+            Object value = values.get(this.slot);
+            if (value == null || this.constant == null) {
+                return null;
+            }
+            Integer result = compare(value, this.constant);
+            if (result == null) {
+                return ComplexDocumentFilter.this.evaluate(this.criteria, values);
+            }
+            switch (this.operator) {
+            case CompareCriteria.EQ:
+                return result == 0;
+            case CompareCriteria.NE:
+                return result != 0;
+            case CompareCriteria.LT:
+                return result < 0;
+            case CompareCriteria.LE:
+                return result <= 0;
+            case CompareCriteria.GT:
+                return result > 0;
+            case CompareCriteria.GE:
+                return result >= 0;
+            default:
+                return ComplexDocumentFilter.this.evaluate(this.criteria, values);
+            }
+        }
+    }
+
+    private class In extends Node {
+        private final int slot;
+        private final Object[] constants;
+        private final boolean negated;
+
+        In(Criteria criteria, int slot, Object[] constants, boolean negated) {
+            super(criteria);
+            this.slot = slot;
+            this.constants = constants;
+            this.negated = negated;
+        }
+
+        @Override
+        Boolean evaluate(List<Object> values) throws TranslatorException {
+            Object value = values.get(this.slot);
+            if (value == null) {
+                return null;
+            }
+            boolean unknown = false;
+            for (Object constant : this.constants) {
+                if (constant == null) {
+                    unknown = true;
+                    continue;
+                }
+                Integer result = compare(value, constant);
+                if (result == null) {
+                    return ComplexDocumentFilter.this.evaluate(this.criteria, values);
+                }
+                if (result == 0) {
+                    return !this.negated;
+                }
+            }
+            return unknown ? null : this.negated;
+        }
     }
 }
@@ -22,6 +22,7 @@
 package org.teiid.translator.infinispan.hotrod;
 
 import java.util.Map;
+import java.util.Set;
 
 import org.teiid.translator.TranslatorException;
 
@@ -42,4 +43,10 @@ public interface DocumentFilter {
      * when matches what is action to take with child document.
      */
     Action action();
+
+    /**
+     * Document attribute names that are read from the parent and child properties during the match, these need to be
+     * decoded even when they are not selected.
+     */
+    Set<String> getDocumentAttributes();
 }
@@ -0,0 +1,157 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.translator.infinispan.hotrod;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.teiid.translator.document.Document;
+
+/**
+ * Expands a document into the result rows, one row at a time. The rows are the cross product of the document with each
+ * of its nested document groups, so only the position at each level of the groups is kept, not the product itself.
+ */
+class DocumentRowIterator implements Iterator<List<Object>> {
+
+    /**
+     * Position in a list of documents, and in the nested documents of the current one.
+     */
+    private static class Cursor {
+        private final List<? extends Document> documents;
+        private final List<Cursor> nested = new ArrayList<>();
+        private int position;
+
+        Cursor(List<? extends Document> documents) {
+            this.documents = documents;
+            open();
+        }
+
+        private void open() {
+            this.nested.clear();
+            if (this.documents.isEmpty()) {
+                return;
+            }
+            Map<String, List<Document>> children = this.documents.get(this.position).getChildren();
+            if (children != null) {
+                for (List<Document> group : children.values()) {
+                    if (!group.isEmpty()) {
+                        this.nested.add(new Cursor(group));
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return false when all the positions are exhausted, the cursor is back at the first one then.
+         */
+        boolean advance() {
+            for (int i = this.nested.size() - 1; i >= 0; i--) {
+                if (this.nested.get(i).advance()) {
+                    return true;
+                }
+            }
+            boolean more = ++this.position < this.documents.size();
+            if (!more) {
+                this.position = 0;
+            }
+            open();
+            return more;
+        }
+
+        Object getValue(String attr) {
+            if (this.documents.isEmpty()) {
+                return null;
+            }
+            Object value = this.documents.get(this.position).getProperties().get(attr);
+            for (int i = 0; value == null && i < this.nested.size(); i++) {
+                value = this.nested.get(i).getValue(attr);
+            }
+            return value;
+        }
+    }
+
+    private final Document document;
+    private final List<String> projected;
+    private final List<Cursor> groups = new ArrayList<>();
+    private boolean hasNext;
+
+    /**
+     * @param nestedDocuments names of the child documents to expand; true when the document is kept with null values
+     *            for a child that is not present, false when no rows are produced then.
+     */
+    DocumentRowIterator(Document document, Map<String, Boolean> nestedDocuments, List<String> projected) {
+        this.document = document;
+        this.projected = projected;
+        this.hasNext = true;
+        for (Map.Entry<String, Boolean> entry : nestedDocuments.entrySet()) {
+            List<? extends Document> children = document.getChildDocuments(entry.getKey());
+            if (children == null || children.isEmpty()) {
+                if (!entry.getValue()) {
+                    this.hasNext = false;
+                }
+                children = Collections.emptyList();
+            }
+            this.groups.add(new Cursor(children));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return this.hasNext;
+    }
+
+    @Override
+    public List<Object> next() {
+        if (!this.hasNext) {
+            throw new NoSuchElementException();
+        }
+        ArrayList<Object> row = new ArrayList<>(this.projected.size());
+        Map<String, Object> properties = this.document.getProperties();
+        for (String attr : this.projected) {
+            Object value = properties.get(attr);
+            for (int i = 0; value == null && i < this.groups.size(); i++) {
+                value = this.groups.get(i).getValue(attr);
+            }
+            row.add(value);
+        }
+        advance();
+        return row;
+    }
+
+    private void advance() {
+        for (int i = this.groups.size() - 1; i >= 0; i--) {
+            if (this.groups.get(i).advance()) {
+                return;
+            }
+        }
+        this.hasNext = false;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
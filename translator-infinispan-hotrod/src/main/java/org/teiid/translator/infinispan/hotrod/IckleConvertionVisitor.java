@@ -25,7 +25,10 @@ import static org.teiid.language.SQLConstants.Reserved.HAVING;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -33,13 +36,13 @@ import org.teiid.language.*;
 import org.teiid.language.Comparison.Operator;
 import org.teiid.language.Join.JoinType;
 import org.teiid.language.SQLConstants.Tokens;
+import org.teiid.language.visitor.CollectorVisitor;
 import org.teiid.language.visitor.SQLStringVisitor;
 import org.teiid.metadata.Column;
 import org.teiid.metadata.KeyRecord;
 import org.teiid.metadata.RuntimeMetadata;
 import org.teiid.metadata.Table;
 import org.teiid.translator.TranslatorException;
-import org.teiid.translator.document.DocumentNode;
 
 public class IckleConvertionVisitor extends SQLStringVisitor {
     protected ArrayList<TranslatorException> exceptions = new ArrayList<TranslatorException>();
@@ -51,11 +54,29 @@ public class IckleConvertionVisitor extends SQLStringVisitor {
     private Integer rowOffset;
     private boolean includePK;
     protected boolean avoidProjection = false;
-    private DocumentNode rootNode;
-    private DocumentNode joinedNode;
     private List<String> projectedDocumentAttributes = new ArrayList<>();
+    // child documents expanded into the rows, true when the parent is kept without them
+    private Map<String, Boolean> nestedDocuments = new LinkedHashMap<>();
     private AtomicInteger aliasCounter = new AtomicInteger();
     protected boolean nested;
+    private boolean joined;
+    // parts of the query the keyset pages are built from, see #getKeysetQuery
+    private String fromClause;
+    private String whereClause;
+    private boolean keysetSupported;
+    private boolean distinctByGroupBy;
+    // literals of the criteria sent as named parameters, see #setUseParameters
+    private boolean useParameters;
+    private boolean inlineLiterals;
+    private Map<String, Object> parameters = new LinkedHashMap<>();
+    // ordering of the expanded rows, see #getRowOrderBy
+    private OrderBy rowOrderBy;
+    private int documentSortKeys;
+    private Limit rowOrderLimit;
+    private Limit distinctLimit;
+
+    static final String KEYSET_PARAMETER = "lastKey"; //$NON-NLS-1$
+    static final String PARAMETER_PREFIX = "p"; //$NON-NLS-1$
 
     public IckleConvertionVisitor(RuntimeMetadata metadata, boolean includePK) {
         this.metadata = metadata;
@@ -83,6 +104,14 @@ public class IckleConvertionVisitor extends SQLStringVisitor {
         return this.nested;
     }
 
+    /**
+     * @return true when each document returned by the query maps to exactly one result row, i.e. no one-2-many
+     *         children are queried or joined. The one-2-one children are part of the same row.
+     */
+    public boolean isSingleRowPerDocument() {
+        return !this.nested && !this.joined;
+    }
+
     @Override
     public void visit(NamedTable obj) {
         this.queriedTable = obj;
@@ -90,7 +119,7 @@ public class IckleConvertionVisitor extends SQLStringVisitor {
             obj.setCorrelationName(obj.getMetadataObject().getName().toLowerCase()+"_"+aliasCounter.getAndIncrement());
         }
 
-        if (this.rootNode == null) {
+        if (this.parentTable == null) {
             String messageName = null;
             String aliasName = null;
             String mergedTableName = ProtobufMetadataProcessor.getMerge(obj.getMetadataObject());
@@ -98,8 +127,6 @@ public class IckleConvertionVisitor extends SQLStringVisitor {
                 aliasName = obj.getCorrelationName();
                 messageName = getMessageName(obj.getMetadataObject());
                 this.parentTable = obj;
-                this.rootNode = new DocumentNode(obj.getMetadataObject(), true);
-                this.joinedNode = this.rootNode;
 
                 // check to see if there is one-2-one rows
                 Set<String> tags = new HashSet<>();
@@ -108,11 +135,10 @@ public class IckleConvertionVisitor extends SQLStringVisitor {
                         String childMessageName = ProtobufMetadataProcessor.getMessageName(column);
                         if (!tags.contains(childMessageName)) {
                           tags.add(childMessageName);
-                          //TODO: DocumentNode needs to be refactored to just take name, not table
-                          Table t = new Table();
-                          t.setName(childMessageName);
-                          this.joinedNode = this.rootNode.joinWith(JoinType.INNER_JOIN,
-                                    new DocumentNode(t, false));
+                          // one-2-one, same as the row marshaller the parent is kept when the child is not set,
+                          // the message is optional. Unlike the inner join of the former DocumentNode, this keeps
+                          // the row count equal to the document count the COUNT and LIMIT pushdown rely on.
+                          this.nestedDocuments.put(childMessageName, true);
                         }
                     }
                 }
@@ -123,9 +149,7 @@ public class IckleConvertionVisitor extends SQLStringVisitor {
                     messageName = getMessageName(mergedTable);
                     aliasName = mergedTable.getName().toLowerCase()+"_"+aliasCounter.getAndIncrement();
                     this.parentTable = new NamedTable(mergedTable.getName(), aliasName, mergedTable);
-                    this.rootNode = new DocumentNode(mergedTable, true);
-                    this.joinedNode = this.rootNode.joinWith(JoinType.INNER_JOIN,
-                            new DocumentNode(obj.getMetadataObject(), true));
+                    this.nestedDocuments.put(getMessageName(obj.getMetadataObject()), false);
                     this.nested = true;
                 } catch (TranslatorException e) {
                     this.exceptions.add(e);
@@ -172,25 +196,29 @@ public class IckleConvertionVisitor extends SQLStringVisitor {
 
     @Override
     public void visit(Join obj) {
+        this.joined = true;
         Condition cond = null;
         if (obj.getLeftItem() instanceof Join) {
             cond = obj.getCondition();
             append(obj.getLeftItem());
             Table right = ((NamedTable)obj.getRightItem()).getMetadataObject();
-            this.joinedNode.joinWith(obj.getJoinType(), new DocumentNode(right, true));
+            addJoinedDocument(right, obj.getJoinType() == JoinType.LEFT_OUTER_JOIN
+                    || obj.getJoinType() == JoinType.FULL_OUTER_JOIN);
         }
         else if (obj.getRightItem() instanceof Join) {
             cond = obj.getCondition();
             append(obj.getRightItem());
             Table left = ((NamedTable)obj.getLeftItem()).getMetadataObject();
-            this.joinedNode.joinWith(obj.getJoinType(), new DocumentNode(left, true));
+            addJoinedDocument(left, obj.getJoinType() == JoinType.RIGHT_OUTER_JOIN
+                    || obj.getJoinType() == JoinType.FULL_OUTER_JOIN);
         }
         else {
             cond = obj.getCondition();
             append(obj.getLeftItem());
             this.queriedTable = (NamedTable)obj.getRightItem();
             Table right = ((NamedTable)obj.getRightItem()).getMetadataObject();
-            this.joinedNode.joinWith(obj.getJoinType(), new DocumentNode(right, true));
+            addJoinedDocument(right, obj.getJoinType() == JoinType.LEFT_OUTER_JOIN
+                    || obj.getJoinType() == JoinType.FULL_OUTER_JOIN);
         }
 
         if (cond != null) {
@@ -198,6 +226,15 @@ public class IckleConvertionVisitor extends SQLStringVisitor {
         }
     }
 
+    private void addJoinedDocument(Table table, boolean optional) {
+        if (table.equals(getParentTable())) {
+            return;
+        }
+        String name = getMessageName(table);
+        Boolean previous = this.nestedDocuments.get(name);
+        this.nestedDocuments.put(name, optional && (previous == null || previous));
+    }
+
     @Override
     public void visit(Limit obj) {
         if (obj.getRowOffset() != 0) {
@@ -211,18 +248,44 @@ public class IckleConvertionVisitor extends SQLStringVisitor {
 
     @Override
     public void visit(Select obj) {
+        int start = buffer.length();
         buffer.append(SQLConstants.Reserved.FROM).append(Tokens.SPACE);
         visitNodes(obj.getFrom());
+        String from = buffer.substring(start);
 
-        if (obj.getWhere() != null) {
+        String where = null;
+        Condition serverWhere = getServerCondition(obj.getWhere());
+        if (serverWhere != null) {
             buffer.append(Tokens.SPACE);
             buffer.append(SQLConstants.Reserved.WHERE).append(Tokens.SPACE);
-            visitNode(obj.getWhere());
+            start = buffer.length();
+            visitNode(serverWhere);
+            where = buffer.substring(start);
+        }
+
+        boolean aggregates = false;
+        for (DerivedColumn column : obj.getDerivedColumns()) {
+            aggregates |= !(column.getExpression() instanceof ColumnReference);
         }
+        setKeysetClauses(from, where, obj.getGroupBy() == null && obj.getHaving() == null
+                && obj.getOrderBy() == null && !aggregates && !obj.isDistinct());
 
         if (obj.getGroupBy() != null) {
             buffer.append(Tokens.SPACE);
             append(obj.getGroupBy());
+        } else if (obj.isDistinct() && !aggregates && isTopLevel(obj.getDerivedColumns())) {
+            // Ickle has no DISTINCT, group on all the selected columns instead
+            buffer.append(Tokens.SPACE).append(SQLConstants.Reserved.GROUP).append(Tokens.SPACE);
+            buffer.append(SQLConstants.Reserved.BY).append(Tokens.SPACE);
+            boolean first = true;
+            for (DerivedColumn column : obj.getDerivedColumns()) {
+                if (!first) {
+                    buffer.append(Tokens.COMMA).append(Tokens.SPACE);
+                }
+                visitNode(column.getExpression());
+                first = false;
+            }
+            this.distinctByGroupBy = true;
         }
 
         if (obj.getHaving() != null) {
@@ -233,21 +296,267 @@ public class IckleConvertionVisitor extends SQLStringVisitor {
         }
 
         if (obj.getOrderBy() != null) {
-            buffer.append(Tokens.SPACE);
-            visitNode(obj.getOrderBy());
-            if (this.nested) {
-                this.exceptions.add(new TranslatorException(InfinispanPlugin.Util.gs(InfinispanPlugin.Event.TEIID25010)));
+            OrderBy orderBy = obj.getOrderBy();
+            if (!isSingleRowPerDocument()) {
+                // Ickle orders the documents, the rows expanded from them are sorted locally, see #getRowOrderBy
+                this.rowOrderBy = orderBy;
+                orderBy = getDocumentOrderBy(orderBy);
+            }
+            if (orderBy != null) {
+                buffer.append(Tokens.SPACE);
+                visitNode(orderBy);
             }
         }
 
         if (obj.getLimit() != null) {
-            buffer.append(Tokens.SPACE);
-            visitNode(obj.getLimit());
+            if (obj.isDistinct() && !this.distinctByGroupBy) {
+                // applies to the rows made distinct on the client, not to the documents
+                this.distinctLimit = obj.getLimit();
+            } else if (this.rowOrderBy != null) {
+                // applies to the sorted rows, not to the documents
+                this.rowOrderLimit = obj.getLimit();
+            } else {
+                buffer.append(Tokens.SPACE);
+                visitNode(obj.getLimit());
+            }
         }
 
         visitNodes(obj.getDerivedColumns());
     }
 
+    /**
+     * @return the leading sort keys that are on the parent document, null if there are none
+     */
+    private OrderBy getDocumentOrderBy(OrderBy orderBy) {
+        List<SortSpecification> items = new ArrayList<>();
+        for (SortSpecification item : orderBy.getSortSpecifications()) {
+            if (!(item.getExpression() instanceof ColumnReference)
+                    || ((ColumnReference)item.getExpression()).getMetadataObject() == null) {
+                break;
+            }
+            Column column = normalizePseudoColumn(((ColumnReference)item.getExpression()).getMetadataObject());
+            if (!column.getParent().equals(this.parentTable.getMetadataObject())) {
+                break;
+            }
+            items.add(item);
+        }
+        this.documentSortKeys = items.size();
+        return items.isEmpty() ? null : new OrderBy(items);
+    }
+
+    /**
+     * @return the order of the rows when more than one row may be expanded from a document. The documents are
+     *         ordered by the query on the leading sort keys on the parent document, see #getDocumentSortKeys, and
+     *         the rows of the documents that are equal on them are sorted by the translator. null if not ordered,
+     *         or the query orders the rows.
+     */
+    public OrderBy getRowOrderBy() {
+        return this.rowOrderBy;
+    }
+
+    /**
+     * @return number of the leading sort keys of {@link #getRowOrderBy()} the documents are ordered on
+     */
+    public int getDocumentSortKeys() {
+        return this.documentSortKeys;
+    }
+
+    /**
+     * @return the limit of the sorted rows, see {@link #getRowOrderBy()}
+     */
+    public Limit getRowOrderLimit() {
+        return this.rowOrderLimit;
+    }
+
+    /**
+     * @return the limit to apply after the rows are made distinct on the client, see {@link #isDistinctByGroupBy()}
+     */
+    public Limit getDistinctLimit() {
+        return this.distinctLimit;
+    }
+
+    /**
+     * @return true if the columns are all on the parent document, and not on its nested documents
+     */
+    private boolean isTopLevel(List<DerivedColumn> columns) {
+        for (DerivedColumn column : columns) {
+            Column c = normalizePseudoColumn(((ColumnReference)column.getExpression()).getMetadataObject());
+            if (ProtobufMetadataProcessor.getParentTag(c) != -1
+                    || ProtobufMetadataProcessor.getParentTag((Table)c.getParent()) != -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ickle selects a document when any of its child documents matches. A negation, or a test for a missing value, on
+     * the child documents would also drop the documents that have other child documents that qualify. Those conjuncts
+     * are left out of the query; the conjuncts on the child documents are evaluated again on the client for each child
+     * document.
+     *
+     * @return the part of the where clause for the query, null if none
+     */
+    protected Condition getServerCondition(Condition where) {
+        if (where == null) {
+            return null;
+        }
+        List<Condition> conditions = new ArrayList<>();
+        for (Condition condition : LanguageUtil.separateCriteriaByAnd(where)) {
+            if (!isChildNegation(condition)) {
+                conditions.add(condition);
+            }
+        }
+        return LanguageUtil.combineCriteria(conditions);
+    }
+
+    private boolean isChildNegation(Condition condition) {
+        List<LanguageObject> negations = new ArrayList<>();
+        negations.addAll(CollectorVisitor.collectObjects(Not.class, condition));
+        negations.addAll(CollectorVisitor.collectObjects(IsNull.class, condition));
+        for (In in : CollectorVisitor.collectObjects(In.class, condition)) {
+            if (in.isNegated()) {
+                negations.add(in);
+            }
+        }
+        for (Like like : CollectorVisitor.collectObjects(Like.class, condition)) {
+            if (like.isNegated()) {
+                negations.add(like);
+            }
+        }
+        for (LanguageObject negation : negations) {
+            for (ColumnReference ref : CollectorVisitor.collectElements(negation)) {
+                Column column = ref.getMetadataObject();
+                if (column != null && !column.getParent().equals(getParentTable())
+                        && !ProtobufMetadataProcessor.isPseudo(column)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if DISTINCT is answered by grouping on the selected columns, otherwise the rows need to be made
+     *         distinct on the client
+     */
+    public boolean isDistinctByGroupBy() {
+        return this.distinctByGroupBy;
+    }
+
+    /**
+     * Send the literals of the criteria as named parameters, so that the server can reuse the parsed query for other
+     * values, see {@link #getParameters()}
+     */
+    public void setUseParameters(boolean useParameters) {
+        this.useParameters = useParameters;
+    }
+
+    /**
+     * @return values of the named parameters in the query
+     */
+    public Map<String, Object> getParameters() {
+        return this.parameters;
+    }
+
+    @Override
+    public void visit(Literal obj) {
+        if (!this.useParameters || this.inlineLiterals || !isParameter(obj)) {
+            super.visit(obj);
+            return;
+        }
+        String name = PARAMETER_PREFIX + (this.parameters.size() + 1);
+        this.parameters.put(name, obj.getValue());
+        buffer.append(':').append(name);
+    }
+
+    private static boolean isParameter(Literal obj) {
+        Object value = obj.getValue();
+        return !obj.isMultiValued() && (value instanceof String || value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte || value instanceof Double
+                || value instanceof Float || value instanceof Boolean);
+    }
+
+    @Override
+    public void visit(Like obj) {
+        // the pattern is kept in the query
+        boolean inline = this.inlineLiterals;
+        this.inlineLiterals = true;
+        if (obj.isNegated()) {
+            appendNegated(obj);
+        } else {
+            super.visit(obj);
+        }
+        this.inlineLiterals = inline;
+    }
+
+    @Override
+    public void visit(In obj) {
+        if (obj.isNegated()) {
+            appendNegated(obj);
+        } else {
+            super.visit(obj);
+        }
+    }
+
+    /**
+     * Ickle selects the documents without the field for a negated predicate, where SQL leaves the row out as the
+     * negation of unknown is unknown. The negation is moved down to the predicates, and each negated predicate also
+     * requires the fields it refers to be set.
+     */
+    @Override
+    public void visit(Not obj) {
+        appendNegation(obj.getCriteria());
+    }
+
+    private void appendNegation(Condition condition) {
+        if (condition instanceof AndOr) {
+            AndOr andOr = (AndOr)condition;
+            buffer.append(Tokens.LPAREN);
+            appendNegation(andOr.getLeftCondition());
+            buffer.append(Tokens.SPACE);
+            buffer.append(andOr.getOperator() == AndOr.Operator.AND ? SQLConstants.Reserved.OR
+                    : SQLConstants.Reserved.AND);
+            buffer.append(Tokens.SPACE);
+            appendNegation(andOr.getRightCondition());
+            buffer.append(Tokens.RPAREN);
+        } else if (condition instanceof Not) {
+            buffer.append(Tokens.LPAREN);
+            visitNode(((Not)condition).getCriteria());
+            buffer.append(Tokens.RPAREN);
+        } else {
+            buffer.append(Tokens.LPAREN).append(SQLConstants.Reserved.NOT).append(Tokens.SPACE);
+            buffer.append(Tokens.LPAREN);
+            visitNode(condition);
+            buffer.append(Tokens.RPAREN);
+            appendNotNull(condition);
+            buffer.append(Tokens.RPAREN);
+        }
+    }
+
+    private void appendNegated(Condition predicate) {
+        buffer.append(Tokens.LPAREN);
+        if (predicate instanceof Like) {
+            super.visit((Like)predicate);
+        } else {
+            super.visit((In)predicate);
+        }
+        appendNotNull(predicate);
+        buffer.append(Tokens.RPAREN);
+    }
+
+    private void appendNotNull(Condition condition) {
+        Set<String> names = new LinkedHashSet<>();
+        for (ColumnReference ref : CollectorVisitor.collectElements(condition)) {
+            names.add(getQualifiedName(ref.getMetadataObject()));
+        }
+        for (String name : names) {
+            buffer.append(Tokens.SPACE).append(SQLConstants.Reserved.AND).append(Tokens.SPACE);
+            buffer.append(name).append(Tokens.SPACE).append(SQLConstants.Reserved.IS).append(Tokens.SPACE);
+            buffer.append(SQLConstants.Reserved.NOT).append(Tokens.SPACE).append(SQLConstants.Reserved.NULL);
+        }
+    }
+
     @Override
     public void visit(Comparison obj) {
         if (obj.getOperator() == Operator.EQ && obj.getLeftExpression() instanceof ColumnReference
@@ -381,6 +690,81 @@ public class IckleConvertionVisitor extends SQLStringVisitor {
         return sb;
     }
 
+    protected void setKeysetClauses(String from, String where, boolean supported) {
+        this.fromClause = from;
+        this.whereClause = where;
+        this.keysetSupported = supported;
+    }
+
+    /**
+     * @return the primary key column the results can be paged on, i.e. the results have no other order and the key is
+     *         a single top level column whose values compare the same in Ickle as in Teiid; null otherwise.
+     */
+    public Column getKeysetColumn() {
+        if (!this.keysetSupported || this.joined) {
+            return null;
+        }
+        KeyRecord pk = getParentTable().getPrimaryKey();
+        if (pk == null || pk.getColumns().size() != 1) {
+            return null;
+        }
+        Column column = pk.getColumns().get(0);
+        if (ProtobufMetadataProcessor.getParentTag(column) != -1) {
+            return null;
+        }
+        Class<?> type = column.getJavaType();
+        if (type != String.class && type != Integer.class && type != Long.class) {
+            return null;
+        }
+        return column;
+    }
+
+    /**
+     * Query ordered by the primary key, see {@link #getKeysetColumn()}. The first page is read with the offset of the
+     * query, every next page continues after the last key read, given as {@link #KEYSET_PARAMETER}, so that the server
+     * does not need to skip over the previous pages.
+     */
+    public String getKeysetQuery(boolean first) {
+        return buildKeysetQuery(!this.avoidProjection, first);
+    }
+
+    protected String buildKeysetQuery(boolean projection, boolean first) {
+        String key = getQualifiedName(getKeysetColumn());
+        StringBuilder sb = new StringBuilder();
+        if (projection) {
+            addSelectedColumns(sb);
+            sb.append(Tokens.SPACE);
+        }
+        sb.append(this.fromClause);
+        if (this.whereClause != null || !first) {
+            sb.append(Tokens.SPACE).append(SQLConstants.Reserved.WHERE).append(Tokens.SPACE);
+            if (this.whereClause != null) {
+                sb.append(Tokens.LPAREN).append(this.whereClause).append(Tokens.RPAREN);
+                if (!first) {
+                    sb.append(Tokens.SPACE).append(SQLConstants.Reserved.AND).append(Tokens.SPACE);
+                }
+            }
+            if (!first) {
+                sb.append(key).append(" > :").append(KEYSET_PARAMETER); //$NON-NLS-1$
+            }
+        }
+        sb.append(Tokens.SPACE).append(SQLConstants.Reserved.ORDER).append(Tokens.SPACE);
+        sb.append(SQLConstants.Reserved.BY).append(Tokens.SPACE).append(key);
+        return sb.toString();
+    }
+
+    /**
+     * @return query for the documents the where clause selects, to count them with the result size of the query
+     */
+    public String getCountQuery() {
+        StringBuilder sb = new StringBuilder(this.fromClause);
+        if (this.whereClause != null) {
+            sb.append(Tokens.SPACE).append(SQLConstants.Reserved.WHERE).append(Tokens.SPACE);
+            sb.append(this.whereClause);
+        }
+        return sb.toString();
+    }
+
     public Integer getRowLimit() {
         return rowLimit;
     }
@@ -398,11 +782,23 @@ public class IckleConvertionVisitor extends SQLStringVisitor {
         return projectedDocumentAttributes;
     }
 
-    RuntimeMetadata getMetadata() {
-        return metadata;
+    /**
+     * Names of the child documents that take part in building the rows of the query results, i.e. one-2-one messages
+     * and the merged tables that are queried or joined.
+     */
+    public Set<String> getNestedDocumentNames() {
+        return this.nestedDocuments.keySet();
     }
 
-    DocumentNode getDocumentNode() {
-        return this.rootNode;
+    /**
+     * @return the child documents by name, with true when the parent document still yields rows without any such
+     *         children, i.e. outer join.
+     */
+    Map<String, Boolean> getNestedDocuments() {
+        return this.nestedDocuments;
+    }
+
+    RuntimeMetadata getMetadata() {
+        return metadata;
     }
 }
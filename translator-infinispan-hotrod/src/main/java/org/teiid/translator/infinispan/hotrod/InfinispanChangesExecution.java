@@ -0,0 +1,106 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.translator.infinispan.hotrod;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.infinispan.client.hotrod.RemoteCache;
+import org.teiid.infinispan.api.InfinispanConnection;
+import org.teiid.language.Call;
+import org.teiid.logging.LogConstants;
+import org.teiid.logging.LogManager;
+import org.teiid.metadata.RuntimeMetadata;
+import org.teiid.metadata.Schema;
+import org.teiid.metadata.Table;
+import org.teiid.translator.DataNotAvailableException;
+import org.teiid.translator.ExecutionContext;
+import org.teiid.translator.ProcedureExecution;
+import org.teiid.translator.TranslatorException;
+
+/**
+ * Returns the changes of the entries of a table after the acknowledged sequence, so that a materialized view of the
+ * table can be refreshed for the changed keys only, e.g. with SYSADMIN.updateMatView, instead of being reloaded.
+ * The caller passes the highest sequence it applied on its next call.
+ */
+public class InfinispanChangesExecution implements ProcedureExecution {
+    static final String GET_CHANGES = "getChanges"; //$NON-NLS-1$
+
+    private Call command;
+    private InfinispanConnection connection;
+    private RuntimeMetadata metadata;
+    private InfinispanExecutionFactory translator;
+    private Iterator<List<?>> rows;
+
+    public InfinispanChangesExecution(InfinispanExecutionFactory translator, Call command,
+            ExecutionContext executionContext, RuntimeMetadata metadata, InfinispanConnection connection) {
+        this.translator = translator;
+        this.command = command;
+        this.connection = connection;
+        this.metadata = metadata;
+    }
+
+    @Override
+    public void execute() throws TranslatorException {
+        String tableName = (String)this.command.getArguments().get(0).getArgumentValue().getValue();
+        Schema schema = (Schema)this.command.getMetadataObject().getParent();
+        Table table = tableName == null ? null : schema.getTable(tableName);
+        if (table == null) {
+            throw new TranslatorException(InfinispanPlugin.Event.TEIID25015,
+                    InfinispanPlugin.Util.gs(InfinispanPlugin.Event.TEIID25015, tableName, schema.getName()));
+        }
+        String mergedTableName = ProtobufMetadataProcessor.getMerge(table);
+        if (mergedTableName != null) {
+            // the child documents change with their parent document
+            table = this.metadata.getTable(mergedTableName);
+        }
+        RemoteCache<Object, Object> cache = InfinispanQueryExecution.getCache(table, this.connection);
+        ChangeFeed feed = this.translator.getChangeFeed(cache, table.getFullName());
+        Long acknowledged = null;
+        if (this.command.getArguments().size() > 1) {
+            acknowledged = (Long)this.command.getArguments().get(1).getArgumentValue().getValue();
+        }
+        List<List<?>> changes = feed.poll(acknowledged == null ? 0 : acknowledged);
+        LogManager.logDetail(LogConstants.CTX_CONNECTOR, "Changes of", table.getFullName(), //$NON-NLS-1$
+                changes.size());
+        this.rows = changes.iterator();
+    }
+
+    @Override
+    public List<?> next() throws TranslatorException, DataNotAvailableException {
+        return this.rows.hasNext() ? this.rows.next() : null;
+    }
+
+    @Override
+    public List<?> getOutputParameterValues() throws TranslatorException {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void cancel() throws TranslatorException {
+    }
+}
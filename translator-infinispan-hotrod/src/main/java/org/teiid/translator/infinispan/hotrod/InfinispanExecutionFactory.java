@@ -23,24 +23,44 @@
 package org.teiid.translator.infinispan.hotrod;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+
 import javax.resource.cci.ConnectionFactory;
 
+import org.infinispan.client.hotrod.RemoteCache;
+import org.teiid.core.util.ExecutorUtils;
 import org.teiid.core.util.PropertiesUtils;
 import org.teiid.infinispan.api.InfinispanConnection;
+import org.teiid.infinispan.api.NearCache;
 import org.teiid.infinispan.api.ProtobufResource;
+import org.teiid.language.Call;
 import org.teiid.language.Command;
 import org.teiid.language.QueryExpression;
+import org.teiid.logging.LogConstants;
+import org.teiid.logging.LogManager;
+import org.teiid.metadata.BaseColumn.NullType;
 import org.teiid.metadata.MetadataFactory;
+import org.teiid.metadata.Procedure;
+import org.teiid.metadata.ProcedureParameter;
 import org.teiid.metadata.RuntimeMetadata;
 import org.teiid.metadata.Schema;
 import org.teiid.metadata.Table;
 import org.teiid.translator.ExecutionContext;
 import org.teiid.translator.ExecutionFactory;
 import org.teiid.translator.MetadataProcessor;
+import org.teiid.translator.ProcedureExecution;
 import org.teiid.translator.ResultSetExecution;
 import org.teiid.translator.Translator;
 import org.teiid.translator.TranslatorException;
 import org.teiid.translator.TranslatorProperty;
+import org.teiid.translator.TypeFacility;
 import org.teiid.translator.UpdateExecution;
 import org.teiid.util.Version;
 
@@ -49,15 +69,35 @@ import org.teiid.util.Version;
 public class InfinispanExecutionFactory extends ExecutionFactory<ConnectionFactory, InfinispanConnection>{
     public static final Version SIX_6 = Version.getVersion("6.6"); //$NON-NLS-1$
 	public static final int MAX_SET_SIZE = 1024;
+	// pending changes of a table, above which the table is to be reloaded
+	static final int MAX_CHANGES = 100000;
 
 	private boolean supportsCompareCriteriaOrdered = true;
 	private boolean supportsUpsert = true;
+	private String lobCacheName;
+	private int lobChunkSize = 65536;
+	private boolean prefetchBatches;
+	private boolean parallelScan;
+	private boolean indexFreeScan;
+	private boolean countFromCacheSize;
+	private boolean keyLookup;
+	private volatile Executor prefetchExecutor;
+	private volatile Executor scanExecutor;
+	private int resultCacheSize;
+	private long resultCacheTimeToLive = 60000;
+	private volatile ResultCache resultCache;
+	private String aggregateTaskName;
+	private boolean changeFeed;
+	private long changeFeedTimeout = 3600000;
+	private Timer listenerTimer;
+	private int sortBufferRows = 10000;
+	private Map<RemoteCache<?, ?>, Map<String, ChangeFeed>> changeFeeds = new HashMap<>();
 
 	public InfinispanExecutionFactory() {
 		setMaxInCriteriaSize(MAX_SET_SIZE);
 		setMaxDependentInPredicates(MAX_SET_SIZE);
 		setSupportsOrderBy(true);
-		setSupportsSelectDistinct(false);
+		setSupportsSelectDistinct(true);
 		setSupportsInnerJoins(true);
 		setSupportsFullOuterJoins(true);
 		setSupportsOuterJoins(true);
@@ -77,11 +117,20 @@ public class InfinispanExecutionFactory extends ExecutionFactory<ConnectionFacto
         return new InfinispanQueryExecution(this, command, executionContext, metadata, connection);
     }
 
+    @Override
+    public ProcedureExecution createProcedureExecution(Call command, ExecutionContext executionContext,
+            RuntimeMetadata metadata, InfinispanConnection connection) throws TranslatorException {
+        if (command.getProcedureName().equalsIgnoreCase(InfinispanChangesExecution.GET_CHANGES)) {
+            return new InfinispanChangesExecution(this, command, executionContext, metadata, connection);
+        }
+        return super.createProcedureExecution(command, executionContext, metadata, connection);
+    }
+
     @Override
     public UpdateExecution createUpdateExecution(Command command,
             ExecutionContext executionContext, RuntimeMetadata metadata,
             InfinispanConnection connection) throws TranslatorException {
-        return new InfinispanUpdateExecution(command, executionContext, metadata,
+        return new InfinispanUpdateExecution(this, command, executionContext, metadata,
                 connection);
     }
 
@@ -92,6 +141,8 @@ public class InfinispanExecutionFactory extends ExecutionFactory<ConnectionFacto
 
         // tables are provided through other metadata repositories
         Schema schema = metadataFactory.getSchema();
+        // the tables of the previous load are replaced
+        MarshallerBuilder.evict(schema.getName());
         ProtobufResource resource = null;
         if (schema.getTables() != null && !schema.getTables().isEmpty()) {
             SchemaToProtobufProcessor stpp = new SchemaToProtobufProcessor();
@@ -118,6 +169,45 @@ public class InfinispanExecutionFactory extends ExecutionFactory<ConnectionFacto
         if (resource != null) {
             conn.registerProtobufFile(resource);
         }
+
+        // the documents kept by the near caches were decoded with the previous tables
+        Set<String> cacheNames = new HashSet<>();
+        for (Table t : schema.getTables().values()) {
+            String cacheName = t.getProperty(ProtobufMetadataProcessor.CACHE, false);
+            if (cacheName == null && conn.getCache() != null) {
+                cacheName = conn.getCache().getName();
+            }
+            if (cacheName != null) {
+                cacheNames.add(cacheName);
+            }
+        }
+        for (String cacheName : cacheNames) {
+            NearCache nearCache = conn.getNearCache(cacheName);
+            if (nearCache != null) {
+                nearCache.clear();
+            }
+        }
+
+        if (this.changeFeed && schema.getProcedure(InfinispanChangesExecution.GET_CHANGES) == null) {
+            addChangesProcedure(metadataFactory);
+        }
+    }
+
+    private void addChangesProcedure(MetadataFactory metadataFactory) {
+        Procedure p = metadataFactory.addProcedure(InfinispanChangesExecution.GET_CHANGES);
+        p.setAnnotation("Returns the changes of the entries of the table after the acknowledged sequence, the " //$NON-NLS-1$
+                + "operation INSERT, UPDATE or DELETE, the key and the sequence of each; a single RELOAD row when " //$NON-NLS-1$
+                + "the changes are not known, on the first call or when the events may have been missed. The " //$NON-NLS-1$
+                + "changes are returned again until their sequence is acknowledged on a later call"); //$NON-NLS-1$
+        metadataFactory.addProcedureParameter("tableName", TypeFacility.RUNTIME_NAMES.STRING, //$NON-NLS-1$
+                ProcedureParameter.Type.In, p);
+        ProcedureParameter acknowledged = metadataFactory.addProcedureParameter("acknowledged", //$NON-NLS-1$
+                TypeFacility.RUNTIME_NAMES.LONG, ProcedureParameter.Type.In, p);
+        acknowledged.setNullType(NullType.Nullable);
+        acknowledged.setAnnotation("Sequence of the last change applied, the changes up to it are dropped"); //$NON-NLS-1$
+        metadataFactory.addProcedureResultSetColumn("operation", TypeFacility.RUNTIME_NAMES.STRING, p); //$NON-NLS-1$
+        metadataFactory.addProcedureResultSetColumn("key", TypeFacility.RUNTIME_NAMES.OBJECT, p); //$NON-NLS-1$
+        metadataFactory.addProcedureResultSetColumn("sequence", TypeFacility.RUNTIME_NAMES.LONG, p); //$NON-NLS-1$
     }
 
     @Override
@@ -142,7 +232,7 @@ public class InfinispanExecutionFactory extends ExecutionFactory<ConnectionFacto
 
     @Override
     public boolean supportsIsNullCriteria() {
-        return false;
+        return true;
     }
 
     @Override
@@ -175,6 +265,275 @@ public class InfinispanExecutionFactory extends ExecutionFactory<ConnectionFacto
         return supportsUpsert = supports;
     }
 
+    @TranslatorProperty(display="Prefetch Batches", description="If true, the next batch of the query results is "
+            + "fetched in the background while the current batch is being processed. The query split for a large IN "
+            + "criteria also runs up to 4 of its parts at the same time", advanced=true)
+    public boolean isPrefetchBatches() {
+        return prefetchBatches;
+    }
+
+    public void setPrefetchBatches(boolean prefetchBatches) {
+        this.prefetchBatches = prefetchBatches;
+    }
+
+    @TranslatorProperty(display="Parallel Scan", description="If true, the scans of the cache read the segments "
+            + "of each server in parallel, one thread for each server", advanced=true)
+    public boolean isParallelScan() {
+        return parallelScan;
+    }
+
+    public void setParallelScan(boolean parallelScan) {
+        this.parallelScan = parallelScan;
+    }
+
+    @TranslatorProperty(display="Index Free Scan", description="If true, the queries without criteria, or with "
+            + "criteria only on the fields that are not indexed, and without ordering, grouping or limits read all "
+            + "the entries of the cache and evaluate the criteria in the translator, instead of running a query. "
+            + "Only for the tables with a CACHE of their own, other than the default cache", advanced=true)
+    public boolean isIndexFreeScan() {
+        return indexFreeScan;
+    }
+
+    public void setIndexFreeScan(boolean indexFreeScan) {
+        this.indexFreeScan = indexFreeScan;
+    }
+
+    @TranslatorProperty(display="Count From Cache Size", description="If true, COUNT(*) without criteria is "
+            + "answered with the size of the cache. Only for caches that hold the documents of a single table",
+            advanced=true)
+    public boolean isCountFromCacheSize() {
+        return countFromCacheSize;
+    }
+
+    public void setCountFromCacheSize(boolean countFromCacheSize) {
+        this.countFromCacheSize = countFromCacheSize;
+    }
+
+    @TranslatorProperty(display="Key Lookup", description="If true, the queries on the primary key are answered "
+            + "with a get of the cache entries by the key. Only for caches where the entries are keyed by the primary "
+            + "key value, e.g. that are written through this translator", advanced=true)
+    public boolean isKeyLookup() {
+        return keyLookup;
+    }
+
+    public void setKeyLookup(boolean keyLookup) {
+        this.keyLookup = keyLookup;
+    }
+
+    @TranslatorProperty(display="Result Cache Size", description="Number of the query results kept in memory, until "
+            + "the cache they are read from changes; 0 to not keep any", advanced=true)
+    public int getResultCacheSize() {
+        return resultCacheSize;
+    }
+
+    public void setResultCacheSize(int resultCacheSize) {
+        this.resultCacheSize = resultCacheSize;
+    }
+
+    @TranslatorProperty(display="Result Cache Time To Live", description="Milliseconds the query results are kept "
+            + "in memory at most, see ResultCacheSize", advanced=true)
+    public long getResultCacheTimeToLive() {
+        return resultCacheTimeToLive;
+    }
+
+    public void setResultCacheTimeToLive(long resultCacheTimeToLive) {
+        this.resultCacheTimeToLive = resultCacheTimeToLive;
+    }
+
+    @TranslatorProperty(display="Aggregate Task Name", description="Name of the task registered on the server "
+            + "that computes the aggregates over the child documents of a merged table on each node. When not set, "
+            + "such aggregates are not supported", advanced=true)
+    public String getAggregateTaskName() {
+        return aggregateTaskName;
+    }
+
+    public void setAggregateTaskName(String aggregateTaskName) {
+        this.aggregateTaskName = aggregateTaskName;
+    }
+
+    @TranslatorProperty(display="Change Feed", description="If true, the getChanges procedure is added to the "
+            + "model, that returns the keys of the entries of a table changed after the acknowledged change, to "
+            + "refresh the materialized views of the table incrementally", advanced=true)
+    public boolean isChangeFeed() {
+        return changeFeed;
+    }
+
+    public void setChangeFeed(boolean changeFeed) {
+        this.changeFeed = changeFeed;
+    }
+
+    @TranslatorProperty(display="Change Feed Timeout", description="Time in milliseconds after which the listener of "
+            + "the changes of a table not read by getChanges is removed; the next call returns RELOAD", advanced=true)
+    public long getChangeFeedTimeout() {
+        return changeFeedTimeout;
+    }
+
+    public void setChangeFeedTimeout(long changeFeedTimeout) {
+        this.changeFeedTimeout = changeFeedTimeout;
+    }
+
+    @TranslatorProperty(display="Sort Buffer Rows", description="Number of the rows sorted in memory when the "
+            + "rows expanded from the nested documents are ordered, above which sorted runs are written to temporary "
+            + "files, unless the limit of the query is lower. Also the maximum number of the distinct rows kept when "
+            + "DISTINCT is applied to such rows", advanced=true)
+    public int getSortBufferRows() {
+        return sortBufferRows;
+    }
+
+    public void setSortBufferRows(int sortBufferRows) {
+        this.sortBufferRows = sortBufferRows;
+    }
+
+    /**
+     * @return the changes of the table, observed with a listener on its cache registered on first use
+     */
+    synchronized ChangeFeed getChangeFeed(RemoteCache<?, ?> cache, String tableName) {
+        Map<String, ChangeFeed> feeds = this.changeFeeds.get(cache);
+        if (feeds == null) {
+            feeds = new HashMap<>();
+            this.changeFeeds.put(cache, feeds);
+        }
+        ChangeFeed feed = feeds.get(tableName);
+        if (feed == null) {
+            feed = new ChangeFeed(MAX_CHANGES);
+            cache.addClientListener(feed);
+            feeds.put(tableName, feed);
+            startListenerTimer();
+        }
+        return feed;
+    }
+
+    /**
+     * @return the listener that invalidates the results of the cache, registered on first use
+     */
+    ResultCache.Invalidator getResultInvalidator(RemoteCache<?, ?> cache) {
+        ResultCache.Invalidator invalidator = getResultCache().getInvalidator(cache);
+        startListenerTimer();
+        return invalidator;
+    }
+
+    private synchronized void startListenerTimer() {
+        if (this.listenerTimer == null) {
+            // there is no notification when the translator is stopped, the idle listeners are removed instead
+            this.listenerTimer = new Timer("Infinispan Listeners", true); //$NON-NLS-1$
+            long period = Math.max(1000, Math.min(this.changeFeedTimeout, this.resultCacheTimeToLive) / 10);
+            this.listenerTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    removeIdleListeners();
+                }
+            }, period, period);
+        }
+    }
+
+    /**
+     * Removes the client listeners of the change feeds and of the result cache that are no longer used, stops the
+     * timer when none is left
+     */
+    synchronized void removeIdleListeners() {
+        removeIdleChangeFeeds();
+        boolean listening = !this.changeFeeds.isEmpty();
+        if (this.resultCache != null && this.resultCache.removeIdleInvalidators()) {
+            listening = true;
+        }
+        if (!listening && this.listenerTimer != null) {
+            this.listenerTimer.cancel();
+            this.listenerTimer = null;
+        }
+    }
+
+    /**
+     * Removes the listeners of the changes not read within the timeout
+     */
+    synchronized void removeIdleChangeFeeds() {
+        long idleSince = System.currentTimeMillis() - this.changeFeedTimeout;
+        Iterator<Map.Entry<RemoteCache<?, ?>, Map<String, ChangeFeed>>> caches = this.changeFeeds.entrySet().iterator();
+        while (caches.hasNext()) {
+            Map.Entry<RemoteCache<?, ?>, Map<String, ChangeFeed>> entry = caches.next();
+            Iterator<ChangeFeed> feeds = entry.getValue().values().iterator();
+            while (feeds.hasNext()) {
+                ChangeFeed feed = feeds.next();
+                if (feed.getLastRead() < idleSince) {
+                    feeds.remove();
+                    try {
+                        entry.getKey().removeClientListener(feed);
+                    } catch (RuntimeException e) {
+                        LogManager.logDetail(LogConstants.CTX_CONNECTOR, e,
+                                "Could not remove the change listener"); //$NON-NLS-1$
+                    }
+                }
+            }
+            if (entry.getValue().isEmpty()) {
+                caches.remove();
+            }
+        }
+    }
+
+    /**
+     * @return null if the results are not to be kept
+     */
+    ResultCache getResultCache() {
+        if (this.resultCacheSize <= 0) {
+            return null;
+        }
+        if (this.resultCache == null) {
+            synchronized (this) {
+                if (this.resultCache == null) {
+                    this.resultCache = new ResultCache(this.resultCacheSize, this.resultCacheTimeToLive);
+                }
+            }
+        }
+        return this.resultCache;
+    }
+
+    Executor getPrefetchExecutor() {
+        if (this.prefetchExecutor == null) {
+            synchronized (this) {
+                if (this.prefetchExecutor == null) {
+                    this.prefetchExecutor = ExecutorUtils.newFixedThreadPool(
+                            Runtime.getRuntime().availableProcessors(), "Infinispan Prefetch"); //$NON-NLS-1$
+                }
+            }
+        }
+        return this.prefetchExecutor;
+    }
+
+    /**
+     * Executor of the segment scan workers, apart from the prefetch as the workers wait for their batches to be read
+     */
+    Executor getScanExecutor() {
+        if (this.scanExecutor == null) {
+            synchronized (this) {
+                if (this.scanExecutor == null) {
+                    this.scanExecutor = ExecutorUtils.newFixedThreadPool(
+                            Runtime.getRuntime().availableProcessors(), "Infinispan Scan"); //$NON-NLS-1$
+                }
+            }
+        }
+        return this.scanExecutor;
+    }
+
+    @TranslatorProperty(display="LOB Cache Name", description="Name of the cache where the BLOB, CLOB and XML values "
+            + "larger than the chunk size are stored in chunks. When not set, the values are stored inline in the document",
+            advanced=true)
+    public String getLobCacheName() {
+        return lobCacheName;
+    }
+
+    public void setLobCacheName(String lobCacheName) {
+        this.lobCacheName = lobCacheName;
+    }
+
+    @TranslatorProperty(display="LOB Chunk Size", description="Size in bytes of the chunks the large objects are "
+            + "stored in, see LobCacheName", advanced=true)
+    public int getLobChunkSize() {
+        return lobChunkSize;
+    }
+
+    public void setLobChunkSize(int lobChunkSize) {
+        this.lobChunkSize = lobChunkSize;
+    }
+
     @Override
     public boolean supportsLikeCriteria() {
         return true;
@@ -187,7 +546,7 @@ public class InfinispanExecutionFactory extends ExecutionFactory<ConnectionFacto
 
     @Override
     public boolean supportsNotCriteria() {
-        return false;
+        return true;
     }
 
     @Override
@@ -216,7 +575,7 @@ public class InfinispanExecutionFactory extends ExecutionFactory<ConnectionFacto
     }
     @Override
     public boolean supportsAggregatesSum() {
-        return false;
+        return true;
     }
 
     @Override
@@ -45,6 +45,9 @@ public class InfinispanPlugin {
 		TEIID25010,
 		TEIID25011,
 		TEIID25012,
-		TEIID25013
+		TEIID25013,
+		TEIID25014,
+		TEIID25015,
+		TEIID25017
 	}
 }
@@ -21,17 +21,48 @@
  */
 package org.teiid.translator.infinispan.hotrod;
 
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLXML;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.infinispan.client.hotrod.RemoteCache;
 import org.infinispan.client.hotrod.RemoteCacheManager;
+import org.infinispan.client.hotrod.Search;
+import org.infinispan.protostream.BaseMarshaller;
+import org.infinispan.query.dsl.Query;
 import org.teiid.infinispan.api.InfinispanConnection;
+import org.teiid.infinispan.api.InfinispanDocument;
+import org.teiid.infinispan.api.NearCache;
+import org.teiid.language.AggregateFunction;
+import org.teiid.language.AndOr;
+import org.teiid.language.ColumnReference;
+import org.teiid.language.Comparison;
+import org.teiid.language.Comparison.Operator;
+import org.teiid.language.Condition;
+import org.teiid.language.DerivedColumn;
+import org.teiid.language.Expression;
+import org.teiid.language.In;
+import org.teiid.language.LanguageUtil;
+import org.teiid.language.Literal;
+import org.teiid.language.NamedTable;
 import org.teiid.language.QueryExpression;
 import org.teiid.language.Select;
+import org.teiid.language.visitor.CollectorVisitor;
 import org.teiid.language.visitor.SQLStringVisitor;
 import org.teiid.logging.LogConstants;
 import org.teiid.logging.LogManager;
 import org.teiid.metadata.AbstractMetadataRecord;
+import org.teiid.metadata.Column;
+import org.teiid.metadata.KeyRecord;
 import org.teiid.metadata.RuntimeMetadata;
 import org.teiid.metadata.Table;
 import org.teiid.translator.DataNotAvailableException;
@@ -41,17 +72,39 @@ import org.teiid.translator.TranslatorException;
 import org.teiid.translator.infinispan.hotrod.DocumentFilter.Action;
 
 public class InfinispanQueryExecution implements ResultSetExecution {
+    // parts of a split query queried at the same time, when the batches are prefetched
+    static final int MAX_PREFETCHED_SPLITS = 4;
 
     private QueryExpression command;
     private InfinispanConnection connection;
     private RuntimeMetadata metadata;
     private ExecutionContext executionContext;
     private InfinispanResponse results;
-    private TeiidTableMarsheller marshaller;
+    // the responses of the split query that are read after the current one
+    private List<InfinispanResponse> pendingResults;
+    // rows returned so far, when DISTINCT is not answered by the query
+    private Set<List<Object>> distinctRows;
+    // offset and remaining rows of the limit applied after the rows are made distinct, -1 when not limited
+    private int distinctOffset;
+    private int distinctLimit = -1;
+    // rows from, or to be kept in the result cache
+    private Iterator<List<?>> cachedRows;
+    private ResultCache.Invalidator invalidator;
+    private String resultKey;
+    private long resultVersion;
+    private List<List<?>> resultRows;
+    private BaseMarshaller<?> marshaller;
+    private InfinispanExecutionFactory translator;
+    private LobStore lobStore;
+    // large object columns of the rows projected by the server, see #resolveLobs
+    private Class<?>[] lobTypes;
+    // sorts the rows expanded from the ordered documents
+    private RowSorter sorter;
 
     public InfinispanQueryExecution(InfinispanExecutionFactory translator,
             QueryExpression command, ExecutionContext executionContext,
             RuntimeMetadata metadata, InfinispanConnection connection) throws TranslatorException {
+        this.translator = translator;
         this.command = command;
         this.connection = connection;
         this.metadata = metadata;
@@ -62,54 +115,784 @@ public class InfinispanQueryExecution implements ResultSetExecution {
     public void execute() throws TranslatorException {
         try {
             final IckleConvertionVisitor visitor = new IckleConvertionVisitor(metadata, false);
+            visitor.setUseParameters(true);
             visitor.append(this.command);
             Table table = visitor.getParentTable();
             String queryStr = visitor.getQuery();
-            LogManager.logDetail(LogConstants.CTX_CONNECTOR, "SourceQuery:", queryStr);
-
-            DocumentFilter docFilter = null;
-            if (queryStr.startsWith("FROM ") && ((Select)command).getWhere() != null) {
-                SQLStringVisitor ssv = new SQLStringVisitor() {
-                    @Override
-                    public String getName(AbstractMetadataRecord object) {
-                        return object.getName();
-                    }
-                };
-                ssv.append(((Select)command).getWhere());
-                docFilter = new ComplexDocumentFilter(visitor.getParentNamedTable(), visitor.getQueryNamedTable(),
-                        this.metadata, ssv.toString(), Action.ADD);
+            if (this.command instanceof Select && ((Select)this.command).isDistinct()
+                    && !visitor.isDistinctByGroupBy()) {
+                this.distinctRows = new HashSet<>();
+                if (visitor.getDistinctLimit() != null) {
+                    this.distinctOffset = visitor.getDistinctLimit().getRowOffset();
+                    this.distinctLimit = visitor.getDistinctLimit().getRowLimit();
+                }
+            }
+            if (this.command instanceof Select && visitor.getRowOrderBy() != null) {
+                this.sorter = new RowSorter(visitor.getRowOrderBy(), ((Select)this.command).getDerivedColumns(),
+                        visitor.getDocumentSortKeys(), visitor.getRowOrderLimit(), this.translator.getSortBufferRows());
+            }
+            this.lobStore = LobStore.getLobStore(this.translator, this.connection);
+
+            ResultCache resultCache = this.translator.getResultCache();
+            if (resultCache != null && this.lobStore == null) {
+                this.invalidator = this.translator.getResultInvalidator(getCache(table, this.connection));
+                // the same Ickle query may stand for different rows, e.g. when the documents are returned
+                this.resultKey = queryStr + '\n' + this.command;
+                List<List<?>> rows = resultCache.get(this.invalidator, this.resultKey);
+                if (rows != null) {
+                    LogManager.logDetail(LogConstants.CTX_CONNECTOR, "SourceQuery: cached", queryStr); //$NON-NLS-1$
+                    this.cachedRows = rows.iterator();
+                    return;
+                }
+                this.resultVersion = resultCache.getVersion(this.invalidator);
+                this.resultRows = new ArrayList<>();
             }
 
-            this.marshaller = MarshallerBuilder.getMarshaller(table, this.metadata, docFilter);
+            AggregateTask task = null;
+            if (this.translator.getAggregateTaskName() != null && this.command instanceof Select) {
+                task = AggregateTask.getAggregateTask((Select)this.command, visitor);
+            }
+            if (task != null) {
+                executeAggregateTask(visitor, task);
+                return;
+            }
+
+            if (this.command instanceof Select && isCount((Select)this.command) && visitor.isSingleRowPerDocument()
+                    && visitor.getQueryNamedTable().getMetadataObject().equals(table)) {
+                executeCount(visitor);
+                return;
+            }
+
+            KeyLookup lookup = null;
+            if (this.command instanceof Select && this.translator.isKeyLookup()) {
+                lookup = getKeyLookup((Select)this.command, visitor);
+            }
+            if (lookup != null) {
+                executeKeyLookup(visitor, lookup);
+                return;
+            }
+
+            // page on the primary key when the results are not ordered otherwise
+            String keyAttribute = null;
+            int keyIndex = -1;
+            Column keyColumn = visitor.getKeysetColumn();
+            if (keyColumn != null) {
+                keyAttribute = MarshallerBuilder.getDocumentAttributeName(keyColumn, false, this.metadata);
+            }
+
+            ClientConditions scan = null;
+            if (this.translator.isIndexFreeScan() && this.command instanceof Select
+                    && isDedicatedCache(table, this.connection)) {
+                scan = getScanConditions((Select)this.command, visitor);
+            }
+            if (scan != null) {
+                // the documents come in no particular order
+                keyAttribute = null;
+            }
+            boolean documents = queryStr.startsWith("FROM ") || scan != null;
+            DocumentFilter scanFilter = null;
+
+            if (queryStr.startsWith("FROM ") && visitor.isSingleRowPerDocument() && scan == null) {
+                // no one-2-many children involved, the where clause is fully evaluated by the server, decode the
+                // selected fields directly into the result rows.
+                List<String> columns = visitor.getProjectedDocumentAttributes();
+                if (keyAttribute != null) {
+                    keyIndex = columns.indexOf(keyAttribute);
+                    if (keyIndex == -1) {
+                        // read after the selected columns, and left out of the row
+                        columns = new ArrayList<>(columns);
+                        columns.add(keyAttribute);
+                        keyIndex = columns.size() - 1;
+                    }
+                }
+                this.marshaller = MarshallerBuilder.getRowMarshaller(table, this.metadata, columns, this.lobStore);
+            } else {
+                DocumentFilter docFilter = null;
+                Set<String> projection = null;
+                if (documents) {
+                    // documents are returned, only decode what is needed to build the result rows
+                    projection = new HashSet<>(visitor.getProjectedDocumentAttributes());
+                    projection.addAll(visitor.getNestedDocumentNames());
+                    if (keyAttribute != null) {
+                        projection.add(keyAttribute);
+                    }
+                } else if (keyAttribute != null) {
+                    // server projection, the key can only be used when selected
+                    keyIndex = visitor.getProjectedDocumentAttributes().indexOf(keyAttribute);
+                    if (keyIndex == -1) {
+                        keyAttribute = null;
+                    }
+                }
+                Condition childCondition = null;
+                if (scan != null) {
+                    childCondition = LanguageUtil.combineCriteria(scan.childConditions);
+                    Condition parentCondition = LanguageUtil.combineCriteria(scan.parentConditions);
+                    if (parentCondition != null) {
+                        scanFilter = new ComplexDocumentFilter(visitor.getParentNamedTable(), null, this.metadata,
+                                toFilterString(parentCondition), Action.ADD);
+                        projection.addAll(scanFilter.getDocumentAttributes());
+                    }
+                } else if (queryStr.startsWith("FROM ") && ((Select)command).getWhere() != null) {
+                    childCondition = getChildCondition(((Select)command).getWhere(), table);
+                }
+                if (childCondition != null) {
+                    docFilter = new ComplexDocumentFilter(visitor.getParentNamedTable(), visitor.getQueryNamedTable(),
+                            this.metadata, toFilterString(childCondition), Action.ADD);
+                    projection.addAll(docFilter.getDocumentAttributes());
+                }
+                this.marshaller = MarshallerBuilder.getMarshaller(table, this.metadata, docFilter, projection,
+                        this.lobStore);
+                if (this.lobStore != null && !documents) {
+                    // the server projects the values, the marshaller is not involved
+                    this.lobTypes = getLobTypes(this.command.getProjectedQuery().getDerivedColumns());
+                }
+            }
             this.connection.registerMarshaller(this.marshaller);
 
             // if the message in defined in different cache than the default, switch it out now.
             RemoteCache<Object, Object> cache =  getCache(table, connection);
-            results = new InfinispanResponse(cache, queryStr, this.executionContext.getBatchSize(), visitor.getRowLimit(),
-                    visitor.getRowOffset(), visitor.getProjectedDocumentAttributes(), visitor.getDocumentNode());
+            List<Condition> splits = null;
+            if (scan != null) {
+                LogManager.logDetail(LogConstants.CTX_CONNECTOR, "SourceQuery: scan of", cache.getName(), //$NON-NLS-1$
+                        ((Select)this.command).getWhere());
+                SegmentScan segmentScan = new SegmentScan(cache, this.executionContext.getBatchSize(),
+                        this.executionContext, this.connection, this.marshaller, scanFilter);
+                segmentScan.start(this.translator.getScanExecutor(), this.translator.isParallelScan());
+                this.results = new InfinispanResponse(segmentScan, visitor.getProjectedDocumentAttributes(),
+                        visitor.getNestedDocuments());
+                return;
+            }
+            if (this.command instanceof Select) {
+                splits = getSplitConditions((Select)this.command, table);
+            }
+            if (splits == null) {
+                this.results = createResponse(visitor, cache, keyAttribute, keyIndex);
+                if (this.translator.isPrefetchBatches()) {
+                    this.results.setPrefetch(this.translator.getPrefetchExecutor(), this.executionContext,
+                            this.connection, this.marshaller);
+                }
+            } else {
+                // the rows are returned one part of the values after the other, with prefetch the next parts are
+                // queried in parallel, a few at a time
+                Select select = (Select)this.command;
+                Condition where = select.getWhere();
+                this.pendingResults = new ArrayList<>();
+                try {
+                    for (Condition split : splits) {
+                        select.setWhere(split);
+                        IckleConvertionVisitor splitVisitor = new IckleConvertionVisitor(metadata, false);
+                        splitVisitor.setUseParameters(true);
+                        splitVisitor.append(select);
+                        InfinispanResponse response = createResponse(splitVisitor, cache, keyAttribute, keyIndex);
+                        if (this.translator.isPrefetchBatches()) {
+                            response.setPrefetch(this.translator.getPrefetchExecutor(), this.executionContext,
+                                    this.connection, this.marshaller);
+                        }
+                        this.pendingResults.add(response);
+                    }
+                } finally {
+                    select.setWhere(where);
+                }
+                this.results = this.pendingResults.remove(0);
+                startPendingResults();
+            }
         } finally {
             this.connection.unRegisterMarshaller(this.marshaller);
         }
     }
 
+    /**
+     * Count the documents with the result size of the query, or the size of the cache, without reading them.
+     */
+    private void executeCount(IckleConvertionVisitor visitor) throws TranslatorException {
+        Table table = visitor.getParentTable();
+        RemoteCache<Object, Object> cache = getCache(table, this.connection);
+        int count = 0;
+        if (((Select)this.command).getWhere() == null && this.translator.isCountFromCacheSize()) {
+            LogManager.logDetail(LogConstants.CTX_CONNECTOR, "SourceQuery: size of", cache.getName()); //$NON-NLS-1$
+            count = cache.size();
+        } else {
+            // the document read along with the size is not decoded
+            this.marshaller = MarshallerBuilder.getMarshaller(table, this.metadata, null,
+                    Collections.<String>emptySet());
+            this.connection.registerMarshaller(this.marshaller);
+            String queryStr = visitor.getCountQuery();
+            LogManager.logDetail(LogConstants.CTX_CONNECTOR, "SourceQuery:", queryStr, visitor.getParameters()); //$NON-NLS-1$
+            Query query = InfinispanResponse.bind(Search.getQueryFactory(cache).create(queryStr),
+                    visitor.getParameters());
+            query.maxResults(1);
+            count = query.getResultSize();
+        }
+        this.results = new InfinispanResponse(Collections.<Object>singletonList(new Object[] {count}),
+                visitor.getProjectedDocumentAttributes(), visitor.getNestedDocuments());
+    }
+
+    /**
+     * Aggregate the child documents with the task on the server, instead of reading the parent documents.
+     */
+    private void executeAggregateTask(IckleConvertionVisitor visitor, AggregateTask task) throws TranslatorException {
+        RemoteCache<Object, Object> cache = getCache(visitor.getParentTable(), this.connection);
+        String taskName = this.translator.getAggregateTaskName();
+        Map<String, Object> params = task.getParameters(visitor);
+        LogManager.logDetail(LogConstants.CTX_CONNECTOR, "SourceQuery: task", taskName, params); //$NON-NLS-1$
+        Object result = cache.execute(taskName, params);
+        this.results = new InfinispanResponse(Collections.<Object>singletonList(task.getRow(result)),
+                visitor.getProjectedDocumentAttributes(), visitor.getNestedDocuments());
+    }
+
+    /**
+     * @return true for a COUNT(*) of a single table
+     */
+    static boolean isCount(Select select) {
+        if (select.getDerivedColumns().size() != 1 || select.getGroupBy() != null || select.getHaving() != null
+                || select.getLimit() != null || select.getFrom().size() != 1
+                || !(select.getFrom().get(0) instanceof NamedTable)) {
+            return false;
+        }
+        Expression expr = select.getDerivedColumns().get(0).getExpression();
+        if (!(expr instanceof AggregateFunction)) {
+            return false;
+        }
+        AggregateFunction function = (AggregateFunction)expr;
+        return function.getName().equalsIgnoreCase(AggregateFunction.COUNT) && function.getParameters().isEmpty()
+                && !function.isDistinct() && function.getCondition() == null;
+    }
+
+    private InfinispanResponse createResponse(IckleConvertionVisitor visitor, RemoteCache<Object, Object> cache,
+            String keyAttribute, int keyIndex) throws TranslatorException {
+        String queryStr = visitor.getQuery();
+        if (keyAttribute != null) {
+            queryStr = visitor.getKeysetQuery(true);
+        }
+        LogManager.logDetail(LogConstants.CTX_CONNECTOR, "SourceQuery:", queryStr, visitor.getParameters()); //$NON-NLS-1$
+        InfinispanResponse response = new InfinispanResponse(cache, queryStr, this.executionContext.getBatchSize(),
+                visitor.getRowLimit(), visitor.getRowOffset(), visitor.getProjectedDocumentAttributes(),
+                visitor.getNestedDocuments());
+        response.setParameters(visitor.getParameters());
+        if (keyAttribute != null) {
+            response.setKeyset(visitor.getKeysetQuery(false), keyAttribute, keyIndex,
+                    visitor.getProjectedDocumentAttributes().size());
+        }
+        return response;
+    }
+
+    /**
+     * Read the documents by their keys, instead of querying the index. The rest of the where clause is evaluated
+     * here, the conjuncts on the child documents while the documents are read.
+     */
+    private void executeKeyLookup(IckleConvertionVisitor visitor, KeyLookup lookup) throws TranslatorException {
+        Table table = visitor.getParentTable();
+        Set<String> projection = new HashSet<>(visitor.getProjectedDocumentAttributes());
+        projection.addAll(visitor.getNestedDocumentNames());
+
+        DocumentFilter childFilter = null;
+        Condition childCondition = LanguageUtil.combineCriteria(lookup.childConditions);
+        if (childCondition != null) {
+            childFilter = new ComplexDocumentFilter(visitor.getParentNamedTable(), visitor.getQueryNamedTable(),
+                    this.metadata, toFilterString(childCondition), Action.ADD);
+            projection.addAll(childFilter.getDocumentAttributes());
+        }
+        DocumentFilter parentFilter = null;
+        Condition parentCondition = LanguageUtil.combineCriteria(lookup.parentConditions);
+        if (parentCondition != null) {
+            parentFilter = new ComplexDocumentFilter(visitor.getParentNamedTable(), null, this.metadata,
+                    toFilterString(parentCondition), Action.ADD);
+            projection.addAll(parentFilter.getDocumentAttributes());
+        }
+
+        RemoteCache<Object, Object> cache = getCache(table, this.connection);
+        NearCache nearCache = null;
+        if (childFilter == null && this.lobStore == null) {
+            nearCache = this.connection.getNearCache(cache.getName());
+        }
+        if (nearCache != null) {
+            // the near cache is shared by all the queries, keep whole documents
+            this.marshaller = MarshallerBuilder.getMarshaller(table, this.metadata);
+        } else {
+            this.marshaller = MarshallerBuilder.getMarshaller(table, this.metadata, childFilter, projection,
+                    this.lobStore);
+        }
+        this.connection.registerMarshaller(this.marshaller);
+
+        Map<Object, Object> values = new HashMap<>();
+        Set<Object> keys = lookup.keys;
+        long version = 0;
+        if (nearCache != null) {
+            version = nearCache.getVersion();
+            keys = new LinkedHashSet<>();
+            for (Object key : lookup.keys) {
+                Object value = nearCache.get(key);
+                if (value != null) {
+                    values.put(key, value);
+                } else {
+                    keys.add(key);
+                }
+            }
+        }
+        LogManager.logDetail(LogConstants.CTX_CONNECTOR, "SourceQuery:", "get", keys); //$NON-NLS-1$ //$NON-NLS-2$
+        if (keys.size() == 1) {
+            Object key = keys.iterator().next();
+            values.put(key, cache.get(key));
+        } else if (keys.size() <= InfinispanExecutionFactory.MAX_SET_SIZE) {
+            if (!keys.isEmpty()) {
+                values.putAll(cache.getAll(keys));
+            }
+        } else {
+            // dependent join keys, read them in batches
+            Set<Object> batch = new HashSet<>();
+            Iterator<Object> iter = keys.iterator();
+            while (iter.hasNext()) {
+                batch.add(iter.next());
+                if (batch.size() == InfinispanExecutionFactory.MAX_SET_SIZE || !iter.hasNext()) {
+                    values.putAll(cache.getAll(batch));
+                    batch.clear();
+                }
+            }
+        }
+        if (nearCache != null) {
+            for (Object key : keys) {
+                Object value = values.get(key);
+                if (value instanceof InfinispanDocument) {
+                    nearCache.put(key, value, version);
+                }
+            }
+            LogManager.logDetail(LogConstants.CTX_CONNECTOR, nearCache);
+        }
+
+        List<Object> documents = new ArrayList<>();
+        for (Object key : lookup.keys) {
+            Object value = values.get(key);
+            if (!(value instanceof InfinispanDocument)) {
+                // not present, or an entry of another type in a shared cache
+                continue;
+            }
+            InfinispanDocument document = (InfinispanDocument)value;
+            if (parentFilter == null || parentFilter.matches(document.getProperties(),
+                    Collections.<String, Object>emptyMap())) {
+                documents.add(document);
+            }
+        }
+        this.results = new InfinispanResponse(documents, visitor.getProjectedDocumentAttributes(),
+                visitor.getNestedDocuments());
+    }
+
+    private static String toFilterString(Condition condition) {
+        SQLStringVisitor ssv = new SQLStringVisitor() {
+            @Override
+            public String getName(AbstractMetadataRecord object) {
+                return object.getName();
+            }
+        };
+        ssv.append(condition);
+        return ssv.toString();
+    }
+
     @Override
     public List<?> next() throws TranslatorException, DataNotAvailableException {
+        if (this.cachedRows != null) {
+            return this.cachedRows.hasNext() ? this.cachedRows.next() : null;
+        }
         try {
             this.connection.registerMarshaller(this.marshaller);
-            return results.getNextRow();
+            List<Object> row = nextDistinctRow();
+            if (row != null && this.lobTypes != null) {
+                resolveLobs(row);
+            }
+            if (this.resultRows != null) {
+                keepResult(row);
+            }
+            return row;
         } finally {
             this.connection.unRegisterMarshaller(this.marshaller);
         }
     }
 
+    private List<Object> nextDistinctRow() throws TranslatorException, DataNotAvailableException {
+        if (this.distinctRows == null) {
+            return nextOrderedRow();
+        }
+        while (this.distinctLimit != 0) {
+            List<Object> row = nextOrderedRow();
+            if (row == null) {
+                return null;
+            }
+            if (!this.distinctRows.add(row)) {
+                continue;
+            }
+            int maxRows = this.translator.getSortBufferRows();
+            if (this.distinctRows.size() > maxRows) {
+                // the rows are kept until the end of the results, unlike the engine's DISTINCT they are not spilled
+                throw new TranslatorException(InfinispanPlugin.Event.TEIID25017,
+                        InfinispanPlugin.Util.gs(InfinispanPlugin.Event.TEIID25017, maxRows));
+            }
+            if (this.distinctOffset > 0) {
+                this.distinctOffset--;
+                continue;
+            }
+            if (this.distinctLimit > 0) {
+                this.distinctLimit--;
+            }
+            return row;
+        }
+        return null;
+    }
+
+    private void keepResult(List<Object> row) {
+        if (row == null) {
+            this.translator.getResultCache().put(this.invalidator, this.resultKey, this.resultRows,
+                    this.resultVersion);
+            this.resultRows = null;
+        } else if (this.resultRows.size() < ResultCache.MAX_ROWS) {
+            this.resultRows.add(row);
+        } else {
+            this.resultRows = null;
+        }
+    }
+
+    private List<Object> nextOrderedRow() throws TranslatorException, DataNotAvailableException {
+        if (this.sorter == null) {
+            return nextRow();
+        }
+        List<Object> row = this.sorter.next();
+        while (row == null && this.sorter.needsRows()) {
+            List<Object> next = nextRow();
+            if (next == null) {
+                this.sorter.finish();
+            } else {
+                this.sorter.add(next);
+            }
+            row = this.sorter.next();
+        }
+        return row;
+    }
+
+    private List<Object> nextRow() throws TranslatorException, DataNotAvailableException {
+        List<Object> row = results.getNextRow();
+        while (row == null && this.pendingResults != null && !this.pendingResults.isEmpty()) {
+            this.results = this.pendingResults.remove(0);
+            startPendingResults();
+            row = results.getNextRow();
+        }
+        return row;
+    }
+
+    /**
+     * Start the prefetch of the current and the next few parts of the split query, see
+     * {@link #MAX_PREFETCHED_SPLITS}; nothing when the batches are not prefetched
+     */
+    private void startPendingResults() {
+        this.results.start();
+        for (int i = 0; i < Math.min(MAX_PREFETCHED_SPLITS - 1, this.pendingResults.size()); i++) {
+            this.pendingResults.get(i).start();
+        }
+    }
+
+    private static Class<?>[] getLobTypes(List<DerivedColumn> columns) {
+        Class<?>[] types = null;
+        for (int i = 0; i < columns.size(); i++) {
+            Class<?> type = columns.get(i).getExpression().getType();
+            if (Blob.class.isAssignableFrom(type) || Clob.class.isAssignableFrom(type)
+                    || SQLXML.class.isAssignableFrom(type)) {
+                if (types == null) {
+                    types = new Class<?>[columns.size()];
+                }
+                types[i] = type;
+            }
+        }
+        return types;
+    }
+
+    private void resolveLobs(List<Object> row) {
+        for (int i = 0; i < this.lobTypes.length; i++) {
+            if (this.lobTypes[i] != null && LobStore.isReference(row.get(i))) {
+                row.set(i, this.lobStore.read((byte[])row.get(i), this.lobTypes[i]));
+            }
+        }
+    }
+
     @Override
     public void close() {
+        if (this.results != null) {
+            this.results.close();
+        }
+        if (this.sorter != null) {
+            this.sorter.close();
+        }
+        if (this.pendingResults != null) {
+            for (InfinispanResponse response : this.pendingResults) {
+                response.close();
+            }
+        }
     }
 
     @Override
     public void cancel() throws TranslatorException {
     }
 
+    /**
+     * The where clause is pushed to Ickle as whole, but Ickle selects the parent documents, not the individual
+     * child documents. Only the conjuncts on the child columns need to be evaluated again for each child document.
+     *
+     * @return null if the server evaluated the whole condition
+     */
+    static Condition getChildCondition(Condition where, Table parentTable) {
+        List<Condition> childConditions = new ArrayList<>();
+        for (Condition condition : LanguageUtil.separateCriteriaByAnd(where)) {
+            for (ColumnReference ref : CollectorVisitor.collectElements(condition)) {
+                Column column = ref.getMetadataObject();
+                if (column == null || (!column.getParent().equals(parentTable)
+                        && !ProtobufMetadataProcessor.isPseudo(column))) {
+                    childConditions.add(condition);
+                    break;
+                }
+            }
+        }
+        return LanguageUtil.combineCriteria(childConditions);
+    }
+
+    /**
+     * The conjuncts of the where clause that are evaluated on the client, split into the ones on the parent document,
+     * and the ones that involve the child documents.
+     */
+    static class ClientConditions {
+        final List<Condition> parentConditions = new ArrayList<>();
+        final List<Condition> childConditions = new ArrayList<>();
+
+        /**
+         * @return false if the condition can not be evaluated on the client
+         */
+        boolean add(Condition condition, Table parentTable) {
+            boolean parentOnly = true;
+            for (ColumnReference ref : CollectorVisitor.collectElements(condition)) {
+                Column column = ref.getMetadataObject();
+                if (column == null) {
+                    return false;
+                }
+                if (!column.getParent().equals(parentTable)) {
+                    // child or pseudo column
+                    parentOnly = false;
+                } else if (ProtobufMetadataProcessor.getParentTag(column) != -1) {
+                    // one-2-one columns are not evaluated on the client
+                    return false;
+                }
+            }
+            if (parentOnly) {
+                this.parentConditions.add(condition);
+            } else {
+                this.childConditions.add(condition);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Primary key values the where clause restricts the query to, and the rest of the where clause.
+     */
+    static class KeyLookup extends ClientConditions {
+        final Set<Object> keys = new LinkedHashSet<>();
+    }
+
+    private static boolean isClientQuery(Select select) {
+        if (select.getGroupBy() != null || select.getHaving() != null || select.getOrderBy() != null
+                || select.getLimit() != null || select.isDistinct()) {
+            return false;
+        }
+        for (DerivedColumn column : select.getDerivedColumns()) {
+            if (!(column.getExpression() instanceof ColumnReference)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return null unless the where clause has an equality or IN predicate on the primary key, and everything else can
+     *         be evaluated on the documents read.
+     */
+    static KeyLookup getKeyLookup(Select select, IckleConvertionVisitor visitor) {
+        if (select.getWhere() == null || !isClientQuery(select) || select.getFrom().size() != 1
+                || !(select.getFrom().get(0) instanceof NamedTable)) {
+            return null;
+        }
+        Table parentTable = visitor.getParentTable();
+        KeyRecord pk = parentTable.getPrimaryKey();
+        if (pk == null || pk.getColumns().size() != 1
+                || ProtobufMetadataProcessor.getParentTag(pk.getColumns().get(0)) != -1) {
+            return null;
+        }
+        Column pkColumn = pk.getColumns().get(0);
+
+        KeyLookup lookup = new KeyLookup();
+        boolean found = false;
+        for (Condition condition : LanguageUtil.separateCriteriaByAnd(select.getWhere())) {
+            if (!found && addKeys(condition, pkColumn, visitor, lookup.keys)) {
+                found = true;
+                continue;
+            }
+            if (!lookup.add(condition, parentTable)) {
+                return null;
+            }
+        }
+        return found ? lookup : null;
+    }
+
+    /**
+     * The index is of no use when there is no where clause, or it is only on the fields that are not indexed; read
+     * all the entries of the cache instead, and evaluate the where clause on the client.
+     *
+     * @return null if the query is better served by the query engine
+     */
+    static ClientConditions getScanConditions(Select select, IckleConvertionVisitor visitor) {
+        if (!isClientQuery(select)) {
+            return null;
+        }
+        // the join criteria may also restrict the documents
+        if (select.getFrom().size() != 1 || !(select.getFrom().get(0) instanceof NamedTable)) {
+            return null;
+        }
+        ClientConditions conditions = new ClientConditions();
+        if (select.getWhere() == null) {
+            return conditions;
+        }
+        for (Condition condition : LanguageUtil.separateCriteriaByAnd(select.getWhere())) {
+            for (ColumnReference ref : CollectorVisitor.collectElements(condition)) {
+                Column column = ref.getMetadataObject();
+                if (column != null && ProtobufMetadataProcessor.isIndexed(visitor.normalizePseudoColumn(column))) {
+                    return null;
+                }
+            }
+            if (!conditions.add(condition, visitor.getParentTable())) {
+                return null;
+            }
+        }
+        return conditions;
+    }
+
+    private static boolean addKeys(Condition condition, Column pkColumn, IckleConvertionVisitor visitor,
+            Set<Object> keys) {
+        Set<Object> values = new LinkedHashSet<>();
+        ColumnReference column = collectValues(condition, values);
+        if (column == null || !isKeyColumn(column, pkColumn, visitor)) {
+            return false;
+        }
+        keys.addAll(values);
+        return true;
+    }
+
+    /**
+     * Collect the values of an equality or IN predicate, or of a disjunction of them on the same column; which is
+     * also the shape of the dependent join criteria.
+     *
+     * @return the column compared, null if the condition is not of that shape
+     */
+    static ColumnReference collectValues(Condition condition, Set<Object> values) {
+        if (condition instanceof AndOr) {
+            AndOr andOr = (AndOr)condition;
+            if (andOr.getOperator() != AndOr.Operator.OR) {
+                return null;
+            }
+            ColumnReference left = collectValues(andOr.getLeftCondition(), values);
+            ColumnReference right = collectValues(andOr.getRightCondition(), values);
+            if (left == null || right == null || left.getMetadataObject() == null
+                    || !left.getMetadataObject().equals(right.getMetadataObject())) {
+                return null;
+            }
+            return left;
+        } else if (condition instanceof Comparison) {
+            Comparison comparison = (Comparison)condition;
+            if (comparison.getOperator() != Operator.EQ) {
+                return null;
+            }
+            Expression column = comparison.getLeftExpression();
+            Expression value = comparison.getRightExpression();
+            if (value instanceof ColumnReference) {
+                column = comparison.getRightExpression();
+                value = comparison.getLeftExpression();
+            }
+            if (column instanceof ColumnReference && isKeyValue(value)) {
+                values.add(((Literal)value).getValue());
+                return (ColumnReference)column;
+            }
+        } else if (condition instanceof In) {
+            In in = (In)condition;
+            if (in.isNegated() || !(in.getLeftExpression() instanceof ColumnReference)) {
+                return null;
+            }
+            for (Expression value : in.getRightExpressions()) {
+                if (!isKeyValue(value)) {
+                    return null;
+                }
+            }
+            for (Expression value : in.getRightExpressions()) {
+                values.add(((Literal)value).getValue());
+            }
+            return (ColumnReference)in.getLeftExpression();
+        }
+        return null;
+    }
+
+    /**
+     * The dependent join criteria on a column of the parent document comes as a disjunction of IN predicates, when
+     * there are more values than one IN predicate can have. Split the where clause into one where clause for each
+     * {@link InfinispanExecutionFactory#MAX_SET_SIZE} values, so that each can be queried separately. The values are
+     * distinct, so a document is returned by at most one of the queries.
+     *
+     * @return null if the query can not, or need not to be split
+     */
+    static List<Condition> getSplitConditions(Select select, Table parentTable) {
+        if (select.getWhere() == null || !isClientQuery(select)) {
+            return null;
+        }
+        List<Condition> conjuncts = LanguageUtil.separateCriteriaByAnd(select.getWhere());
+        for (int i = 0; i < conjuncts.size(); i++) {
+            Set<Object> values = new LinkedHashSet<>();
+            ColumnReference ref = collectValues(conjuncts.get(i), values);
+            if (ref == null || values.size() <= InfinispanExecutionFactory.MAX_SET_SIZE) {
+                continue;
+            }
+            Column column = ref.getMetadataObject();
+            if (!column.getParent().equals(parentTable) || ProtobufMetadataProcessor.getParentTag(column) != -1
+                    || ProtobufMetadataProcessor.isPseudo(column)) {
+                // a document may match the values of more than one of the queries
+                continue;
+            }
+            List<Condition> others = new ArrayList<>(conjuncts);
+            others.remove(i);
+            List<Condition> parts = new ArrayList<>();
+            List<Expression> chunk = new ArrayList<>();
+            Iterator<Object> iter = values.iterator();
+            while (iter.hasNext()) {
+                chunk.add(new Literal(iter.next(), ref.getType()));
+                if (chunk.size() == InfinispanExecutionFactory.MAX_SET_SIZE || !iter.hasNext()) {
+                    List<Condition> part = new ArrayList<>(others);
+                    part.add(new In(ref, chunk, false));
+                    parts.add(LanguageUtil.combineCriteria(part));
+                    chunk = new ArrayList<>();
+                }
+            }
+            return parts;
+        }
+        return null;
+    }
+
+    private static boolean isKeyColumn(Expression expr, Column pkColumn, IckleConvertionVisitor visitor) {
+        return expr instanceof ColumnReference && ((ColumnReference)expr).getMetadataObject() != null
+                && pkColumn.equals(visitor.normalizePseudoColumn(((ColumnReference)expr).getMetadataObject()));
+    }
+
+    private static boolean isKeyValue(Expression expr) {
+        return expr instanceof Literal && !((Literal)expr).isMultiValued() && ((Literal)expr).getValue() != null;
+    }
+
+    /**
+     * @return true if the table defines a cache of its own, other than the default cache of the connection; only then
+     *         all the entries of the cache are known to be its documents.
+     */
+    static boolean isDedicatedCache(Table table, InfinispanConnection connection) throws TranslatorException {
+        String cacheName = table.getProperty(ProtobufMetadataProcessor.CACHE, false);
+        return cacheName != null && !cacheName.equals(connection.getCache().getName());
+    }
+
     static RemoteCache<Object, Object> getCache(Table table, InfinispanConnection connection) throws TranslatorException {
         RemoteCache<Object, Object> cache = (RemoteCache<Object, Object>)connection.getCache();
         String cacheName = table.getProperty(ProtobufMetadataProcessor.CACHE, false);
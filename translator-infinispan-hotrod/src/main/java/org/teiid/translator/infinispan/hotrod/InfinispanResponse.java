@@ -21,20 +21,28 @@
  */
 package org.teiid.translator.infinispan.hotrod;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import org.infinispan.client.hotrod.RemoteCache;
 import org.infinispan.client.hotrod.Search;
+import org.infinispan.protostream.BaseMarshaller;
 import org.infinispan.query.dsl.Query;
 import org.infinispan.query.dsl.QueryFactory;
+import org.teiid.infinispan.api.InfinispanConnection;
 import org.teiid.infinispan.api.InfinispanDocument;
-import org.teiid.translator.document.DocumentNode;
+import org.teiid.translator.DataNotAvailableException;
+import org.teiid.translator.ExecutionContext;
+import org.teiid.translator.TranslatorException;
 
 public class InfinispanResponse {
+    private QueryFactory queryFactory;
     private Query query;
     private int batchSize;
     private Integer offset;
@@ -42,23 +50,128 @@ public class InfinispanResponse {
     private boolean lastBatch = false;
     private Iterator<Object> responseIter;
     private List<String> projected;
-    private DocumentNode documentNode;
-    private List<Map<String, Object>> currentDocumentRows;
+    private Map<String, Boolean> nestedDocuments;
+    private Iterator<List<Object>> currentDocumentRows;
+    private String keysetQueryStr;
+    private Query keysetQuery;
+    private String keyAttribute;
+    private int keyIndex = -1;
+    private int rowWidth = -1;
+    private Object lastKey;
+    private Executor prefetchExecutor;
+    private ExecutionContext executionContext;
+    private InfinispanConnection connection;
+    private BaseMarshaller<?> marshaller;
+    private FutureTask<List<Object>> prefetch;
+    private int requestedBatch;
+    private SegmentScan scan;
+    private Map<String, Object> parameters;
 
     public InfinispanResponse(RemoteCache<Object, Object> cache, String queryStr, int batchSize, Integer limit,
-            Integer offset, List<String> projected, DocumentNode documentNode) {
+            Integer offset, List<String> projected, Map<String, Boolean> nestedDocuments) {
+        this(Search.getQueryFactory(cache), queryStr, batchSize, limit, offset, projected, nestedDocuments);
+    }
+
+    InfinispanResponse(QueryFactory queryFactory, String queryStr, int batchSize, Integer limit,
+            Integer offset, List<String> projected, Map<String, Boolean> nestedDocuments) {
         this.batchSize = batchSize;
         this.offset = offset == null?0:offset;
         this.limit = limit;
         this.projected = projected;
-        this.documentNode = documentNode;
+        this.nestedDocuments = nestedDocuments;
+
+        this.queryFactory = queryFactory;
+        this.query = this.queryFactory.create(queryStr);
+    }
+
+    /**
+     * Response over the documents that are already read, e.g. by their keys.
+     */
+    InfinispanResponse(List<Object> documents, List<String> projected, Map<String, Boolean> nestedDocuments) {
+        this.projected = projected;
+        this.nestedDocuments = nestedDocuments;
+        this.responseIter = documents.iterator();
+        this.lastBatch = true;
+    }
+
+    /**
+     * Response over the documents read by a scan of the cache segments, see {@link SegmentScan}
+     */
+    InfinispanResponse(SegmentScan scan, List<String> projected, Map<String, Boolean> nestedDocuments) {
+        this.scan = scan;
+        this.projected = projected;
+        this.nestedDocuments = nestedDocuments;
+    }
+
+    /**
+     * Page on the primary key instead of the offset. The query given in the constructor must be ordered by the key,
+     * the pages after the first one are read with the given query, with the last key read as parameter.
+     *
+     * @param keyAttribute document attribute of the key, when the results are documents
+     * @param keyIndex position of the key, when the results are rows
+     * @param rowWidth number of the columns returned from a row, the key may follow them; -1 for all
+     */
+    void setKeyset(String keysetQueryStr, String keyAttribute, int keyIndex, int rowWidth) {
+        this.keysetQueryStr = keysetQueryStr;
+        this.keyAttribute = keyAttribute;
+        this.keyIndex = keyIndex;
+        this.rowWidth = rowWidth;
+    }
+
+    /**
+     * Fetch the next batch in the background while the rows of the current batch are returned. The marshaller is
+     * registered on the fetching thread, as the connection only knows the marshallers of the calling thread.
+     */
+    void setPrefetch(Executor executor, ExecutionContext context, InfinispanConnection connection,
+            BaseMarshaller<?> marshaller) {
+        this.prefetchExecutor = executor;
+        this.executionContext = context;
+        this.connection = connection;
+        this.marshaller = marshaller;
+    }
 
-        QueryFactory qf = Search.getQueryFactory(cache);
-        this.query = qf.create(queryStr);
+    /**
+     * Values of the named parameters of the queries, see {@link IckleConvertionVisitor#getParameters()}
+     */
+    void setParameters(Map<String, Object> parameters) {
+        this.parameters = parameters;
+    }
+
+    static Query bind(Query query, Map<String, Object> parameters) {
+        if (parameters != null && !parameters.isEmpty()) {
+            query.setParameters(parameters);
+        }
+        return query;
+    }
+
+    /**
+     * Start reading the first batch in the background, when the prefetch is set.
+     */
+    void start() {
+        if (this.prefetchExecutor != null && this.responseIter == null && this.prefetch == null) {
+            startPrefetch();
+        }
     }
 
     private void fetchNextBatch() {
-        query.startOffset(offset);
+        applyBatch(nextQuery().list());
+    }
+
+    /**
+     * @return the query for the next batch, with the paging set
+     */
+    private Query nextQuery() {
+        Query current = this.query;
+        if (this.lastKey != null) {
+            if (this.keysetQuery == null) {
+                this.keysetQuery = this.queryFactory.create(this.keysetQueryStr);
+            }
+            current = this.keysetQuery;
+            current.setParameter(IckleConvertionVisitor.KEYSET_PARAMETER, this.lastKey);
+            current.startOffset(0);
+        } else {
+            current.startOffset(offset);
+        }
 
         int nextBatch = this.batchSize;
         if (this.limit != null) {
@@ -70,52 +183,127 @@ public class InfinispanResponse {
                 this.lastBatch = true;
             }
         }
-        query.maxResults(nextBatch);
-        List<Object> values = query.list();
+        current.maxResults(nextBatch);
+        this.requestedBatch = nextBatch;
+        return bind(current, this.parameters);
+    }
 
-        if (query.getResultSize() < nextBatch) {
+    private void applyBatch(List<Object> values) {
+        int nextBatch = this.requestedBatch;
+        if (values.size() < nextBatch) {
             this.lastBatch = true;
         }
+        if (this.keysetQueryStr != null && !values.isEmpty()) {
+            this.lastKey = getKey(values.get(values.size() - 1), this.keyAttribute, this.keyIndex);
+        }
 
         this.responseIter = values.iterator();
         offset = offset + nextBatch;
+
+        if (this.prefetchExecutor != null && !this.lastBatch) {
+            startPrefetch();
+        }
+    }
+
+    private void startPrefetch() {
+        final Query current = nextQuery();
+        this.prefetch = new FutureTask<List<Object>>(new Callable<List<Object>>() {
+            @Override
+            public List<Object> call() throws Exception {
+                connection.registerMarshaller(marshaller);
+                try {
+                    return current.list();
+                } finally {
+                    connection.unRegisterMarshaller(marshaller);
+                }
+            }
+        }) {
+            @Override
+            protected void done() {
+                executionContext.dataAvailable();
+            }
+        };
+        this.prefetchExecutor.execute(this.prefetch);
     }
 
-    public List<Object> getNextRow(){
-        if (this.currentDocumentRows != null && !this.currentDocumentRows.isEmpty()) {
-            return buildRow(this.currentDocumentRows.remove(0));
+    /**
+     * @return false if the prefetched batch is not available yet
+     */
+    private boolean fetchPrefetchedBatch() throws TranslatorException {
+        if (!this.prefetch.isDone()) {
+            return false;
         }
+        FutureTask<List<Object>> done = this.prefetch;
+        this.prefetch = null;
+        try {
+            applyBatch(done.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TranslatorException(e);
+        } catch (ExecutionException e) {
+            throw new TranslatorException(e.getCause());
+        }
+        return true;
+    }
 
-        if (responseIter == null) {
-            fetchNextBatch();
+    void close() {
+        if (this.scan != null) {
+            this.scan.close();
         }
+        if (this.prefetch != null) {
+            this.prefetch.cancel(true);
+            this.prefetch = null;
+        }
+    }
 
-        if (responseIter != null && responseIter.hasNext()){
-            Object row = this.responseIter.next();
-            if (row instanceof Object[]) {
-                return Arrays.asList((Object[])row);
+    static Object getKey(Object row, String keyAttribute, int keyIndex) {
+        if (row instanceof Object[]) {
+            return ((Object[])row)[keyIndex];
+        }
+        return ((InfinispanDocument)row).getProperties().get(keyAttribute);
+    }
+
+    public List<Object> getNextRow() throws TranslatorException, DataNotAvailableException {
+        while (true) {
+            if (this.currentDocumentRows != null && this.currentDocumentRows.hasNext()) {
+                return this.currentDocumentRows.next();
             }
-            this.currentDocumentRows = this.documentNode.tuples((InfinispanDocument)row);
-        } else {
-            if (lastBatch) {
-                return null;
-            } else {
-                fetchNextBatch();
-                Object row = this.responseIter.next();
-                if (row instanceof Object[]) {
-                    return Arrays.asList((Object[])row);
+
+            if (responseIter == null || !responseIter.hasNext()) {
+                if (this.scan != null) {
+                    List<Object> batch = this.scan.nextBatch();
+                    if (batch == null) {
+                        return null;
+                    }
+                    this.responseIter = batch.iterator();
+                    continue;
+                }
+                if (this.prefetch != null) {
+                    if (!fetchPrefetchedBatch()) {
+                        // woken up by the prefetch when the batch arrives
+                        throw DataNotAvailableException.NO_POLLING;
+                    }
+                } else {
+                    if (responseIter != null && lastBatch) {
+                        return null;
+                    }
+                    fetchNextBatch();
+                }
+                if (!responseIter.hasNext()) {
+                    return null;
                 }
-                this.currentDocumentRows = this.documentNode.tuples((InfinispanDocument)row);
             }
-        }
-        return getNextRow();
-    }
 
-    private List<Object> buildRow(Map<String, Object> row) {
-        ArrayList<Object> result = new ArrayList<>();
-        for (String attr : this.projected) {
-            result.add(row.get(attr));
+            Object row = this.responseIter.next();
+            if (row instanceof Object[]) {
+                Object[] values = (Object[])row;
+                if (this.rowWidth != -1 && this.rowWidth < values.length) {
+                    values = Arrays.copyOf(values, this.rowWidth);
+                }
+                return Arrays.asList(values);
+            }
+            this.currentDocumentRows = new DocumentRowIterator((InfinispanDocument)row, this.nestedDocuments,
+                    this.projected);
         }
-        return result;
     }
-}
\ No newline at end of file
+}
@@ -22,14 +22,17 @@
 package org.teiid.translator.infinispan.hotrod;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
+import org.infinispan.client.hotrod.Flag;
 import org.infinispan.client.hotrod.RemoteCache;
 import org.infinispan.client.hotrod.Search;
 import org.infinispan.query.dsl.Query;
 import org.infinispan.query.dsl.QueryFactory;
 import org.teiid.infinispan.api.InfinispanConnection;
 import org.teiid.infinispan.api.InfinispanDocument;
+import org.teiid.infinispan.api.NearCache;
 import org.teiid.language.ColumnReference;
 import org.teiid.language.Command;
 import org.teiid.language.Delete;
@@ -54,9 +57,12 @@ public class InfinispanUpdateExecution implements UpdateExecution {
     private InfinispanConnection connection;
     private ExecutionContext executionContext;
     private RuntimeMetadata metadata;
+    private InfinispanExecutionFactory translator;
 
-    public InfinispanUpdateExecution(Command command, ExecutionContext executionContext, RuntimeMetadata metadata,
-            InfinispanConnection connection) throws TranslatorException {
+    public InfinispanUpdateExecution(InfinispanExecutionFactory translator, Command command,
+            ExecutionContext executionContext, RuntimeMetadata metadata, InfinispanConnection connection)
+            throws TranslatorException {
+        this.translator = translator;
         this.command = command;
         this.executionContext = executionContext;
         this.metadata = metadata;
@@ -67,6 +73,7 @@ public class InfinispanUpdateExecution implements UpdateExecution {
     public void execute() throws TranslatorException {
 
         final InfinispanUpdateVisitor visitor = new InfinispanUpdateVisitor(this.metadata);
+        visitor.setUseParameters(true);
         visitor.append(this.command);
 
         if (!visitor.exceptions.isEmpty()) {
@@ -74,6 +81,7 @@ public class InfinispanUpdateExecution implements UpdateExecution {
         }
 
         TeiidTableMarsheller marshaller = null;
+        RemoteCache<Object, Object> written = null;
         try {
             Table table = visitor.getParentTable();
             Column pkColumn = visitor.getPrimaryKey();
@@ -119,37 +127,71 @@ public class InfinispanUpdateExecution implements UpdateExecution {
                         this.metadata, ssv.toString(), action);
             }
 
-            marshaller = MarshallerBuilder.getMarshaller(table, this.metadata, docFilter);
+            // the documents are written back as read, so keep the large object references as they are
+            final LobStore lobStore = LobStore.getLobStore(this.translator, this.connection);
+            marshaller = MarshallerBuilder.getMarshaller(table, this.metadata, docFilter, null,
+                    (lobStore == null) ? null : lobStore.forUpdate());
             this.connection.registerMarshaller(marshaller);
+            final WireSchema schema = MarshallerBuilder.getWireSchema(table, this.metadata);
 
             // if the message in defined in different cache than the default, switch it out now.
             final RemoteCache<Object,Object> cache = InfinispanQueryExecution.getCache(table, connection);
+            written = cache;
+            // the near cache is told about the own writes right away, the listener events arrive later
+            final NearCache nearCache = this.connection.getNearCache(cache.getName());
+
 
+            // page on the primary key, the rows of the previous pages may have been removed or updated by then.
+            boolean keyset = visitor.getKeysetColumn() != null;
+            Map<String, Object> parameters = visitor.getParameters();
 
             if (visitor.getOperationType() == OperationType.DELETE) {
-                paginateResults(cache, visitor.getDeleteQuery(), new Task() {
+                paginateResults(cache, keyset ? visitor.getKeysetDeleteQuery(true) : visitor.getDeleteQuery(),
+                        keyset ? visitor.getKeysetDeleteQuery(false) : null, parameters, PK, new Task() {
                     @Override
                     public void run(Object row) throws TranslatorException {
                         if (visitor.isNestedOperation()) {
                             String childName = ProtobufMetadataProcessor.getMessageName(visitor.getQueryTable());
                             InfinispanDocument document = (InfinispanDocument)row;
                             cache.replace(document.getProperties().get(PK), document);
+                            invalidate(nearCache, document.getProperties().get(PK));
                             // false below means count that not matched, i.e. deleted count
                             updateCount = updateCount + document.getUpdateCount(childName, false);
                         } else {
                             Object key = ((Object[])row)[0];
-                            cache.remove(key);
+                            if (lobStore != null) {
+                                // the chunks are removed once the document no longer refers to them
+                                InfinispanDocument removed = (InfinispanDocument)cache
+                                        .withFlags(Flag.FORCE_RETURN_VALUE).remove(key);
+                                lobStore.release(lobStore.getReferences(removed, schema), null);
+                            } else {
+                                cache.remove(key);
+                            }
+                            invalidate(nearCache, key);
                             updateCount++;
                         }
                     }
                 }, this.executionContext.getBatchSize());
             } else if (visitor.getOperationType() == OperationType.UPDATE) {
-                paginateResults(cache, visitor.getUpdateQuery(), new Task() {
+                paginateResults(cache, keyset ? visitor.getKeysetUpdateQuery(true) : visitor.getUpdateQuery(),
+                        keyset ? visitor.getKeysetUpdateQuery(false) : null, parameters, PK, new Task() {
                     @Override
                     public void run(Object row) throws TranslatorException {
                         InfinispanDocument previous = (InfinispanDocument)row;
+                        Map<String, byte[]> references = null;
+                        if (lobStore != null) {
+                            references = lobStore.getReferences(previous, schema);
+                        }
                         int count = mergeUpdatePayload(previous, visitor.getInsertPayload());
+                        if (lobStore != null) {
+                            lobStore.externalize(previous, previous.getProperties().get(PK), schema,
+                                    visitor.getInsertPayload().getProperties().keySet());
+                        }
                         cache.replace(previous.getProperties().get(PK), previous);
+                        invalidate(nearCache, previous.getProperties().get(PK));
+                        if (references != null) {
+                            lobStore.release(references, previous);
+                        }
                         updateCount = updateCount + count;
                     }
                 }, this.executionContext.getBatchSize());
@@ -169,13 +211,18 @@ public class InfinispanUpdateExecution implements UpdateExecution {
                                 table.getName(), visitor.getIdentity()));
                     }
                     previous = visitor.getInsertPayload();
+                    if (lobStore != null) {
+                        lobStore.externalize(previous, visitor.getIdentity(), schema, null);
+                    }
                 }
                 previous = (InfinispanDocument) cache.put(visitor.getIdentity(), previous);
+                invalidate(nearCache, visitor.getIdentity());
                 this.updateCount++;
             } else if (visitor.getOperationType() == OperationType.UPSERT) {
                 boolean replace = false;
                 // this is always single row; putIfAbsent is not working correctly.
                 InfinispanDocument previous = (InfinispanDocument)cache.get(visitor.getIdentity());
+                Map<String, byte[]> references = null;
                 if (visitor.isNestedOperation()) {
                     if (previous == null) {
                         throw new TranslatorException(InfinispanPlugin.Util.gs(InfinispanPlugin.Event.TEIID25009,
@@ -186,16 +233,27 @@ public class InfinispanUpdateExecution implements UpdateExecution {
                     replace = true;
                 } else {
                     if (previous != null) {
+                        if (lobStore != null) {
+                            references = lobStore.getReferences(previous, schema);
+                        }
                         mergeUpdatePayload(previous, visitor.getInsertPayload());
                         replace = true;
                     } else {
                         previous = visitor.getInsertPayload();
                     }
+                    if (lobStore != null) {
+                        lobStore.externalize(previous, visitor.getIdentity(), schema,
+                                visitor.getInsertPayload().getProperties().keySet());
+                    }
                 }
                 if (replace) {
-                    previous = (InfinispanDocument) cache.replace(visitor.getIdentity(), previous);
+                    cache.replace(visitor.getIdentity(), previous);
                 } else {
-                    previous = (InfinispanDocument) cache.put(visitor.getIdentity(), previous);
+                    cache.put(visitor.getIdentity(), previous);
+                }
+                invalidate(nearCache, visitor.getIdentity());
+                if (references != null) {
+                    lobStore.release(references, previous);
                 }
                 this.updateCount++;
             }
@@ -203,6 +261,16 @@ public class InfinispanUpdateExecution implements UpdateExecution {
             if (marshaller != null) {
                 this.connection.unRegisterMarshaller(marshaller);
             }
+            if (written != null && this.translator.getResultCache() != null) {
+                // drop the results read before this write, before the update count is returned
+                this.translator.getResultCache().invalidate(written);
+            }
+        }
+    }
+
+    private static void invalidate(NearCache nearCache, Object key) {
+        if (nearCache != null) {
+            nearCache.invalidate(key);
         }
     }
 
@@ -210,11 +278,19 @@ public class InfinispanUpdateExecution implements UpdateExecution {
         void run(Object rows) throws TranslatorException;
     }
 
-    static void paginateResults(RemoteCache<Object, Object> cache, String queryStr, Task task, int batchSize)
+    /**
+     * @param keysetQueryStr when not null, the pages after the first are read with this query, continuing after the
+     *            last key read, see {@link IckleConvertionVisitor#getKeysetQuery(boolean)}
+     * @param parameters values of the named parameters of the queries
+     * @param keyAttribute document attribute of the key; when the results are rows the key is the first column
+     */
+    static void paginateResults(RemoteCache<Object, Object> cache, String queryStr, String keysetQueryStr,
+            Map<String, Object> parameters, String keyAttribute, Task task, int batchSize)
             throws TranslatorException {
 
         QueryFactory qf = Search.getQueryFactory(cache);
-        Query query = qf.create(queryStr);
+        Query query = InfinispanResponse.bind(qf.create(queryStr), parameters);
+        Query keysetQuery = null;
 
         int offset = 0;
         query.startOffset(0);
@@ -224,12 +300,25 @@ public class InfinispanUpdateExecution implements UpdateExecution {
             for(Object doc : values) {
                 task.run(doc);
             }
-            if (query.getResultSize() < batchSize) {
+            if (values.size() < batchSize) {
                 break;
             }
-            offset = offset + batchSize;
-            query.startOffset(offset);
-            values = query.list();
+            Object lastKey = null;
+            if (keysetQueryStr != null) {
+                lastKey = InfinispanResponse.getKey(values.get(values.size() - 1), keyAttribute, 0);
+            }
+            if (lastKey != null) {
+                if (keysetQuery == null) {
+                    keysetQuery = InfinispanResponse.bind(qf.create(keysetQueryStr), parameters);
+                    keysetQuery.maxResults(batchSize);
+                }
+                keysetQuery.setParameter(IckleConvertionVisitor.KEYSET_PARAMETER, lastKey);
+                values = keysetQuery.list();
+            } else {
+                offset = offset + batchSize;
+                query.startOffset(offset);
+                values = query.list();
+            }
         }
     }
 
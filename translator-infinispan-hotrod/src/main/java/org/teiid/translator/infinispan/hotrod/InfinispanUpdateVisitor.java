@@ -236,12 +236,20 @@ public class InfinispanUpdateVisitor extends IckleConvertionVisitor {
     public void visit(Update obj) {
         this.operationType = OperationType.UPDATE;
         append(obj.getTable());
-        if (obj.getWhere() != null) {
+        String from = SQLConstants.Reserved.FROM + Tokens.SPACE + buffer.toString();
+        String where = null;
+        Condition serverWhere = getServerCondition(obj.getWhere());
+        if (serverWhere != null) {
             buffer.append(Tokens.SPACE).append(SQLConstants.Reserved.WHERE).append(Tokens.SPACE);
-            append(obj.getWhere());
+            int start = buffer.length();
+            append(serverWhere);
+            where = buffer.substring(start);
+        }
+        if (obj.getWhere() != null) {
             // Can't use the original where string because it is designed for the document model querying
             this.whereClause = obj.getWhere();
         }
+        setKeysetClauses(from, where, true);
 
         // table that update issued for
         Table table = obj.getTable().getMetadataObject();
@@ -277,11 +285,19 @@ public class InfinispanUpdateVisitor extends IckleConvertionVisitor {
             this.nested = true;
         }
 
-        if (obj.getWhere() != null) {
+        String from = SQLConstants.Reserved.FROM + Tokens.SPACE + buffer.toString();
+        String where = null;
+        Condition serverWhere = getServerCondition(obj.getWhere());
+        if (serverWhere != null) {
             buffer.append(Tokens.SPACE).append(SQLConstants.Reserved.WHERE).append(Tokens.SPACE);
-            append(obj.getWhere());
+            int start = buffer.length();
+            append(serverWhere);
+            where = buffer.substring(start);
+        }
+        if (obj.getWhere() != null) {
             this.whereClause = obj.getWhere();
         }
+        setKeysetClauses(from, where, true);
     }
 
     public List<String> getProjectedColumnNames() {
@@ -314,6 +330,20 @@ public class InfinispanUpdateVisitor extends IckleConvertionVisitor {
         return  sb.toString();
     }
 
+    /**
+     * Keyset variant of {@link #getUpdateQuery()}, see {@link #getKeysetQuery(boolean)}
+     */
+    public String getKeysetUpdateQuery(boolean first) {
+        return buildKeysetQuery(false, first);
+    }
+
+    /**
+     * Keyset variant of {@link #getDeleteQuery()}, see {@link #getKeysetQuery(boolean)}
+     */
+    public String getKeysetDeleteQuery(boolean first) {
+        return buildKeysetQuery(!isNestedOperation(), first);
+    }
+
     Condition getWhereClause() {
         return whereClause;
     }
@@ -0,0 +1,339 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.translator.infinispan.hotrod;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.sql.SQLXML;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.infinispan.client.hotrod.RemoteCache;
+import org.infinispan.client.hotrod.RemoteCacheManager;
+import org.teiid.core.types.BlobImpl;
+import org.teiid.core.types.ClobImpl;
+import org.teiid.core.types.InputStreamFactory;
+import org.teiid.core.types.SQLXMLImpl;
+import org.teiid.core.util.ReaderInputStream;
+import org.teiid.infinispan.api.InfinispanConnection;
+import org.teiid.infinispan.api.InfinispanDocument;
+import org.teiid.translator.TranslatorException;
+import org.teiid.translator.infinispan.hotrod.WireSchema.Field;
+
+/**
+ * Stores the large object values of the documents as fixed size chunks in a companion cache. The document only holds
+ * a reference to the chunks, which are fetched lazily when the value is read. A value that fits in a single chunk is
+ * kept inline in the document.
+ *
+ * Every write of a value stores its chunks under a new generation of the key, derived from the message name, the
+ * document key and the attribute name, so the chunks of the previous value are never overwritten while a reader may
+ * still use them. The caller collects the previous references with {@link #getReferences(InfinispanDocument,
+ * WireSchema)} before the document is changed, and releases them after the document is written. Only the large
+ * objects on the top level message are stored as chunks, nested messages always keep them inline.
+ */
+public class LobStore {
+    // leading zero byte, to keep the reference apart from text values
+    private static final byte[] MAGIC = {0, 'T', 'E', 'I', 'I', 'D', 'L', 'B'};
+    private static final int HEADER_SIZE = MAGIC.length + 4 + 8 + 4;
+
+    private final RemoteCache<String, byte[]> cache;
+    private final int chunkSize;
+    private final boolean resolveReferences;
+
+    LobStore(RemoteCache<String, byte[]> cache, int chunkSize, boolean resolveReferences) {
+        this.cache = cache;
+        this.chunkSize = chunkSize;
+        this.resolveReferences = resolveReferences;
+    }
+
+    /**
+     * @return the store configured on the translator; null if the chunked storage is not enabled.
+     */
+    static LobStore getLobStore(InfinispanExecutionFactory translator, InfinispanConnection connection)
+            throws TranslatorException {
+        if (translator == null || translator.getLobCacheName() == null) {
+            return null;
+        }
+        RemoteCache<String, byte[]> cache = ((RemoteCacheManager) connection.getCacheFactory())
+                .getCache(translator.getLobCacheName());
+        return new LobStore(cache, translator.getLobChunkSize(), true);
+    }
+
+    /**
+     * View of this store for reading the documents that are going to be written back, the references are left as
+     * they are, without fetching the chunks.
+     */
+    LobStore forUpdate() {
+        return new LobStore(this.cache, this.chunkSize, false);
+    }
+
+    static boolean isReference(Object value) {
+        if (!(value instanceof byte[])) {
+            return false;
+        }
+        byte[] bytes = (byte[]) value;
+        if (bytes.length < HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Convert the reference read from the document into the runtime large object type, the chunks are fetched when
+     * the value is streamed.
+     */
+    Object read(byte[] reference, Class<?> type) {
+        if (!this.resolveReferences) {
+            return reference;
+        }
+        ByteBuffer bb = ByteBuffer.wrap(reference);
+        bb.position(MAGIC.length + 4);
+        final long length = bb.getLong();
+        final int count = bb.getInt();
+        final String key = getKey(reference);
+        InputStreamFactory isf = new InputStreamFactory() {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return new ChunkInputStream(key, count);
+            }
+        };
+        isf.setLength(length);
+        return toRuntime(isf, type);
+    }
+
+    private static Object toRuntime(InputStreamFactory isf, Class<?> type) {
+        if (Clob.class.isAssignableFrom(type)) {
+            return new ClobImpl(isf, -1);
+        } else if (SQLXML.class.isAssignableFrom(type)) {
+            return new SQLXMLImpl(isf);
+        }
+        return new BlobImpl(isf);
+    }
+
+    /**
+     * Replace the large object values of the top level message with the references to their chunks. The chunks of
+     * the values replaced are left in place, see {@link #release(Map, InfinispanDocument)}
+     *
+     * @param attributes when not null, only these attributes are replaced, the rest are left as read.
+     */
+    void externalize(InfinispanDocument document, Object key, WireSchema schema, Set<String> attributes)
+            throws TranslatorException {
+        for (Field field : schema.getFields()) {
+            if (field.lobType == null || field.array
+                    || (attributes != null && !attributes.contains(field.attributeName))) {
+                continue;
+            }
+            Object value = document.getProperties().get(field.attributeName);
+            if (value == null) {
+                continue;
+            }
+            try {
+                InputStream in = getInputStream(value);
+                if (in == null) {
+                    continue;
+                }
+                try {
+                    document.addProperty(field.columnName, store(getChunkKey(schema, key, field), in));
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                throw new TranslatorException(e);
+            } catch (SQLException e) {
+                throw new TranslatorException(e);
+            }
+        }
+    }
+
+    /**
+     * @return the references to the chunks held by the top level message of the document, by attribute name
+     */
+    Map<String, byte[]> getReferences(InfinispanDocument document, WireSchema schema) {
+        Map<String, byte[]> references = new HashMap<String, byte[]>();
+        if (document == null) {
+            return references;
+        }
+        for (Field field : schema.getFields()) {
+            if (field.lobType == null || field.array) {
+                continue;
+            }
+            Object value = document.getProperties().get(field.attributeName);
+            if (isReference(value)) {
+                references.put(field.attributeName, (byte[])value);
+            }
+        }
+        return references;
+    }
+
+    /**
+     * Remove the chunks of the previous references that are no longer held by the document written.
+     *
+     * @param current the document as written; null when it was removed
+     */
+    void release(Map<String, byte[]> previous, InfinispanDocument current) {
+        for (Map.Entry<String, byte[]> entry : previous.entrySet()) {
+            if (current != null) {
+                Object value = current.getProperties().get(entry.getKey());
+                if (value instanceof byte[] && Arrays.equals((byte[])value, entry.getValue())) {
+                    continue;
+                }
+            }
+            ByteBuffer bb = ByteBuffer.wrap(entry.getValue());
+            bb.position(MAGIC.length + 4 + 8);
+            int count = bb.getInt();
+            String key = getKey(entry.getValue());
+            for (int i = 0; i < count; i++) {
+                this.cache.remove(key + "#" + i);
+            }
+        }
+    }
+
+    private static String getChunkKey(WireSchema schema, Object key, Field field) {
+        return schema.getName() + "/" + key + "/" + field.attributeName + "@" + UUID.randomUUID(); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+
+    private static String getKey(byte[] reference) {
+        return new String(reference, HEADER_SIZE, reference.length - HEADER_SIZE, StandardCharsets.UTF_8);
+    }
+
+    private static InputStream getInputStream(Object value) throws SQLException {
+        if (value instanceof Clob) {
+            return new ReaderInputStream(((Clob) value).getCharacterStream(), StandardCharsets.UTF_8);
+        } else if (value instanceof SQLXML) {
+            return ((SQLXML) value).getBinaryStream();
+        } else if (value instanceof Blob) {
+            return ((Blob) value).getBinaryStream();
+        }
+        // already a reference, or raw bytes
+        return null;
+    }
+
+    byte[] store(String key, InputStream in) throws IOException {
+        byte[] chunk = readChunk(in);
+        if (chunk.length < this.chunkSize && !isReference(chunk)) {
+            // fits in single chunk, inline
+            return chunk;
+        }
+
+        int count = 0;
+        long length = 0;
+        while (chunk.length > 0) {
+            this.cache.put(key + "#" + count, chunk);
+            length += chunk.length;
+            count++;
+            if (chunk.length < this.chunkSize) {
+                break;
+            }
+            chunk = readChunk(in);
+        }
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length);
+        bb.put(MAGIC);
+        bb.putInt(this.chunkSize);
+        bb.putLong(length);
+        bb.putInt(count);
+        bb.put(keyBytes);
+        return bb.array();
+    }
+
+    private byte[] readChunk(InputStream in) throws IOException {
+        byte[] chunk = new byte[this.chunkSize];
+        int read = 0;
+        while (read < chunk.length) {
+            int r = in.read(chunk, read, chunk.length - read);
+            if (r == -1) {
+                break;
+            }
+            read += r;
+        }
+        return (read == chunk.length) ? chunk : Arrays.copyOf(chunk, read);
+    }
+
+    /**
+     * Fetches the chunks one at a time as the stream is consumed.
+     */
+    private class ChunkInputStream extends InputStream {
+        private final String key;
+        private final int count;
+        private int next;
+        private byte[] current = new byte[0];
+        private int pos;
+
+        ChunkInputStream(String key, int count) {
+            this.key = key;
+            this.count = count;
+        }
+
+        private boolean fill() throws IOException {
+            while (this.pos == this.current.length) {
+                if (this.next == this.count) {
+                    return false;
+                }
+                byte[] chunk = LobStore.this.cache.get(this.key + "#" + this.next);
+                if (chunk == null) {
+                    throw new IOException(InfinispanPlugin.Util.gs(InfinispanPlugin.Event.TEIID25014, this.key,
+                            this.next, LobStore.this.cache.getName()));
+                }
+                this.next++;
+                this.current = chunk;
+                this.pos = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return this.current[this.pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, this.current.length - this.pos);
+            System.arraycopy(this.current, this.pos, b, off, n);
+            this.pos += n;
+            return n;
+        }
+    }
+}
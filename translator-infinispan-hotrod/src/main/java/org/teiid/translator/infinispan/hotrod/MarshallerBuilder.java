@@ -21,6 +21,13 @@
  */
 package org.teiid.translator.infinispan.hotrod;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 import org.teiid.infinispan.api.TableWireFormat;
@@ -36,8 +43,61 @@ import org.teiid.translator.TranslatorException;
  */
 public class MarshallerBuilder {
 
+    // compiled schemas by the table instance; a vdb reload creates new table instances, whose schemas are evicted
+    // when the metadata is loaded again, see #evict. The in place changes to a table or its merged children are
+    // detected through their last modified time.
+    private static final int MAX_CACHED_SCHEMAS = 512;
+    private static final Map<TableKey, CachedSchema> SCHEMAS = Collections.synchronizedMap(
+            new LinkedHashMap<TableKey, CachedSchema>(16, 0.75f, true) {
+                private static final long serialVersionUID = -2377291046372291469L;
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<TableKey, CachedSchema> eldest) {
+                    return size() > MAX_CACHED_SCHEMAS;
+                }
+            });
+
+    /**
+     * Wire map of the given table. The wire formats are shared between the executions, and must not be modified.
+     */
     public static TreeMap<Integer, TableWireFormat> getWireMap(Table parentTbl, RuntimeMetadata metadata)
             throws TranslatorException {
+        return new TreeMap<>(getWireSchema(parentTbl, metadata).getWireMap());
+    }
+
+    /**
+     * Drop the compiled schemas of the tables of the schema with the given name, as its metadata is being loaded
+     * again. The compiled schemas reference the columns, so the tables of the previous metadata are otherwise kept
+     * until they are least recently used.
+     */
+    public static void evict(String schemaName) {
+        synchronized (SCHEMAS) {
+            Iterator<TableKey> iter = SCHEMAS.keySet().iterator();
+            while (iter.hasNext()) {
+                Schema schema = iter.next().table.getParent();
+                if (schema == null || schema.getName().equalsIgnoreCase(schemaName)) {
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    private static CachedSchema getCachedSchema(Table parentTbl, RuntimeMetadata metadata)
+            throws TranslatorException {
+        TableKey key = new TableKey(parentTbl);
+        CachedSchema cached = SCHEMAS.get(key);
+        if (cached != null && cached.isValid()) {
+            return cached;
+        }
+        List<Table> children = new ArrayList<>();
+        TreeMap<Integer, TableWireFormat> wireMap = buildWireMap(parentTbl, metadata, children);
+        WireSchema schema = WireSchema.compile(ProtobufMetadataProcessor.getMessageName(parentTbl), wireMap);
+        cached = new CachedSchema(parentTbl, children, schema);
+        SCHEMAS.put(key, cached);
+        return cached;
+    }
+
+    private static TreeMap<Integer, TableWireFormat> buildWireMap(Table parentTbl, RuntimeMetadata metadata,
+            List<Table> children) throws TranslatorException {
         TreeMap<Integer, TableWireFormat> wireMap = buildWireMap(parentTbl, false, metadata);
         Schema schema = parentTbl.getParent();
         for (Table table:schema.getTables().values()) {
@@ -55,6 +115,7 @@ public class MarshallerBuilder {
                 for (TableWireFormat twf : childWireMap.values()) {
                     child.addNested(twf);
                 }
+                children.add(table);
             }
         }
         return wireMap;
@@ -128,13 +189,114 @@ public class MarshallerBuilder {
         return nis;
     }
 
+    /**
+     * Compiled form of the wire map of the given table, see {@link WireSchema}
+     */
+    public static WireSchema getWireSchema(Table table, RuntimeMetadata metadata) throws TranslatorException {
+        return getCachedSchema(table, metadata).schema;
+    }
+
     public static TeiidTableMarsheller getMarshaller(Table table, RuntimeMetadata metadata) throws TranslatorException {
-        return new TeiidTableMarsheller(ProtobufMetadataProcessor.getMessageName(table), getWireMap(table, metadata));
+        return getCachedSchema(table, metadata).marshaller;
     }
 
     public static TeiidTableMarsheller getMarshaller(Table table, RuntimeMetadata metadata, DocumentFilter filter)
             throws TranslatorException {
-        return new TeiidTableMarsheller(ProtobufMetadataProcessor.getMessageName(table), getWireMap(table, metadata),
-                filter);
+        if (filter == null) {
+            return getMarshaller(table, metadata);
+        }
+        return new TeiidTableMarsheller(getWireSchema(table, metadata), filter);
+    }
+
+    /**
+     * Marshaller for reading query results, that only decodes the given document attributes. This marshaller must not
+     * be used to write documents.
+     */
+    public static TeiidTableMarsheller getMarshaller(Table table, RuntimeMetadata metadata, DocumentFilter filter,
+            Set<String> projection) throws TranslatorException {
+        return getMarshaller(table, metadata, filter, projection, null);
+    }
+
+    /**
+     * Marshaller that resolves the large object references through the given {@link LobStore}
+     *
+     * @param projection when null all the document attributes are decoded
+     */
+    public static TeiidTableMarsheller getMarshaller(Table table, RuntimeMetadata metadata, DocumentFilter filter,
+            Set<String> projection, LobStore lobStore) throws TranslatorException {
+        if (filter == null && projection == null && lobStore == null) {
+            return getMarshaller(table, metadata);
+        }
+        return new TeiidTableMarsheller(getWireSchema(table, metadata), filter, projection, lobStore);
+    }
+
+    /**
+     * Read only marshaller that decodes each document directly into a result row, with the given document attributes
+     * as columns. Only valid when the document yields a single row, see
+     * {@link IckleConvertionVisitor#isSingleRowPerDocument()}
+     */
+    public static TeiidTableRowMarsheller getRowMarshaller(Table table, RuntimeMetadata metadata,
+            List<String> projection) throws TranslatorException {
+        return getRowMarshaller(table, metadata, projection, null);
+    }
+
+    public static TeiidTableRowMarsheller getRowMarshaller(Table table, RuntimeMetadata metadata,
+            List<String> projection, LobStore lobStore) throws TranslatorException {
+        return new TeiidTableRowMarsheller(getWireSchema(table, metadata), projection, lobStore);
+    }
+
+    private static final class TableKey {
+        private final Table table;
+
+        TableKey(Table table) {
+            this.table = table;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this.table);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return (obj instanceof TableKey) && ((TableKey)obj).table == this.table;
+        }
+    }
+
+    private static final class CachedSchema {
+        private final Table table;
+        private final long lastModified;
+        private final Table[] children;
+        private final long[] childrenLastModified;
+        private final int schemaTableCount;
+        final WireSchema schema;
+        // no filter and full projection, only state is the schema, so safe to share
+        final TeiidTableMarsheller marshaller;
+
+        CachedSchema(Table table, List<Table> children, WireSchema schema) {
+            this.table = table;
+            this.lastModified = table.getLastModified();
+            this.children = children.toArray(new Table[children.size()]);
+            this.childrenLastModified = new long[this.children.length];
+            for (int i = 0; i < this.children.length; i++) {
+                this.childrenLastModified[i] = this.children[i].getLastModified();
+            }
+            this.schemaTableCount = table.getParent().getTables().size();
+            this.schema = schema;
+            this.marshaller = new TeiidTableMarsheller(schema, null);
+        }
+
+        boolean isValid() {
+            if (this.table.getLastModified() != this.lastModified
+                    || this.table.getParent().getTables().size() != this.schemaTableCount) {
+                return false;
+            }
+            for (int i = 0; i < this.children.length; i++) {
+                if (this.children[i].getLastModified() != this.childrenLastModified[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 }
@@ -28,6 +28,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.regex.Pattern;
 
 import org.infinispan.commons.api.BasicCache;
 import org.infinispan.query.remote.client.ProtobufMetadataManagerConstants;
@@ -105,6 +106,11 @@ public class ProtobufMetadataProcessor implements MetadataProcessor<InfinispanCo
             description="Pseudo column for join purposes")
     public static final String PSEUDO = MetadataFactory.ODATA_URI+"PSEUDO"; //$NON-NLS-1$
 
+    // @Indexed, but not @IndexedField nor @Indexed(false)
+    private static final Pattern INDEXED = Pattern.compile("@Indexed\\b(?!\\s*\\(\\s*false)"); //$NON-NLS-1$
+    private static final Pattern NOT_INDEXED_FIELD = Pattern.compile(
+            "@(IndexedField|Field)\\s*\\([^)]*\\bindex\\s*=\\s*(false|Index\\.NO)\\b"); //$NON-NLS-1$
+
     private String protoFilePath;
     private ProtobufResource protoResource;
     private String protobufName;
@@ -330,7 +336,7 @@ public class ProtobufMetadataProcessor implements MetadataProcessor<InfinispanCo
 
         // process annotations
         if (table.getAnnotation() != null) {
-            if (table.getAnnotation().contains("@Indexed")) {
+            if (isIndexed(table.getAnnotation())) {
                 c.setSearchType(SearchType.Searchable);
             }
         }
@@ -338,7 +344,7 @@ public class ProtobufMetadataProcessor implements MetadataProcessor<InfinispanCo
         if ( annotation != null && !annotation.isEmpty()) {
             c.setAnnotation(annotation);
 
-            if(annotation.contains("@IndexedField(index=false")) {
+            if(!isIndexedField(annotation)) {
                 c.setSearchType(null);
             }
 
@@ -446,6 +452,32 @@ public class ProtobufMetadataProcessor implements MetadataProcessor<InfinispanCo
         return (column.getProperty(PSEUDO, false) != null);
     }
 
+    /**
+     * @return true if the field behind the column is indexed by the server
+     */
+    static boolean isIndexed(Column column) {
+        String tableAnnotation = ((Table)column.getParent()).getAnnotation();
+        if (tableAnnotation == null || !isIndexed(tableAnnotation)) {
+            return false;
+        }
+        return column.getAnnotation() == null || isIndexedField(column.getAnnotation());
+    }
+
+    /**
+     * @return true if the message annotations have @Indexed, and it is not turned off with @Indexed(false)
+     */
+    static boolean isIndexed(String annotation) {
+        return INDEXED.matcher(annotation).find();
+    }
+
+    /**
+     * @return false if the field annotations turn off the index, e.g. @IndexedField(index=false) or
+     *         @Field(index=Index.NO)
+     */
+    static boolean isIndexedField(String annotation) {
+        return !NOT_INDEXED_FIELD.matcher(annotation).find();
+    }
+
     static String getMessageName(Table table) {
         if (table.getNameInSource() != null) {
             return table.getNameInSource();
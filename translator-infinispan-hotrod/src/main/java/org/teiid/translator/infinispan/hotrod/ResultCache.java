@@ -0,0 +1,231 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.translator.infinispan.hotrod;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.infinispan.client.hotrod.RemoteCache;
+import org.infinispan.client.hotrod.annotation.ClientCacheEntryCreated;
+import org.infinispan.client.hotrod.annotation.ClientCacheEntryExpired;
+import org.infinispan.client.hotrod.annotation.ClientCacheEntryModified;
+import org.infinispan.client.hotrod.annotation.ClientCacheEntryRemoved;
+import org.infinispan.client.hotrod.annotation.ClientCacheFailover;
+import org.infinispan.client.hotrod.annotation.ClientListener;
+import org.infinispan.client.hotrod.event.ClientEvent;
+import org.teiid.logging.LogConstants;
+import org.teiid.logging.LogManager;
+
+/**
+ * Results of the queries, kept until the cache they are read from changes, they expire, or they are evicted as the
+ * least recently used. The changes are observed with a client listener registered on each cache, the writes through
+ * this translator invalidate the results right away, see {@link #invalidate(RemoteCache)}. The results are also
+ * indexed by the cache, so that an invalidation only visits the results of that cache. The listeners of the caches
+ * not used for longer than the results live are removed, see {@link #removeIdleInvalidators()}.
+ */
+public class ResultCache {
+    // larger results are not kept
+    static final int MAX_ROWS = 10000;
+
+    private long timeToLive;
+    private Map<RemoteCache<?, ?>, Invalidator> invalidators = new HashMap<>();
+    private LinkedHashMap<List<Object>, Entry> entries;
+
+    private static class Entry {
+        List<List<?>> rows;
+        long expires;
+    }
+
+    /**
+     * Listener that drops the results of its cache on any change, or when events may have been missed.
+     */
+    @ClientListener
+    public class Invalidator {
+        private String cacheName;
+        private long version;
+        private Set<List<Object>> keys = new HashSet<>();
+        private long lastUsed;
+
+        Invalidator(String cacheName) {
+            this.cacheName = cacheName;
+        }
+
+        @ClientCacheEntryCreated
+        public void created(ClientEvent event) {
+            invalidate(this);
+        }
+
+        @ClientCacheEntryModified
+        public void modified(ClientEvent event) {
+            invalidate(this);
+        }
+
+        @ClientCacheEntryRemoved
+        public void removed(ClientEvent event) {
+            invalidate(this);
+        }
+
+        @ClientCacheEntryExpired
+        public void expired(ClientEvent event) {
+            invalidate(this);
+        }
+
+        @ClientCacheFailover
+        public void failover(ClientEvent event) {
+            invalidate(this);
+        }
+    }
+
+    public ResultCache(final int maxEntries, long timeToLive) {
+        this.timeToLive = timeToLive;
+        this.entries = new LinkedHashMap<List<Object>, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = -6457137214378218406L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Entry> eldest) {
+                if (size() <= maxEntries) {
+                    return false;
+                }
+                ((Invalidator)eldest.getKey().get(0)).keys.remove(eldest.getKey());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return the listener of the cache, registered on first use
+     */
+    synchronized Invalidator getInvalidator(RemoteCache<?, ?> cache) {
+        Invalidator invalidator = this.invalidators.get(cache);
+        if (invalidator == null) {
+            invalidator = new Invalidator(cache.getName());
+            cache.addClientListener(invalidator);
+            this.invalidators.put(cache, invalidator);
+        }
+        invalidator.lastUsed = System.currentTimeMillis();
+        return invalidator;
+    }
+
+    /**
+     * @return version of the cache contents, to be given to {@link #put}
+     */
+    synchronized long getVersion(Invalidator invalidator) {
+        return invalidator.version;
+    }
+
+    /**
+     * @return copies of the rows, null if not cached
+     */
+    synchronized List<List<?>> get(Invalidator invalidator, String query) {
+        List<Object> key = Arrays.<Object>asList(invalidator, query);
+        Entry entry = this.entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires < System.currentTimeMillis()) {
+            this.entries.remove(key);
+            invalidator.keys.remove(key);
+            return null;
+        }
+        return copy(entry.rows);
+    }
+
+    /**
+     * Keep the rows, unless the cache changed since the given version was read
+     */
+    synchronized void put(Invalidator invalidator, String query, List<List<?>> rows, long version) {
+        if (invalidator.version != version) {
+            return;
+        }
+        Entry entry = new Entry();
+        entry.rows = copy(rows);
+        invalidator.lastUsed = System.currentTimeMillis();
+        entry.expires = invalidator.lastUsed + this.timeToLive;
+        List<Object> key = Arrays.<Object>asList(invalidator, query);
+        invalidator.keys.add(key);
+        this.entries.put(key, entry);
+    }
+
+    /**
+     * Drop the results read from the cache when it is written through this translator, without waiting for the
+     * events of the listener.
+     */
+    synchronized void invalidate(RemoteCache<?, ?> cache) {
+        Invalidator invalidator = this.invalidators.get(cache);
+        if (invalidator != null) {
+            invalidate(invalidator);
+        }
+    }
+
+    synchronized void invalidate(Invalidator invalidator) {
+        invalidator.version++;
+        for (List<Object> key : invalidator.keys) {
+            this.entries.remove(key);
+        }
+        invalidator.keys.clear();
+        LogManager.logTrace(LogConstants.CTX_CONNECTOR, "Results of cache", invalidator.cacheName, //$NON-NLS-1$
+                "invalidated"); //$NON-NLS-1$
+    }
+
+    /**
+     * Removes the listeners of the caches that no results were read from or kept for within the time to live, their
+     * results have expired. There is no notification when the translator is stopped, see
+     * {@link InfinispanExecutionFactory#removeIdleListeners()}.
+     * @return true if any listener is left
+     */
+    synchronized boolean removeIdleInvalidators() {
+        long idleSince = System.currentTimeMillis() - Math.max(this.timeToLive, 0);
+        Iterator<Map.Entry<RemoteCache<?, ?>, Invalidator>> iter = this.invalidators.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<RemoteCache<?, ?>, Invalidator> entry = iter.next();
+            Invalidator invalidator = entry.getValue();
+            if (invalidator.lastUsed < idleSince) {
+                iter.remove();
+                // the results still being read are not kept
+                invalidate(invalidator);
+                try {
+                    entry.getKey().removeClientListener(invalidator);
+                } catch (RuntimeException e) {
+                    LogManager.logDetail(LogConstants.CTX_CONNECTOR, e,
+                            "Could not remove the result cache listener"); //$NON-NLS-1$
+                }
+            }
+        }
+        return !this.invalidators.isEmpty();
+    }
+
+    // the engine may change the rows it is given
+    private static List<List<?>> copy(List<List<?>> rows) {
+        List<List<?>> result = new ArrayList<>(rows.size());
+        for (List<?> row : rows) {
+            result.add(new ArrayList<Object>(row));
+        }
+        return result;
+    }
+}
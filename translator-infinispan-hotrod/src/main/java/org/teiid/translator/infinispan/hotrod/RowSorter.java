@@ -0,0 +1,336 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.translator.infinispan.hotrod;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.teiid.language.ColumnReference;
+import org.teiid.language.DerivedColumn;
+import org.teiid.language.Limit;
+import org.teiid.language.OrderBy;
+import org.teiid.language.SortSpecification;
+import org.teiid.language.SortSpecification.NullOrdering;
+import org.teiid.language.SortSpecification.Ordering;
+import org.teiid.translator.TranslatorException;
+
+/**
+ * Sorts the rows expanded from the documents, which arrive ordered on the leading sort keys. The rows that are equal
+ * on these keys are sorted as one group, so that the first rows are returned before all of them are read. With a
+ * limit below the given number of rows only the rows within it are kept, otherwise a group larger than that is
+ * sorted in runs written to temporary files, and the runs are merged.
+ */
+class RowSorter {
+    private Comparator<List<Object>> comparator;
+    private Comparator<List<Object>> groupComparator;
+    private int maxRows;
+    private int offset;
+    private int limit = -1;
+    private boolean finished;
+
+    // the group being read, the rows that are not yet in the runs
+    private List<Object> groupFirst;
+    private List<List<Object>> buffer = new ArrayList<>();
+    private List<File> runs = new ArrayList<>();
+    // the sorted rows of the last complete group, in memory or merged from the runs
+    private List<List<Object>> sorted = Collections.emptyList();
+    private int position;
+    private PriorityQueue<Run> merge;
+    private List<Run> mergedRuns = new ArrayList<>();
+
+    private static class Run {
+        File file;
+        ObjectInputStream in;
+        int remaining;
+        List<Object> row;
+    }
+
+    /**
+     * @param columns the selected columns, the sort keys are to be among them
+     * @param groupKeys number of the leading sort keys the rows arrive ordered on
+     */
+    RowSorter(OrderBy orderBy, List<DerivedColumn> columns, int groupKeys, Limit limit, int maxRows)
+            throws TranslatorException {
+        List<SortSpecification> items = orderBy.getSortSpecifications();
+        this.comparator = getComparator(items, columns);
+        this.groupComparator = getComparator(items.subList(0, groupKeys), columns);
+        this.maxRows = Math.max(maxRows, 1);
+        if (limit != null) {
+            this.offset = limit.getRowOffset();
+            if (limit.getRowLimit() != 0) {
+                this.limit = limit.getRowLimit();
+            }
+        }
+    }
+
+    private static Comparator<List<Object>> getComparator(List<SortSpecification> items, List<DerivedColumn> columns)
+            throws TranslatorException {
+        final int[] indexes = new int[items.size()];
+        final boolean[] descending = new boolean[items.size()];
+        final boolean[] nullsHigh = new boolean[items.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            SortSpecification item = items.get(i);
+            indexes[i] = getIndex(item, columns);
+            descending[i] = item.getOrdering() == Ordering.DESC;
+            // nulls are low, unless ordered otherwise
+            nullsHigh[i] = item.getNullOrdering() != null
+                    && (item.getNullOrdering() == NullOrdering.LAST) != descending[i];
+        }
+        return new Comparator<List<Object>>() {
+            @Override
+            public int compare(List<Object> row1, List<Object> row2) {
+                for (int i = 0; i < indexes.length; i++) {
+                    Object value1 = row1.get(indexes[i]);
+                    Object value2 = row2.get(indexes[i]);
+                    int result;
+                    if (value1 == null || value2 == null) {
+                        if (value1 == value2) {
+                            continue;
+                        }
+                        result = (value1 == null) != nullsHigh[i] ? -1 : 1;
+                    } else {
+                        Integer compared = ComplexDocumentFilter.compare(value1, value2);
+                        // the values of different types, that are not numbers, are ordered by their string form
+                        result = compared != null ? compared : value1.toString().compareTo(value2.toString());
+                    }
+                    if (result != 0) {
+                        return descending[i] ? -result : result;
+                    }
+                }
+                return 0;
+            }
+        };
+    }
+
+    private static int getIndex(SortSpecification item, List<DerivedColumn> columns) throws TranslatorException {
+        if (item.getExpression() instanceof ColumnReference) {
+            ColumnReference ref = (ColumnReference)item.getExpression();
+            for (int i = 0; i < columns.size(); i++) {
+                DerivedColumn column = columns.get(i);
+                if (ref.getMetadataObject() == null) {
+                    // ordered by the alias of the selected column
+                    if (ref.getTable() == null && ref.getName().equalsIgnoreCase(column.getAlias())) {
+                        return i;
+                    }
+                } else if (column.getExpression() instanceof ColumnReference && ref.getMetadataObject()
+                        .equals(((ColumnReference)column.getExpression()).getMetadataObject())) {
+                    return i;
+                }
+            }
+        }
+        throw new TranslatorException(InfinispanPlugin.Event.TEIID25010,
+                InfinispanPlugin.Util.gs(InfinispanPlugin.Event.TEIID25010));
+    }
+
+    /**
+     * @return false when no more rows are needed, i.e. all the rows were added or the limit is reached
+     */
+    boolean needsRows() {
+        return !this.finished && this.limit != 0;
+    }
+
+    /**
+     * Add the next row, only once {@link #next()} returned null.
+     */
+    void add(List<Object> row) throws TranslatorException {
+        if (this.groupFirst != null && this.groupComparator.compare(this.groupFirst, row) != 0) {
+            endGroup();
+        }
+        if (this.groupFirst == null) {
+            this.groupFirst = row;
+        }
+        this.buffer.add(row);
+        if (this.buffer.size() >= this.maxRows) {
+            long needed = getNeededRows();
+            if (needed < this.maxRows) {
+                // only the first rows of the group can be returned
+                Collections.sort(this.buffer, this.comparator);
+                this.buffer.subList((int)needed, this.buffer.size()).clear();
+            } else {
+                writeRun();
+            }
+        }
+    }
+
+    /**
+     * All the rows were added.
+     */
+    void finish() throws TranslatorException {
+        this.finished = true;
+        if (this.groupFirst != null) {
+            endGroup();
+        }
+    }
+
+    /**
+     * @return the next sorted row, null if more rows need to be added first, or there are no more rows
+     */
+    List<Object> next() throws TranslatorException {
+        while (this.limit != 0) {
+            List<Object> row = nextSorted();
+            if (row == null) {
+                return null;
+            }
+            if (this.offset > 0) {
+                this.offset--;
+                continue;
+            }
+            if (this.limit > 0) {
+                this.limit--;
+            }
+            return row;
+        }
+        return null;
+    }
+
+    private List<Object> nextSorted() throws TranslatorException {
+        if (this.merge != null) {
+            Run run = this.merge.poll();
+            if (run == null) {
+                closeRuns();
+                return null;
+            }
+            List<Object> row = run.row;
+            if (readRow(run)) {
+                this.merge.add(run);
+            }
+            return row;
+        }
+        if (this.position < this.sorted.size()) {
+            List<Object> row = this.sorted.get(this.position);
+            this.sorted.set(this.position++, null);
+            return row;
+        }
+        this.sorted = Collections.emptyList();
+        return null;
+    }
+
+    /**
+     * @return number of the rows that may still be returned, including the ones skipped for the offset
+     */
+    private long getNeededRows() {
+        return this.limit < 0 ? Long.MAX_VALUE : (long)this.offset + this.limit;
+    }
+
+    private void endGroup() throws TranslatorException {
+        if (this.runs.isEmpty()) {
+            Collections.sort(this.buffer, this.comparator);
+            this.sorted = this.buffer;
+            this.position = 0;
+        } else {
+            if (!this.buffer.isEmpty()) {
+                writeRun();
+            }
+            this.merge = new PriorityQueue<>(this.runs.size(), new Comparator<Run>() {
+                @Override
+                public int compare(Run run1, Run run2) {
+                    return comparator.compare(run1.row, run2.row);
+                }
+            });
+            for (File file : this.runs) {
+                Run run = new Run();
+                run.file = file;
+                this.mergedRuns.add(run);
+                try {
+                    run.in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+                    run.remaining = run.in.readInt();
+                } catch (IOException e) {
+                    throw new TranslatorException(e);
+                }
+                if (readRow(run)) {
+                    this.merge.add(run);
+                }
+            }
+            this.runs.clear();
+        }
+        this.buffer = new ArrayList<>();
+        this.groupFirst = null;
+    }
+
+    private void writeRun() throws TranslatorException {
+        Collections.sort(this.buffer, this.comparator);
+        File file = null;
+        try {
+            file = File.createTempFile("teiid-infinispan", ".sort"); //$NON-NLS-1$ //$NON-NLS-2$
+            this.runs.add(file);
+            try (ObjectOutputStream out = new ObjectOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)))) {
+                out.writeInt(this.buffer.size());
+                for (List<Object> row : this.buffer) {
+                    out.writeUnshared(new ArrayList<>(row));
+                    out.reset();
+                }
+            }
+        } catch (IOException e) {
+            throw new TranslatorException(e);
+        }
+        this.buffer.clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean readRow(Run run) throws TranslatorException {
+        if (run.remaining == 0) {
+            return false;
+        }
+        try {
+            run.row = (List<Object>)run.in.readUnshared();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new TranslatorException(e);
+        }
+        run.remaining--;
+        return true;
+    }
+
+    private void closeRuns() {
+        for (Run run : this.mergedRuns) {
+            try {
+                if (run.in != null) {
+                    run.in.close();
+                }
+            } catch (IOException e) {
+                // ignore
+            }
+            run.file.delete();
+        }
+        this.mergedRuns.clear();
+        this.merge = null;
+    }
+
+    void close() {
+        closeRuns();
+        for (File file : this.runs) {
+            file.delete();
+        }
+        this.runs.clear();
+    }
+}
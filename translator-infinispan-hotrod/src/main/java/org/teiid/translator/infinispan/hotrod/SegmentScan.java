@@ -0,0 +1,219 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.translator.infinispan.hotrod;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.client.hotrod.CacheTopologyInfo;
+import org.infinispan.client.hotrod.RemoteCache;
+import org.infinispan.commons.util.CloseableIterator;
+import org.infinispan.protostream.BaseMarshaller;
+import org.teiid.infinispan.api.InfinispanConnection;
+import org.teiid.infinispan.api.InfinispanDocument;
+import org.teiid.translator.DataNotAvailableException;
+import org.teiid.translator.ExecutionContext;
+import org.teiid.translator.TranslatorException;
+
+/**
+ * Reads all the documents of a cache by iterating over its segments, one worker for the segments of each server.
+ * The documents are optionally filtered by the workers, and handed over in batches; the batches of the different
+ * workers are returned in the order they arrive.
+ *
+ * The workers run on their own executor, see {@link InfinispanExecutionFactory#getScanExecutor()}, as they wait for
+ * the batches to be read; while waiting they check for the scan to be closed, so an abandoned scan does not hold the
+ * worker.
+ */
+class SegmentScan {
+    private static final long OFFER_WAIT_MILLIS = 100;
+
+    private RemoteCache<Object, Object> cache;
+    private int batchSize;
+    private ExecutionContext executionContext;
+    private InfinispanConnection connection;
+    private BaseMarshaller<?> marshaller;
+    private DocumentFilter filter;
+    private BlockingQueue<List<Object>> batches;
+    private List<FutureTask<Void>> workers = new ArrayList<>();
+    private volatile boolean closed;
+
+    SegmentScan(RemoteCache<Object, Object> cache, int batchSize, ExecutionContext executionContext,
+            InfinispanConnection connection, BaseMarshaller<?> marshaller, DocumentFilter filter) {
+        this.cache = cache;
+        this.batchSize = batchSize;
+        this.executionContext = executionContext;
+        this.connection = connection;
+        this.marshaller = marshaller;
+        this.filter = filter;
+    }
+
+    /**
+     * @param parallel if false, all the segments are read by one worker
+     */
+    void start(Executor executor, boolean parallel) {
+        List<Set<Integer>> partitions = null;
+        if (parallel) {
+            partitions = getPartitions(this.cache.getCacheTopologyInfo());
+        } else {
+            partitions = new ArrayList<>();
+            partitions.add(null);
+        }
+        // a couple of batches per worker, the workers wait when the results are not read fast enough
+        this.batches = new ArrayBlockingQueue<>(partitions.size() * 2);
+        for (final Set<Integer> segments : partitions) {
+            FutureTask<Void> worker = new FutureTask<Void>(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    scan(segments);
+                    return null;
+                }
+            }) {
+                @Override
+                protected void done() {
+                    executionContext.dataAvailable();
+                }
+            };
+            this.workers.add(worker);
+            executor.execute(worker);
+        }
+    }
+
+    private void scan(Set<Integer> segments) throws InterruptedException, TranslatorException {
+        this.connection.registerMarshaller(this.marshaller);
+        CloseableIterator<Map.Entry<Object, Object>> iter = this.cache.retrieveEntries(null, segments,
+                this.batchSize);
+        try {
+            List<Object> batch = new ArrayList<>(this.batchSize);
+            while (iter.hasNext()) {
+                Object value = iter.next().getValue();
+                if (value instanceof InfinispanDocument && (this.filter == null || this.filter
+                        .matches(((InfinispanDocument)value).getProperties(), Collections.<String, Object>emptyMap()))) {
+                    batch.add(value);
+                }
+                if (batch.size() == this.batchSize) {
+                    if (!offer(batch)) {
+                        return;
+                    }
+                    this.executionContext.dataAvailable();
+                    batch = new ArrayList<>(this.batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                offer(batch);
+            }
+        } finally {
+            iter.close();
+            this.connection.unRegisterMarshaller(this.marshaller);
+        }
+    }
+
+    /**
+     * Wait for the room in the queue of the batches, until the scan is closed.
+     *
+     * @return false if the scan is closed
+     */
+    private boolean offer(List<Object> batch) throws InterruptedException {
+        while (!this.closed) {
+            if (this.batches.offer(batch, OFFER_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the next batch of documents, null when all the segments are read
+     */
+    List<Object> nextBatch() throws TranslatorException, DataNotAvailableException {
+        List<Object> batch = this.batches.poll();
+        if (batch != null) {
+            return batch;
+        }
+        for (FutureTask<Void> worker : this.workers) {
+            if (!worker.isDone()) {
+                // woken up by the worker when a batch is ready
+                throw DataNotAvailableException.NO_POLLING;
+            }
+            try {
+                worker.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TranslatorException(e);
+            } catch (ExecutionException e) {
+                throw new TranslatorException(e.getCause());
+            }
+        }
+        // the last batches may have been added after the poll above
+        return this.batches.poll();
+    }
+
+    void close() {
+        this.closed = true;
+        if (this.batches != null) {
+            this.batches.clear();
+        }
+        for (FutureTask<Void> worker : this.workers) {
+            worker.cancel(true);
+        }
+    }
+
+    /**
+     * Assign each segment to one of the servers that own it, so that each server is read by one worker.
+     *
+     * @return a single partition with all the segments, when the cache is not distributed in segments
+     */
+    static List<Set<Integer>> getPartitions(CacheTopologyInfo topology) {
+        List<Set<Integer>> partitions = new ArrayList<>();
+        if (topology == null || topology.getSegmentsPerServer() == null) {
+            partitions.add(null);
+            return partitions;
+        }
+        Set<Integer> assigned = new HashSet<>();
+        for (Map.Entry<SocketAddress, Set<Integer>> entry : topology.getSegmentsPerServer().entrySet()) {
+            Set<Integer> segments = new HashSet<>();
+            for (Integer segment : entry.getValue()) {
+                if (assigned.add(segment)) {
+                    segments.add(segment);
+                }
+            }
+            if (!segments.isEmpty()) {
+                partitions.add(segments);
+            }
+        }
+        if (partitions.isEmpty()) {
+            partitions.add(null);
+        }
+        return partitions;
+    }
+}
@@ -22,37 +22,66 @@
 package org.teiid.translator.infinispan.hotrod;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Set;
 import java.util.TreeMap;
 
 import org.infinispan.protostream.ImmutableSerializationContext;
 import org.infinispan.protostream.RawProtoStreamReader;
 import org.infinispan.protostream.RawProtoStreamWriter;
 import org.infinispan.protostream.RawProtobufMarshaller;
-import org.infinispan.protostream.impl.ByteArrayOutputStreamEx;
-import org.infinispan.protostream.impl.RawProtoStreamWriterImpl;
+import org.infinispan.protostream.impl.WireFormat;
 import org.teiid.infinispan.api.InfinispanDocument;
-import org.teiid.infinispan.api.ProtobufDataManager;
 import org.teiid.infinispan.api.TableWireFormat;
 import org.teiid.translator.TranslatorException;
 import org.teiid.translator.document.Document;
 import org.teiid.translator.infinispan.hotrod.DocumentFilter.Action;
+import org.teiid.translator.infinispan.hotrod.WireSchema.Field;
 
 public class TeiidTableMarsheller implements RawProtobufMarshaller<InfinispanDocument> {
+    private static final ThreadLocal<WriteBuffer> WRITE_BUFFER = new ThreadLocal<WriteBuffer>() {
+        @Override
+        protected WriteBuffer initialValue() {
+            return new WriteBuffer();
+        }
+    };
+
     private String documentName;
-    private TreeMap<Integer, TableWireFormat> wireMap = new TreeMap<>();
+    private WireSchema schema;
+    private WireSchema readSchema;
     private DocumentFilter docFilter;
+    private LobStore lobStore;
 
     public TeiidTableMarsheller(String docName, TreeMap<Integer, TableWireFormat> wireMap) {
         this(docName, wireMap, null);
     }
 
     public TeiidTableMarsheller(String docName, TreeMap<Integer, TableWireFormat> wireMap, DocumentFilter filter) {
-        this.documentName= docName;
-        this.wireMap = wireMap;
+        this(WireSchema.compile(docName, wireMap), filter);
+    }
+
+    public TeiidTableMarsheller(WireSchema schema, DocumentFilter filter) {
+        this(schema, filter, null);
+    }
+
+    /**
+     * @param projection when not null, only these document attributes are decoded on read, the rest is skipped.
+     */
+    public TeiidTableMarsheller(WireSchema schema, DocumentFilter filter, Set<String> projection) {
+        this(schema, filter, projection, null);
+    }
+
+    /**
+     * @param lobStore when not null, the references to the large object chunks are resolved through it on read.
+     */
+    public TeiidTableMarsheller(WireSchema schema, DocumentFilter filter, Set<String> projection,
+            LobStore lobStore) {
+        this.documentName= schema.getName();
+        this.schema = schema;
+        this.readSchema = (projection == null) ? schema : schema.project(projection);
         this.docFilter = filter;
+        this.lobStore = lobStore;
     }
 
     @Override
@@ -63,8 +92,8 @@ public class TeiidTableMarsheller implements RawProtobufMarshaller<InfinispanDoc
     // Read from ISPN Types >> Teiid Types
     @Override
     public InfinispanDocument readFrom(ImmutableSerializationContext ctx, RawProtoStreamReader in) throws IOException {
-        InfinispanDocument row = new InfinispanDocument(this.documentName, this.wireMap, null);
-        readDocument(in, row, this.wireMap, this.docFilter);
+        InfinispanDocument row = new InfinispanDocument(this.documentName, this.schema.getWireMap(), null);
+        readDocument(in, row, this.readSchema, this.docFilter, this.lobStore);
         return row;
     }
 
@@ -72,227 +101,166 @@ public class TeiidTableMarsheller implements RawProtobufMarshaller<InfinispanDoc
     @Override
     public void writeTo(ImmutableSerializationContext ctx, RawProtoStreamWriter out, InfinispanDocument document)
             throws IOException {
-        TreeMap<Integer, TableWireFormat> wireMap = document.getWireMap();
-        for (Entry<Integer, TableWireFormat> entry : wireMap.entrySet()) {
-            TableWireFormat twf = entry.getValue();
+        writeDocument(out, document, this.schema);
+    }
 
-            if (twf == null) {
-                throw new IOException("Error in wireformat");
+    @SuppressWarnings("unchecked")
+    static void writeDocument(RawProtoStreamWriter out, InfinispanDocument document, WireSchema schema)
+            throws IOException {
+        if (schema.hasNested()) {
+            // nested messages are length delimited, compute all the sizes first, then write in single pass.
+            WriteBuffer buffer = WRITE_BUFFER.get();
+            try {
+                computeSize(document, schema, buffer);
+                writeSized(out, document, schema, buffer);
+            } finally {
+                buffer.clear();
+            }
+            return;
+        }
+
+        for (Field field : schema.getFields()) {
+            Object value = document.getProperties().get(field.attributeName);
+            if (value == null) {
+                continue;
             }
 
-            int tag = twf.getWriteTag();
+            if (field.array) {
+                for (Object o : (List<Object>)value) {
+                    if (o != null) {
+                        field.write(out, o);
+                    }
+                }
+            } else {
+                field.write(out, value);
+            }
+        }
+    }
 
-            if (twf.isNested()) {
-                List<? extends Document> children = document.getChildDocuments(twf.getAttributeName());
+    /**
+     * Computes the serialized size of the document, recording the encoded values and the sizes of the nested
+     * messages in the buffer in the order {@link #writeSized} needs them.
+     */
+    @SuppressWarnings("unchecked")
+    private static int computeSize(InfinispanDocument document, WireSchema schema, WriteBuffer buffer)
+            throws IOException {
+        int size = 0;
+        for (Field field : schema.getFields()) {
+            if (field.isNested()) {
+                List<? extends Document> children = document.getChildDocuments(field.attributeName);
                 if (children != null) {
                     for (Document d : children) {
-                        ByteArrayOutputStreamEx baos = new ByteArrayOutputStreamEx();
-                        RawProtoStreamWriter rpsw = RawProtoStreamWriterImpl.newInstance(baos);
-                        writeTo(ctx, rpsw, (InfinispanDocument)d);
-                        rpsw.flush();
-                        baos.flush();
-                        // here readtag because this is inner object, even other one uses write tag but calculated
-                        // based on the write operation used.
-                        out.writeBytes(tag, baos.getByteBuffer());
+                        int slot = buffer.reserveSize();
+                        int childSize = computeSize((InfinispanDocument)d, field.nested, buffer);
+                        buffer.sizes[slot] = childSize;
+                        size += field.tagSize + WireCodec.computeLengthDelimitedSize(childSize);
                     }
                 }
                 continue;
             }
 
-            Object value = document.getProperties().get(twf.getAttributeName());
+            Object value = document.getProperties().get(field.attributeName);
             if (value == null) {
                 continue;
             }
 
-            ArrayList<Object> values = null;
-            boolean array = twf.isArrayType();
-            if (array) {
-                values = (ArrayList<Object>)value;
-            }
-
-            switch (twf.getProtobufType()) {
-            case DOUBLE:
-                if (array) {
-                    for (Object o:values) {
-                        out.writeDouble(tag, ProtobufDataManager.convertToInfinispan(Double.class, o));
-                    }
-                } else {
-                    out.writeDouble(tag, ProtobufDataManager.convertToInfinispan(Double.class, value));
-                }
-                break;
-            case FLOAT:
-                if (array) {
-                    for (Object o:values) {
-                        out.writeFloat(tag, ProtobufDataManager.convertToInfinispan(Float.class, o));
-                    }
-                } else {
-                    out.writeFloat(tag, ProtobufDataManager.convertToInfinispan(Float.class, value));
-                }
-                break;
-            case BOOL:
-                if (array) {
-                    for (Object o:values) {
-                        out.writeBool(tag, ProtobufDataManager.convertToInfinispan(Boolean.class, o));
-                    }
-                } else {
-                    out.writeBool(tag, ProtobufDataManager.convertToInfinispan(Boolean.class, value));
-                }
-                break;
-            case STRING:
-                if (array) {
-                    for (Object o:values) {
-                        out.writeString(tag, ProtobufDataManager.convertToInfinispan(String.class, o));
-                    }
-                } else {
-                    out.writeString(tag, ProtobufDataManager.convertToInfinispan(String.class, value));
-                }
-                break;
-            case BYTES:
-                if (array) {
-                    for (Object o:values) {
-                        out.writeBytes(tag, ProtobufDataManager.convertToInfinispan(byte[].class, o));
-                    }
-                } else {
-                    out.writeBytes(tag, ProtobufDataManager.convertToInfinispan(byte[].class, value));
-                }
-                break;
-            case INT32:
-                if (array) {
-                    for (Object o:values) {
-                        out.writeInt32(tag, ProtobufDataManager.convertToInfinispan(Integer.class, o));
-                    }
-                } else {
-                    out.writeInt32(tag, ProtobufDataManager.convertToInfinispan(Integer.class, value));
-                }
-                break;
-            case SFIXED32:
-                if (array) {
-                    for (Object o:values) {
-                        out.writeSFixed32(tag, ProtobufDataManager.convertToInfinispan(Integer.class, o));
+            if (field.array) {
+                for (Object o : (List<Object>)value) {
+                    if (o != null) {
+                        Object encoded = field.encode(o);
+                        buffer.addValue(encoded);
+                        size += field.computeSize(encoded);
                     }
-                } else {
-                    out.writeSFixed32(tag, ProtobufDataManager.convertToInfinispan(Integer.class, value));
                 }
-                break;
-            case FIXED32:
-                if (array) {
-                    for (Object o:values) {
-                        out.writeFixed32(tag, ProtobufDataManager.convertToInfinispan(Integer.class, o));
-                    }
-                } else {
-                    out.writeFixed32(tag, ProtobufDataManager.convertToInfinispan(Integer.class, value));
-                }
-                break;
-            case UINT32:
-                if (array) {
-                    for (Object o:values) {
-                        out.writeUInt32(tag, ProtobufDataManager.convertToInfinispan(Integer.class, o));
-                    }
-                } else {
-                    out.writeUInt32(tag, ProtobufDataManager.convertToInfinispan(Integer.class, value));
-                }
-                break;
-            case SINT32:
-                if (array) {
-                    for (Object o:values) {
-                        out.writeSInt32(tag, ProtobufDataManager.convertToInfinispan(Integer.class, o));
-                    }
-                } else {
-                    out.writeSInt32(tag, ProtobufDataManager.convertToInfinispan(Integer.class, value));
-                }
-                break;
-            case INT64:
-                if (array) {
-                    for (Object o:values) {
-                        out.writeInt64(tag, ProtobufDataManager.convertToInfinispan(Long.class, o));
-                    }
-                } else {
-                    out.writeInt64(tag, ProtobufDataManager.convertToInfinispan(Long.class, value));
-                }
-                break;
-            case UINT64:
-                if (array) {
-                    for (Object o:values) {
-                        out.writeUInt64(tag, ProtobufDataManager.convertToInfinispan(Long.class, o));
-                    }
-                } else {
-                    out.writeUInt64(tag, ProtobufDataManager.convertToInfinispan(Long.class, value));
-                }
-                break;
-            case FIXED64:
-                if (array) {
-                    for (Object o:values) {
-                        out.writeFixed64(tag, ProtobufDataManager.convertToInfinispan(Long.class, o));
-                    }
-                } else {
-                    out.writeFixed64(tag, ProtobufDataManager.convertToInfinispan(Long.class, value));
-                }
-                break;
-            case SFIXED64:
-                if (array) {
-                    for (Object o:values) {
-                        out.writeSFixed64(tag, ProtobufDataManager.convertToInfinispan(Long.class, o));
+            } else {
+                Object encoded = field.encode(value);
+                buffer.addValue(encoded);
+                size += field.computeSize(encoded);
+            }
+        }
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeSized(RawProtoStreamWriter out, InfinispanDocument document, WireSchema schema,
+            WriteBuffer buffer) throws IOException {
+        for (Field field : schema.getFields()) {
+            if (field.isNested()) {
+                List<? extends Document> children = document.getChildDocuments(field.attributeName);
+                if (children != null) {
+                    for (Document d : children) {
+                        out.writeTag(field.number, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                        out.writeUInt32NoTag(buffer.nextSize());
+                        writeSized(out, (InfinispanDocument)d, field.nested, buffer);
                     }
-                } else {
-                    out.writeSFixed64(tag, ProtobufDataManager.convertToInfinispan(Long.class, value));
                 }
-                break;
-            case SINT64:
-                if (array) {
-                    for (Object o:values) {
-                        out.writeSInt64(tag, ProtobufDataManager.convertToInfinispan(Long.class, o));
+                continue;
+            }
+
+            Object value = document.getProperties().get(field.attributeName);
+            if (value == null) {
+                continue;
+            }
+
+            if (field.array) {
+                for (Object o : (List<Object>)value) {
+                    if (o != null) {
+                        field.writeEncoded(out, buffer.nextValue());
                     }
-                } else {
-                    out.writeSInt64(tag, ProtobufDataManager.convertToInfinispan(Long.class, value));
                 }
-                break;
-            default:
-                throw new IOException("Unexpected field type : " + twf.getProtobufType());
+            } else {
+                field.writeEncoded(out, buffer.nextValue());
             }
         }
     }
 
-    static void readDocument(RawProtoStreamReader in, InfinispanDocument document,
-            TreeMap<Integer, TableWireFormat> columnMap, DocumentFilter filter) throws IOException {
+    static void readDocument(RawProtoStreamReader in, InfinispanDocument document, WireSchema schema,
+            DocumentFilter filter, LobStore lobStore) throws IOException {
 
         while (true) {
             int tag = in.readTag();
             if (tag == 0) {
                 break;
             }
-            TableWireFormat twf = columnMap.get(tag);
-            if (twf == null) {
+            Field field = schema.getField(tag);
+            if (field == null) {
                 throw new IOException("Error in wireformat");
             }
 
-            if (twf.isNested()) {
-                InfinispanDocument child = new InfinispanDocument(twf.getAttributeName(), twf.getNestedWireMap(), document);
+            if (field.skip) {
+                in.skipField(tag);
+                continue;
+            }
+
+            if (field.isNested()) {
+                InfinispanDocument child = new InfinispanDocument(field.attributeName,
+                        field.nested.getWireMap(), document);
                 int length = in.readRawVarint32();
                 int oldLimit = in.pushLimit(length);
-                readDocument(in, child, twf.getNestedWireMap(), filter);
+                readDocument(in, child, field.nested, filter, lobStore);
                 try {
                     if (filter == null) {
-                        document.addChildDocument(twf.getAttributeName(), child);
-                        document.incrementUpdateCount(twf.getAttributeName(), true);
+                        document.addChildDocument(field.attributeName, child);
+                        document.incrementUpdateCount(field.attributeName, true);
                     } else {
                         boolean matched = filter.matches(document.getProperties(), child.getProperties());
                         if (matched) {
                             if (filter.action() == Action.ADD) { // SELECT
-                                document.addChildDocument(twf.getAttributeName(), child);
+                                document.addChildDocument(field.attributeName, child);
                             } else if (filter.action() == Action.REMOVE) { // DELETE
                                 // no op, ie removed.
                             } else {
                                 // UPDATE
-                                document.addChildDocument(twf.getAttributeName(), child);
+                                document.addChildDocument(field.attributeName, child);
                             }
                         } else {
                             if (filter.action() == Action.ALWAYSADD || filter.action() == Action.REMOVE) {
-                                document.addChildDocument(twf.getAttributeName(), child);
+                                document.addChildDocument(field.attributeName, child);
                             }
                         }
                         // keep track all the adds and removed based on this filter
                         child.setMatched(matched);
-                        document.incrementUpdateCount(twf.getAttributeName(), matched);
+                        document.incrementUpdateCount(field.attributeName, matched);
                     }
                 } catch (TranslatorException e) {
                     throw new IOException(e.getCause());
@@ -302,54 +270,11 @@ public class TeiidTableMarsheller implements RawProtobufMarshaller<InfinispanDoc
                 continue;
             }
 
-            switch (twf.getProtobufType()) {
-            case DOUBLE:
-                document.addProperty(tag, ProtobufDataManager.convertToRuntime(twf.expectedType(), in.readDouble()));
-                break;
-            case FLOAT:
-                document.addProperty(tag, ProtobufDataManager.convertToRuntime(twf.expectedType(), in.readFloat()));
-                break;
-            case BOOL:
-                document.addProperty(tag, ProtobufDataManager.convertToRuntime(twf.expectedType(),in.readBool()));
-                break;
-            case STRING:
-                document.addProperty(tag, ProtobufDataManager.convertToRuntime(twf.expectedType(), in.readString()));
-                break;
-            case BYTES:
-                document.addProperty(tag, ProtobufDataManager.convertToRuntime(twf.expectedType(), in.readByteArray()));
-                break;
-            case INT32:
-                document.addProperty(tag, ProtobufDataManager.convertToRuntime(twf.expectedType(), in.readInt32()));
-                break;
-            case SFIXED32:
-                document.addProperty(tag, ProtobufDataManager.convertToRuntime(twf.expectedType(), in.readSFixed32()));
-                break;
-            case FIXED32:
-                document.addProperty(tag, ProtobufDataManager.convertToRuntime(twf.expectedType(), in.readFixed32()));
-                break;
-            case UINT32:
-                document.addProperty(tag, ProtobufDataManager.convertToRuntime(twf.expectedType(), in.readUInt32()));
-                break;
-            case SINT32:
-                document.addProperty(tag, ProtobufDataManager.convertToRuntime(twf.expectedType(), in.readSInt32()));
-                break;
-            case INT64:
-                document.addProperty(tag, ProtobufDataManager.convertToRuntime(twf.expectedType(), in.readInt64()));
-                break;
-            case UINT64:
-                document.addProperty(tag, ProtobufDataManager.convertToRuntime(twf.expectedType(), in.readUInt64()));
-                break;
-            case FIXED64:
-                document.addProperty(tag, ProtobufDataManager.convertToRuntime(twf.expectedType(), in.readFixed64()));
-                break;
-            case SFIXED64:
-                document.addProperty(tag, ProtobufDataManager.convertToRuntime(twf.expectedType(), in.readSFixed64()));
-                break;
-            case SINT64:
-                document.addProperty(tag, ProtobufDataManager.convertToRuntime(twf.expectedType(), in.readSInt64()));
-                break;
-            default:
-                throw new IOException("Unexpected field type : " + twf.getProtobufType());
+            Object value = field.read(in, lobStore);
+            if (field.array) {
+                document.addArrayProperty(field.columnName, value);
+            } else {
+                document.addProperty(field.columnName, value);
             }
         }
     }
@@ -358,4 +283,57 @@ public class TeiidTableMarsheller implements RawProtobufMarshaller<InfinispanDoc
     public Class getJavaClass() {
         return InfinispanDocument.class;
     }
+
+    /**
+     * Per thread scratch space of a document write, holds the encoded values and the nested message sizes in the
+     * write order, so that each value is converted only once.
+     */
+    static final class WriteBuffer {
+        // do not hold on to the buffers of unusually large documents
+        private static final int MAX_RETAINED = 1 << 14;
+
+        Object[] values = new Object[64];
+        int[] sizes = new int[16];
+        private int valueCount;
+        private int valuePos;
+        private int sizeCount;
+        private int sizePos;
+
+        void addValue(Object value) {
+            if (this.valueCount == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.valueCount << 1);
+            }
+            this.values[this.valueCount++] = value;
+        }
+
+        int reserveSize() {
+            if (this.sizeCount == this.sizes.length) {
+                this.sizes = Arrays.copyOf(this.sizes, this.sizeCount << 1);
+            }
+            return this.sizeCount++;
+        }
+
+        Object nextValue() {
+            return this.values[this.valuePos++];
+        }
+
+        int nextSize() {
+            return this.sizes[this.sizePos++];
+        }
+
+        void clear() {
+            if (this.values.length > MAX_RETAINED) {
+                this.values = new Object[64];
+            } else {
+                Arrays.fill(this.values, 0, this.valueCount, null);
+            }
+            if (this.sizes.length > MAX_RETAINED) {
+                this.sizes = new int[16];
+            }
+            this.valueCount = 0;
+            this.valuePos = 0;
+            this.sizeCount = 0;
+            this.sizePos = 0;
+        }
+    }
 }
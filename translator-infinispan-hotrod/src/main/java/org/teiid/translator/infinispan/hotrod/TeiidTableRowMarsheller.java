@@ -0,0 +1,142 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.translator.infinispan.hotrod;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.infinispan.protostream.ImmutableSerializationContext;
+import org.infinispan.protostream.RawProtoStreamReader;
+import org.infinispan.protostream.RawProtoStreamWriter;
+import org.infinispan.protostream.RawProtobufMarshaller;
+import org.teiid.translator.infinispan.hotrod.WireSchema.Field;
+
+/**
+ * Read only marshaller for the tables whose documents map to exactly one row, i.e. no one-2-many children are
+ * involved in the query. The selected fields are decoded directly into the row in the projection order, without
+ * building an intermediate document.
+ */
+public class TeiidTableRowMarsheller implements RawProtobufMarshaller<Object[]> {
+    private String documentName;
+    private WireSchema schema;
+    private int columnCount;
+    private int[] duplicateOf;
+    private LobStore lobStore;
+
+    public TeiidTableRowMarsheller(WireSchema schema, List<String> projection) {
+        this(schema, projection, null);
+    }
+
+    public TeiidTableRowMarsheller(WireSchema schema, List<String> projection, LobStore lobStore) {
+        this.lobStore = lobStore;
+        this.documentName = schema.getName();
+        this.schema = schema.projectRow(projection);
+        this.columnCount = projection.size();
+
+        // same column can be selected more than once, only the first position is decoded.
+        for (int i = 0; i < this.columnCount; i++) {
+            int first = projection.indexOf(projection.get(i));
+            if (first != i) {
+                if (this.duplicateOf == null) {
+                    this.duplicateOf = new int[this.columnCount];
+                    for (int j = 0; j < this.columnCount; j++) {
+                        this.duplicateOf[j] = -1;
+                    }
+                }
+                this.duplicateOf[i] = first;
+            }
+        }
+    }
+
+    @Override
+    public String getTypeName() {
+        return this.documentName;
+    }
+
+    @Override
+    public Object[] readFrom(ImmutableSerializationContext ctx, RawProtoStreamReader in) throws IOException {
+        Object[] row = new Object[this.columnCount];
+        readRow(in, row, this.schema, this.lobStore);
+        if (this.duplicateOf != null) {
+            for (int i = 0; i < this.columnCount; i++) {
+                if (this.duplicateOf[i] != -1) {
+                    row[i] = row[this.duplicateOf[i]];
+                }
+            }
+        }
+        return row;
+    }
+
+    @SuppressWarnings("unchecked")
+    static void readRow(RawProtoStreamReader in, Object[] row, WireSchema schema, LobStore lobStore)
+            throws IOException {
+        while (true) {
+            int tag = in.readTag();
+            if (tag == 0) {
+                break;
+            }
+            Field field = schema.getField(tag);
+            if (field == null) {
+                throw new IOException("Error in wireformat");
+            }
+
+            if (field.skip) {
+                in.skipField(tag);
+                continue;
+            }
+
+            if (field.isNested()) {
+                // one-2-one, the columns are part of the same row
+                int length = in.readRawVarint32();
+                int oldLimit = in.pushLimit(length);
+                readRow(in, row, field.nested, lobStore);
+                in.checkLastTagWas(0);
+                in.popLimit(oldLimit);
+                continue;
+            }
+
+            Object value = field.read(in, lobStore);
+            if (field.array) {
+                List<Object> values = (List<Object>)row[field.rowIndex];
+                if (values == null) {
+                    values = new ArrayList<>();
+                    row[field.rowIndex] = values;
+                }
+                values.add(value);
+            } else {
+                row[field.rowIndex] = value;
+            }
+        }
+    }
+
+    @Override
+    public void writeTo(ImmutableSerializationContext ctx, RawProtoStreamWriter out, Object[] row)
+            throws IOException {
+        throw new IOException("Row marshaller for " + this.documentName + " does not support writes");
+    }
+
+    @Override
+    public Class<? extends Object[]> getJavaClass() {
+        return Object[].class;
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.translator.infinispan.hotrod;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.infinispan.protostream.RawProtoStreamReader;
+import org.infinispan.protostream.RawProtoStreamWriter;
+import org.infinispan.protostream.descriptors.Type;
+
+/**
+ * Reads and writes a single protobuf scalar field. One constant per supported protobuf type, so that the type switch
+ * happens once when the {@link WireSchema} is compiled, not for every value.
+ */
+enum WireCodec {
+    DOUBLE {
+        @Override
+        Object read(RawProtoStreamReader in) throws IOException {
+            return in.readDouble();
+        }
+        @Override
+        void write(RawProtoStreamWriter out, int number, Object value) throws IOException {
+            out.writeDouble(number, (Double)value);
+        }
+        @Override
+        int computeSize(Object value) {
+            return 8;
+        }
+    },
+    FLOAT {
+        @Override
+        Object read(RawProtoStreamReader in) throws IOException {
+            return in.readFloat();
+        }
+        @Override
+        void write(RawProtoStreamWriter out, int number, Object value) throws IOException {
+            out.writeFloat(number, (Float)value);
+        }
+        @Override
+        int computeSize(Object value) {
+            return 4;
+        }
+    },
+    BOOL {
+        @Override
+        Object read(RawProtoStreamReader in) throws IOException {
+            return in.readBool();
+        }
+        @Override
+        void write(RawProtoStreamWriter out, int number, Object value) throws IOException {
+            out.writeBool(number, (Boolean)value);
+        }
+        @Override
+        int computeSize(Object value) {
+            return 1;
+        }
+    },
+    STRING {
+        @Override
+        Object read(RawProtoStreamReader in) throws IOException {
+            return in.readString();
+        }
+        @Override
+        void write(RawProtoStreamWriter out, int number, Object value) throws IOException {
+            out.writeString(number, (String)value);
+        }
+        @Override
+        Object encode(Object value) {
+            // encoded once, so that the size is known before the write
+            return ((String)value).getBytes(StandardCharsets.UTF_8);
+        }
+        @Override
+        int computeSize(Object value) {
+            return computeLengthDelimitedSize(((byte[])value).length);
+        }
+        @Override
+        void writeEncoded(RawProtoStreamWriter out, int number, Object value) throws IOException {
+            out.writeBytes(number, (byte[])value);
+        }
+    },
+    BYTES {
+        @Override
+        Object read(RawProtoStreamReader in) throws IOException {
+            return in.readByteArray();
+        }
+        @Override
+        void write(RawProtoStreamWriter out, int number, Object value) throws IOException {
+            out.writeBytes(number, (byte[])value);
+        }
+        @Override
+        int computeSize(Object value) {
+            return computeLengthDelimitedSize(((byte[])value).length);
+        }
+    },
+    INT32 {
+        @Override
+        Object read(RawProtoStreamReader in) throws IOException {
+            return in.readInt32();
+        }
+        @Override
+        void write(RawProtoStreamWriter out, int number, Object value) throws IOException {
+            out.writeInt32(number, (Integer)value);
+        }
+        @Override
+        int computeSize(Object value) {
+            int v = (Integer)value;
+            return (v >= 0) ? computeRawVarint32Size(v) : 10;
+        }
+    },
+    SFIXED32 {
+        @Override
+        Object read(RawProtoStreamReader in) throws IOException {
+            return in.readSFixed32();
+        }
+        @Override
+        void write(RawProtoStreamWriter out, int number, Object value) throws IOException {
+            out.writeSFixed32(number, (Integer)value);
+        }
+        @Override
+        int computeSize(Object value) {
+            return 4;
+        }
+    },
+    FIXED32 {
+        @Override
+        Object read(RawProtoStreamReader in) throws IOException {
+            return in.readFixed32();
+        }
+        @Override
+        void write(RawProtoStreamWriter out, int number, Object value) throws IOException {
+            out.writeFixed32(number, (Integer)value);
+        }
+        @Override
+        int computeSize(Object value) {
+            return 4;
+        }
+    },
+    UINT32 {
+        @Override
+        Object read(RawProtoStreamReader in) throws IOException {
+            return in.readUInt32();
+        }
+        @Override
+        void write(RawProtoStreamWriter out, int number, Object value) throws IOException {
+            out.writeUInt32(number, (Integer)value);
+        }
+        @Override
+        int computeSize(Object value) {
+            return computeRawVarint32Size((Integer)value);
+        }
+    },
+    SINT32 {
+        @Override
+        Object read(RawProtoStreamReader in) throws IOException {
+            return in.readSInt32();
+        }
+        @Override
+        void write(RawProtoStreamWriter out, int number, Object value) throws IOException {
+            out.writeSInt32(number, (Integer)value);
+        }
+        @Override
+        int computeSize(Object value) {
+            int v = (Integer)value;
+            return computeRawVarint32Size((v << 1) ^ (v >> 31));
+        }
+    },
+    INT64 {
+        @Override
+        Object read(RawProtoStreamReader in) throws IOException {
+            return in.readInt64();
+        }
+        @Override
+        void write(RawProtoStreamWriter out, int number, Object value) throws IOException {
+            out.writeInt64(number, (Long)value);
+        }
+        @Override
+        int computeSize(Object value) {
+            return computeRawVarint64Size((Long)value);
+        }
+    },
+    UINT64 {
+        @Override
+        Object read(RawProtoStreamReader in) throws IOException {
+            return in.readUInt64();
+        }
+        @Override
+        void write(RawProtoStreamWriter out, int number, Object value) throws IOException {
+            out.writeUInt64(number, (Long)value);
+        }
+        @Override
+        int computeSize(Object value) {
+            return computeRawVarint64Size((Long)value);
+        }
+    },
+    FIXED64 {
+        @Override
+        Object read(RawProtoStreamReader in) throws IOException {
+            return in.readFixed64();
+        }
+        @Override
+        void write(RawProtoStreamWriter out, int number, Object value) throws IOException {
+            out.writeFixed64(number, (Long)value);
+        }
+        @Override
+        int computeSize(Object value) {
+            return 8;
+        }
+    },
+    SFIXED64 {
+        @Override
+        Object read(RawProtoStreamReader in) throws IOException {
+            return in.readSFixed64();
+        }
+        @Override
+        void write(RawProtoStreamWriter out, int number, Object value) throws IOException {
+            out.writeSFixed64(number, (Long)value);
+        }
+        @Override
+        int computeSize(Object value) {
+            return 8;
+        }
+    },
+    SINT64 {
+        @Override
+        Object read(RawProtoStreamReader in) throws IOException {
+            return in.readSInt64();
+        }
+        @Override
+        void write(RawProtoStreamWriter out, int number, Object value) throws IOException {
+            out.writeSInt64(number, (Long)value);
+        }
+        @Override
+        int computeSize(Object value) {
+            long v = (Long)value;
+            return computeRawVarint64Size((v << 1) ^ (v >> 63));
+        }
+    };
+
+    abstract Object read(RawProtoStreamReader in) throws IOException;
+
+    abstract void write(RawProtoStreamWriter out, int number, Object value) throws IOException;
+
+    /**
+     * @return the value in the form passed to {@link #computeSize(Object)} and
+     *         {@link #writeEncoded(RawProtoStreamWriter, int, Object)}
+     */
+    Object encode(Object value) {
+        return value;
+    }
+
+    /**
+     * @return serialized size of the encoded value, without the tag
+     */
+    abstract int computeSize(Object value);
+
+    void writeEncoded(RawProtoStreamWriter out, int number, Object value) throws IOException {
+        write(out, number, value);
+    }
+
+    static int computeTagSize(int number) {
+        return computeRawVarint32Size(number << 3);
+    }
+
+    static int computeLengthDelimitedSize(int length) {
+        return computeRawVarint32Size(length) + length;
+    }
+
+    static int computeRawVarint32Size(int value) {
+        if ((value & (0xffffffff <<  7)) == 0) {
+            return 1;
+        }
+        if ((value & (0xffffffff << 14)) == 0) {
+            return 2;
+        }
+        if ((value & (0xffffffff << 21)) == 0) {
+            return 3;
+        }
+        if ((value & (0xffffffff << 28)) == 0) {
+            return 4;
+        }
+        return 5;
+    }
+
+    static int computeRawVarint64Size(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * @return codec for given protobuf type, null when the type can not be represented as a column value
+     */
+    static WireCodec forType(Type type) {
+        switch (type) {
+        case DOUBLE:
+            return DOUBLE;
+        case FLOAT:
+            return FLOAT;
+        case BOOL:
+            return BOOL;
+        case STRING:
+            return STRING;
+        case BYTES:
+            return BYTES;
+        case INT32:
+            return INT32;
+        case SFIXED32:
+            return SFIXED32;
+        case FIXED32:
+            return FIXED32;
+        case UINT32:
+            return UINT32;
+        case SINT32:
+            return SINT32;
+        case INT64:
+            return INT64;
+        case UINT64:
+            return UINT64;
+        case FIXED64:
+            return FIXED64;
+        case SFIXED64:
+            return SFIXED64;
+        case SINT64:
+            return SINT64;
+        default:
+            return null;
+        }
+    }
+}
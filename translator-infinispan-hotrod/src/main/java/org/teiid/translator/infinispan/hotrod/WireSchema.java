@@ -0,0 +1,326 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.translator.infinispan.hotrod;
+
+import java.io.IOException;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLXML;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.infinispan.protostream.RawProtoStreamReader;
+import org.infinispan.protostream.RawProtoStreamWriter;
+import org.infinispan.protostream.impl.WireFormat;
+import org.teiid.infinispan.api.ProtobufDataManager.Converter;
+import org.teiid.infinispan.api.TableWireFormat;
+
+/**
+ * Compiled form of the wire map built by {@link MarshallerBuilder#getWireMap}. The fields are indexed by their
+ * protobuf field number in a flat array, and each field carries the reader/writer and the target types that were
+ * resolved at compile time, so decoding a field does not need any map lookups or type switches.
+ */
+public class WireSchema {
+    // above this field number a flat array would be mostly empty, then fall back to binary search on the tags
+    private static final int MAX_DENSE_FIELD_NUMBER = 1024;
+
+    private final String name;
+    private final TreeMap<Integer, TableWireFormat> wireMap;
+    private final Field[] fields;
+    private final Field[] byNumber;
+    private final int[] sortedTags;
+    private final boolean hasNested;
+
+    private WireSchema(String name, TreeMap<Integer, TableWireFormat> wireMap, Field[] fields) {
+        this.name = name;
+        this.wireMap = wireMap;
+        this.fields = fields;
+        boolean nested = false;
+        for (Field f : fields) {
+            nested |= f.isNested();
+        }
+        this.hasNested = nested;
+
+        int maxNumber = 0;
+        for (Field f : fields) {
+            maxNumber = Math.max(maxNumber, f.number);
+        }
+        if (maxNumber <= MAX_DENSE_FIELD_NUMBER) {
+            this.byNumber = new Field[maxNumber + 1];
+            for (Field f : fields) {
+                this.byNumber[f.number] = f;
+            }
+            this.sortedTags = null;
+        } else {
+            // fields are in the read tag order of the wire map
+            this.byNumber = null;
+            this.sortedTags = new int[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                this.sortedTags[i] = fields[i].readTag;
+            }
+        }
+    }
+
+    public static WireSchema compile(String name, TreeMap<Integer, TableWireFormat> wireMap) {
+        Collection<TableWireFormat> formats = wireMap.values();
+        Field[] fields = new Field[formats.size()];
+        int i = 0;
+        for (TableWireFormat twf : formats) {
+            WireSchema nested = null;
+            if (twf.isNested()) {
+                nested = compile(twf.getAttributeName(), twf.getNestedWireMap());
+            }
+            fields[i++] = new Field(twf, nested);
+        }
+        return new WireSchema(name, wireMap, fields);
+    }
+
+    /**
+     * Build a read only variant of this schema, that only decodes the given document attributes. All the other fields
+     * are skipped at the wire level. A nested message is skipped as whole unless one of its attributes is needed, or
+     * the message itself is named in the attributes i.e. the child documents are needed to build the rows even though
+     * none of its columns are selected.
+     */
+    public WireSchema project(Set<String> attributes) {
+        Field[] projected = new Field[this.fields.length];
+        for (int i = 0; i < this.fields.length; i++) {
+            Field f = this.fields[i];
+            if (f.isNested()) {
+                WireSchema nested = f.nested.project(attributes);
+                boolean skip = !nested.isProjecting() && !attributes.contains(f.attributeName);
+                projected[i] = new Field(f, nested, skip);
+            } else {
+                projected[i] = new Field(f, null, !attributes.contains(f.attributeName));
+            }
+        }
+        return new WireSchema(this.name, this.wireMap, projected);
+    }
+
+    /**
+     * Build a read only variant of this schema, that decodes the given document attributes straight into a row, at
+     * the position of the attribute in the given list. Only valid for documents that result in a single row, i.e. the
+     * nested messages are one-2-one.
+     */
+    public WireSchema projectRow(List<String> attributes) {
+        Field[] projected = new Field[this.fields.length];
+        for (int i = 0; i < this.fields.length; i++) {
+            Field f = this.fields[i];
+            if (f.isNested()) {
+                WireSchema nested = f.nested.projectRow(attributes);
+                projected[i] = new Field(f, nested, !nested.isProjecting(), -1);
+            } else {
+                int index = attributes.indexOf(f.attributeName);
+                projected[i] = new Field(f, null, index == -1, index);
+            }
+        }
+        return new WireSchema(this.name, this.wireMap, projected);
+    }
+
+    /**
+     * @return true if any of the fields are decoded
+     */
+    boolean isProjecting() {
+        for (Field f : this.fields) {
+            if (!f.skip) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if any of the fields is a nested message
+     */
+    boolean hasNested() {
+        return this.hasNested;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public TreeMap<Integer, TableWireFormat> getWireMap() {
+        return this.wireMap;
+    }
+
+    /**
+     * @return all the fields in the write order
+     */
+    Field[] getFields() {
+        return this.fields;
+    }
+
+    /**
+     * @return the field expected for given read tag; null if this tag is not part of schema
+     */
+    Field getField(int tag) {
+        Field f = null;
+        if (this.byNumber != null) {
+            int number = WireFormat.getTagFieldNumber(tag);
+            if (number < this.byNumber.length) {
+                f = this.byNumber[number];
+            }
+        } else {
+            int idx = Arrays.binarySearch(this.sortedTags, tag);
+            if (idx >= 0) {
+                f = this.fields[idx];
+            }
+        }
+        if (f != null && f.readTag == tag) {
+            return f;
+        }
+        return null;
+    }
+
+    static final class Field {
+        final TableWireFormat format;
+        final int number;
+        final int readTag;
+        final String attributeName;
+        final String columnName;
+        final WireSchema nested;
+        final boolean array;
+        final WireCodec codec;
+        final Converter readConverter;
+        final Converter writeConverter;
+        // runtime type when the column is a large object stored as bytes, see LobStore
+        final Class<?> lobType;
+        final boolean skip;
+        final int rowIndex;
+        final int tagSize;
+
+        Field(TableWireFormat twf, WireSchema nested) {
+            this.format = twf;
+            this.number = twf.getWriteTag();
+            this.readTag = twf.getReadTag();
+            this.attributeName = twf.getAttributeName();
+            this.columnName = twf.getColumnName();
+            this.nested = nested;
+            if (nested == null) {
+                this.array = twf.isArrayType();
+                this.codec = WireCodec.forType(twf.getProtobufType());
+                this.readConverter = twf.getRuntimeConverter();
+                this.writeConverter = twf.getInfinispanConverter();
+                this.lobType = (this.codec == WireCodec.BYTES) ? getLobType(twf.expectedType()) : null;
+            } else {
+                this.array = false;
+                this.codec = null;
+                this.readConverter = null;
+                this.writeConverter = null;
+                this.lobType = null;
+            }
+            this.skip = false;
+            this.rowIndex = -1;
+            this.tagSize = WireCodec.computeTagSize(this.number);
+        }
+
+        Field(Field f, WireSchema nested, boolean skip) {
+            this(f, nested, skip, -1);
+        }
+
+        Field(Field f, WireSchema nested, boolean skip, int rowIndex) {
+            this.format = f.format;
+            this.number = f.number;
+            this.readTag = f.readTag;
+            this.attributeName = f.attributeName;
+            this.columnName = f.columnName;
+            this.nested = nested;
+            this.array = f.array;
+            this.codec = f.codec;
+            this.readConverter = f.readConverter;
+            this.writeConverter = f.writeConverter;
+            this.lobType = f.lobType;
+            this.skip = skip;
+            this.rowIndex = rowIndex;
+            this.tagSize = f.tagSize;
+        }
+
+        private static Class<?> getLobType(Class<?> type) {
+            if (type != null && (Blob.class.isAssignableFrom(type) || Clob.class.isAssignableFrom(type)
+                    || SQLXML.class.isAssignableFrom(type))) {
+                return type;
+            }
+            return null;
+        }
+
+        boolean isNested() {
+            return this.nested != null;
+        }
+
+        Object read(RawProtoStreamReader in) throws IOException {
+            if (this.codec == null) {
+                throw new IOException("Unexpected field type : " + this.format.getProtobufType());
+            }
+            return this.readConverter.convert(this.codec.read(in));
+        }
+
+        /**
+         * Read the value, resolving a reference to the chunks of a large object through the given store.
+         */
+        Object read(RawProtoStreamReader in, LobStore lobStore) throws IOException {
+            if (lobStore == null || this.lobType == null) {
+                return read(in);
+            }
+            Object value = this.codec.read(in);
+            if (LobStore.isReference(value)) {
+                return lobStore.read((byte[])value, this.lobType);
+            }
+            return this.readConverter.convert(value);
+        }
+
+        void write(RawProtoStreamWriter out, Object value) throws IOException {
+            if (this.codec == null) {
+                throw new IOException("Unexpected field type : " + this.format.getProtobufType());
+            }
+            this.codec.write(out, this.number, this.writeConverter.convert(value));
+        }
+
+        /**
+         * @return the value converted and encoded for the wire, see {@link WireCodec#encode(Object)}
+         */
+        Object encode(Object value) throws IOException {
+            if (this.codec == null) {
+                throw new IOException("Unexpected field type : " + this.format.getProtobufType());
+            }
+            return this.codec.encode(this.writeConverter.convert(value));
+        }
+
+        /**
+         * @return serialized size of the encoded value including the tag
+         */
+        int computeSize(Object encoded) {
+            return this.tagSize + this.codec.computeSize(encoded);
+        }
+
+        void writeEncoded(RawProtoStreamWriter out, Object encoded) throws IOException {
+            this.codec.writeEncoded(out, this.number, encoded);
+        }
+
+        @Override
+        public String toString() {
+            return this.attributeName;
+        }
+    }
+}
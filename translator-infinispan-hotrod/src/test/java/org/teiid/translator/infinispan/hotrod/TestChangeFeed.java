@@ -0,0 +1,96 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.translator.infinispan.hotrod;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.infinispan.client.hotrod.RemoteCache;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+@SuppressWarnings("unchecked")
+public class TestChangeFeed {
+
+    @Test
+    public void testPoll() {
+        ChangeFeed feed = new ChangeFeed(3);
+        feed.add(1, ChangeFeed.INSERT);
+        // nothing is known before the listener was registered
+        assertEquals(Arrays.asList(Arrays.asList(ChangeFeed.RELOAD, null, 1L)), feed.poll(0));
+        assertEquals(Arrays.asList(Arrays.asList(ChangeFeed.INSERT, 1, 2L)), feed.poll(1));
+
+        feed.add(1, ChangeFeed.UPDATE);
+        feed.add(2, ChangeFeed.DELETE);
+        feed.add(2, ChangeFeed.INSERT);
+        feed.add(3, ChangeFeed.UPDATE);
+        feed.add(3, ChangeFeed.DELETE);
+        List<List<?>> changes = feed.poll(1);
+        assertEquals(Arrays.asList(Arrays.asList(ChangeFeed.INSERT, 1, 3L), Arrays.asList(ChangeFeed.UPDATE, 2, 5L),
+                Arrays.asList(ChangeFeed.DELETE, 3, 7L)), changes);
+        // not acknowledged, read again
+        assertEquals(changes, feed.poll(1));
+        assertEquals(Arrays.asList(Arrays.asList(ChangeFeed.DELETE, 3, 7L)), feed.poll(5));
+        assertTrue(feed.poll(7).isEmpty());
+
+        // the net change after the acknowledged one
+        feed.add(3, ChangeFeed.INSERT);
+        assertEquals(Arrays.asList(Arrays.asList(ChangeFeed.INSERT, 3, 8L)), feed.poll(7));
+
+        // too many changes to keep
+        for (int i = 0; i < 4; i++) {
+            feed.add(i, ChangeFeed.UPDATE);
+        }
+        assertEquals(Arrays.asList(Arrays.asList(ChangeFeed.RELOAD, null, 12L)), feed.poll(8));
+        assertEquals(Arrays.asList(Arrays.asList(ChangeFeed.RELOAD, null, 12L)), feed.poll(8));
+        assertEquals(Arrays.asList(Arrays.asList(ChangeFeed.UPDATE, 3, 13L)), feed.poll(12));
+        assertTrue(feed.poll(13).isEmpty());
+
+        feed.add(1, ChangeFeed.UPDATE);
+        feed.failover(null);
+        assertEquals(Arrays.asList(Arrays.asList(ChangeFeed.RELOAD, null, 15L)), feed.poll(14));
+    }
+
+    @Test
+    public void testRegistration() throws Exception {
+        RemoteCache<Object, Object> cache = Mockito.mock(RemoteCache.class);
+        InfinispanExecutionFactory ef = new InfinispanExecutionFactory();
+        ChangeFeed feed = ef.getChangeFeed(cache, "model.G1");
+        assertSame(feed, ef.getChangeFeed(cache, "model.G1"));
+        ChangeFeed other = ef.getChangeFeed(cache, "model.G2");
+        assertNotSame(feed, other);
+        Mockito.verify(cache, Mockito.times(1)).addClientListener(feed);
+
+        ef.setChangeFeedTimeout(10);
+        other.poll(0);
+        Thread.sleep(20);
+        feed.poll(0);
+        ef.removeIdleChangeFeeds();
+        Mockito.verify(cache).removeClientListener(other);
+        Mockito.verify(cache, Mockito.never()).removeClientListener(feed);
+
+        // listened to again
+        assertNotSame(other, ef.getChangeFeed(cache, "model.G2"));
+    }
+}
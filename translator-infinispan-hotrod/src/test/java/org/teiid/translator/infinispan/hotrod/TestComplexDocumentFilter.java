@@ -0,0 +1,189 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.translator.infinispan.hotrod;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.teiid.cdk.api.TranslationUtility;
+import org.teiid.dqp.internal.datamgr.RuntimeMetadataImpl;
+import org.teiid.language.Condition;
+import org.teiid.language.Select;
+import org.teiid.metadata.MetadataFactory;
+import org.teiid.metadata.RuntimeMetadata;
+import org.teiid.query.metadata.TransformationMetadata;
+import org.teiid.translator.infinispan.hotrod.DocumentFilter.Action;
+
+public class TestComplexDocumentFilter {
+    private IckleConvertionVisitor visitor;
+    private String alias;
+    private TranslationUtility utility;
+
+    @Before
+    public void setup() throws Exception {
+        MetadataFactory mf = TestProtobufMetadataProcessor.protoMatadata("tables.proto");
+        InfinispanExecutionFactory ef = new InfinispanExecutionFactory();
+        TransformationMetadata metadata = TestProtobufMetadataProcessor.getTransformationMetadata(mf, ef);
+        this.utility = new TranslationUtility(metadata);
+        Select cmd = (Select)this.utility.parseCommand("select * from G4");
+        RuntimeMetadata runtimeMetadata = new RuntimeMetadataImpl(metadata);
+        this.visitor = new IckleConvertionVisitor(runtimeMetadata, false);
+        this.visitor.visitNode(cmd);
+        this.visitor.getQuery();
+        this.alias = this.visitor.getQueryNamedTable().getCorrelationName();
+    }
+
+    private DocumentFilter filter(String criteria) throws Exception {
+        return new ComplexDocumentFilter(this.visitor.getParentNamedTable(), this.visitor.getQueryNamedTable(),
+                this.visitor.getMetadata(), criteria.replace("c.", this.alias + "."), Action.ADD);
+    }
+
+    private Map<String, Object> child(Object e1, Object e2) {
+        Map<String, Object> child = new HashMap<>();
+        child.put("pm1.G2/pm1.G4/e1", e1);
+        child.put("pm1.G2/pm1.G4/e2", e2);
+        return child;
+    }
+
+    @Test
+    public void testCompare() throws Exception {
+        Map<String, Object> parent = new HashMap<>();
+        DocumentFilter filter = filter("c.e2 = 'hello'");
+        assertTrue(filter.getDocumentAttributes().contains("pm1.G2/pm1.G4/e2"));
+        assertTrue(filter.matches(parent, child(1, "hello")));
+        assertFalse(filter.matches(parent, child(1, "world")));
+        assertFalse(filter.matches(parent, child(1, null)));
+
+        filter = filter("c.e1 > 1 OR c.e2 = 'hello'");
+        assertTrue(filter.matches(parent, child(2, "world")));
+        assertTrue(filter.matches(parent, child(1, "hello")));
+        assertFalse(filter.matches(parent, child(1, "world")));
+
+        filter = filter("c.e1 >= 2 AND c.e1 < 3");
+        assertTrue(filter.matches(parent, child(2, "world")));
+        assertFalse(filter.matches(parent, child(3, "world")));
+
+        // integer literal against long value
+        filter = filter("c.e1 = 2");
+        assertTrue(filter.matches(parent, child(2L, "world")));
+    }
+
+    @Test
+    public void testUnknown() throws Exception {
+        Map<String, Object> parent = new HashMap<>();
+        // null is neither equal nor not equal
+        assertFalse(filter("NOT (c.e2 = 'hello')").matches(parent, child(1, null)));
+        assertTrue(filter("NOT (c.e2 = 'hello')").matches(parent, child(1, "world")));
+        assertTrue(filter("c.e2 IS NULL").matches(parent, child(1, null)));
+        assertFalse(filter("c.e2 IS NOT NULL").matches(parent, child(1, null)));
+        assertTrue(filter("c.e2 = 'hello' OR c.e1 = 1").matches(parent, child(1, null)));
+    }
+
+    @Test
+    public void testIn() throws Exception {
+        Map<String, Object> parent = new HashMap<>();
+        DocumentFilter filter = filter("c.e1 IN (3, 4)");
+        assertTrue(filter.matches(parent, child(4, "world")));
+        assertFalse(filter.matches(parent, child(1, "world")));
+        assertTrue(filter("c.e1 NOT IN (3, 4)").matches(parent, child(1, "world")));
+    }
+
+    @Test
+    public void testPseudoColumnFromParent() throws Exception {
+        Map<String, Object> parent = new HashMap<>();
+        parent.put("e1", 1);
+        DocumentFilter filter = filter("c.G2_e1 = 1 AND c.e2 LIKE 'he%'");
+        assertTrue(filter.getDocumentAttributes().contains("e1"));
+        assertTrue(filter.matches(parent, child(5, "hello")));
+        assertFalse(filter.matches(parent, child(5, "world")));
+        parent.put("e1", 2);
+        assertFalse(filter.matches(parent, child(5, "hello")));
+    }
+
+    private Condition childCondition(String query) throws Exception {
+        Select cmd = (Select)this.utility.parseCommand(query);
+        IckleConvertionVisitor v = new IckleConvertionVisitor(this.visitor.getMetadata(), false);
+        v.visitNode(cmd);
+        v.getQuery();
+        return InfinispanQueryExecution.getChildCondition(cmd.getWhere(), v.getParentTable());
+    }
+
+    @Test
+    public void testChildCondition() throws Exception {
+        // fully evaluated by the server
+        assertNull(childCondition("select * from G4 where G2_e1 = 2"));
+        assertNull(childCondition("select g2.e1, g4.e1 from G2 g2 JOIN G4 g4 ON g2.e1 = g4.g2_e1 WHERE g2.e2 = 'foo'"));
+
+        assertEquals("g4.e2 = 'bar'", childCondition("select g2.e1, g4.e1 from G2 g2 JOIN G4 g4 "
+                + "ON g2.e1 = g4.g2_e1 WHERE g2.e2 = 'foo' AND g4.e2 = 'bar'").toString());
+        assertEquals("(g2.e2 = 'foo' OR g4.e2 = 'bar') AND g4.e1 > 1", childCondition("select g2.e1, g4.e1 "
+                + "from G2 g2 JOIN G4 g4 ON g2.e1 = g4.g2_e1 WHERE (g2.e2 = 'foo' OR g4.e2 = 'bar') AND g2.e1 = 1 "
+                + "AND g4.e1 > 1").toString());
+    }
+
+    @Test
+    public void testSharedByThreads() throws Exception {
+        final DocumentFilter filter = filter("c.e1 > 1 AND c.e2 LIKE 'he%'");
+        final Map<String, Object> parent = new HashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                final int e1 = i;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return filter.matches(parent, child(e1, e1 % 2 == 0 ? "hello" : "world"));
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(i > 1 && i % 2 == 0, results.get(i).get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCompareNumbers() {
+        assertEquals(0, ComplexDocumentFilter.compare(1, 1L).intValue());
+        assertEquals(-1, Integer.signum(ComplexDocumentFilter.compare(new BigDecimal("1.5"), 2)));
+        assertEquals(1, Integer.signum(ComplexDocumentFilter.compare(Double.NaN, 1)));
+        assertEquals(1, Integer.signum(ComplexDocumentFilter.compare(Float.POSITIVE_INFINITY, 1L)));
+        assertEquals(-1, Integer.signum(ComplexDocumentFilter.compare(Double.NEGATIVE_INFINITY, 1.5f)));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.translator.infinispan.hotrod;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.teiid.infinispan.api.InfinispanDocument;
+import org.teiid.infinispan.api.TableWireFormat;
+
+public class TestDocumentRowIterator {
+
+    private static InfinispanDocument child(InfinispanDocument parent, String name, Object value) {
+        InfinispanDocument child = new InfinispanDocument(name, new TreeMap<Integer, TableWireFormat>(), parent);
+        child.addProperty("e1", value);
+        parent.addChildDocument(name, child);
+        return child;
+    }
+
+    private static List<List<Object>> rows(DocumentRowIterator iter) {
+        List<List<Object>> rows = new ArrayList<>();
+        while (iter.hasNext()) {
+            rows.add(iter.next());
+        }
+        return rows;
+    }
+
+    @Test
+    public void testCrossProduct() throws Exception {
+        InfinispanDocument parent = new InfinispanDocument("pm1.G2", new TreeMap<Integer, TableWireFormat>(), null);
+        parent.addProperty("e1", 1);
+        String a = child(parent, "pm1.A", "a1").getProperties().keySet().iterator().next();
+        child(parent, "pm1.A", "a2");
+        String b = child(parent, "pm1.B", "b1").getProperties().keySet().iterator().next();
+        child(parent, "pm1.B", "b2");
+        child(parent, "pm1.B", "b3");
+
+        Map<String, Boolean> nested = new LinkedHashMap<>();
+        nested.put("pm1.A", false);
+        nested.put("pm1.B", false);
+        List<List<Object>> rows = rows(new DocumentRowIterator(parent, nested, Arrays.asList("e1", a, b)));
+        assertEquals(6, rows.size());
+        assertEquals(Arrays.asList(1, "a1", "b1"), rows.get(0));
+        assertEquals(Arrays.asList(1, "a1", "b3"), rows.get(2));
+        assertEquals(Arrays.asList(1, "a2", "b1"), rows.get(3));
+    }
+
+    @Test
+    public void testMissingChildren() throws Exception {
+        InfinispanDocument parent = new InfinispanDocument("pm1.G2", new TreeMap<Integer, TableWireFormat>(), null);
+        parent.addProperty("e1", 1);
+
+        Map<String, Boolean> nested = new LinkedHashMap<>();
+        nested.put("pm1.A", true);
+        List<List<Object>> rows = rows(new DocumentRowIterator(parent, nested, Arrays.asList("e1", "pm1.G2/pm1.A/e1")));
+        assertEquals(1, rows.size());
+        assertEquals(Arrays.asList(1, null), rows.get(0));
+
+        nested.put("pm1.A", false);
+        assertFalse(new DocumentRowIterator(parent, nested, Arrays.asList("e1")).hasNext());
+    }
+
+    @Test
+    public void testNestedChildren() throws Exception {
+        InfinispanDocument parent = new InfinispanDocument("pm1.G2", new TreeMap<Integer, TableWireFormat>(), null);
+        parent.addProperty("e1", 1);
+        InfinispanDocument a1 = child(parent, "pm1.A", "a1");
+        String a = a1.getProperties().keySet().iterator().next();
+        String c = child(a1, "pm1.C", "c1").getProperties().keySet().iterator().next();
+        child(a1, "pm1.C", "c2");
+        child(parent, "pm1.A", "a2");
+
+        Map<String, Boolean> nested = new LinkedHashMap<>();
+        nested.put("pm1.A", false);
+        List<List<Object>> rows = rows(new DocumentRowIterator(parent, nested, Arrays.asList("e1", a, c)));
+        assertEquals(3, rows.size());
+        assertEquals(Arrays.asList(1, "a1", "c1"), rows.get(0));
+        assertEquals(Arrays.asList(1, "a1", "c2"), rows.get(1));
+        // the nested documents of a child are outer joined to it
+        assertEquals(Arrays.asList(1, "a2", null), rows.get(2));
+    }
+}
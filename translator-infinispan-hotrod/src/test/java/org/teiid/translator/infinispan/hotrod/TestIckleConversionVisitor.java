@@ -23,10 +23,23 @@ package org.teiid.translator.infinispan.hotrod;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.BeforeClass;
 import org.junit.Test;
 import org.teiid.cdk.api.TranslationUtility;
 import org.teiid.dqp.internal.datamgr.RuntimeMetadataImpl;
+import org.teiid.language.AndOr;
 import org.teiid.language.Command;
+import org.teiid.language.Condition;
+import org.teiid.language.Expression;
+import org.teiid.language.In;
+import org.teiid.language.Literal;
+import org.teiid.language.Not;
 import org.teiid.language.Select;
 import org.teiid.language.Update;
 import org.teiid.metadata.MetadataFactory;
@@ -35,6 +48,24 @@ import org.teiid.query.metadata.TransformationMetadata;
 import org.teiid.translator.TranslatorException;
 
 public class TestIckleConversionVisitor {
+    // the metadata of tables.proto, shared by the tests that only need the visitor
+    private static TransformationMetadata metadata;
+
+    @BeforeClass
+    public static void oneTimeSetup() throws Exception {
+        MetadataFactory mf = TestProtobufMetadataProcessor.protoMatadata("tables.proto");
+        metadata = TestProtobufMetadataProcessor.getTransformationMetadata(mf, new InfinispanExecutionFactory());
+    }
+
+    private Command helpParse(String query) throws Exception {
+        return new TranslationUtility(metadata).parseCommand(query);
+    }
+
+    private IckleConvertionVisitor helpVisit(Command cmd) {
+        IckleConvertionVisitor visitor = new IckleConvertionVisitor(new RuntimeMetadataImpl(metadata), false);
+        visitor.visitNode(cmd);
+        return visitor;
+    }
 
     private IckleConvertionVisitor helpExecute(String query, String expected) throws Exception {
         MetadataFactory mf = TestProtobufMetadataProcessor.protoMatadata("tables.proto");
@@ -129,10 +160,18 @@ public class TestIckleConversionVisitor {
                 "SELECT g1_0.e1, g1_0.e2, g1_0.e3 FROM pm1.G1 g1_0 WHERE g1_0.e2 IN ('foo', 'bar') ORDER BY g1_0.e3");
     }
 
-    @Test(expected=TranslatorException.class)
+    @Test
     public void testOrderByOnNested() throws Exception {
-        helpExecute("select e1, e2 from model.G4 order by e1",
-                "FROM pm1.G2 g2_1 ORDER BY g2_1.g4.e1");
+        IckleConvertionVisitor visitor = helpExecute("select e1, e2 from model.G4 order by e1 limit 5",
+                "FROM pm1.G2 g2_1");
+        assertNotNull(visitor.getRowOrderBy());
+        assertEquals(0, visitor.getDocumentSortKeys());
+        assertEquals(5, visitor.getRowOrderLimit().getRowLimit());
+        assertNull(visitor.getRowLimit());
+
+        visitor = helpExecute("select G2_e1, e1, e2 from model.G4 order by G2_e1 desc, e1",
+                "FROM pm1.G2 g2_1 ORDER BY g2_1.e1 DESC");
+        assertEquals(1, visitor.getDocumentSortKeys());
     }
 
     @Test
@@ -160,14 +199,52 @@ public class TestIckleConversionVisitor {
     public void testIsNullClause() throws Exception {
         helpExecute("select e1 from model.G1 where e2 IS NULL", "SELECT g1_0.e1 FROM pm1.G1 g1_0 WHERE g1_0.e2 IS NULL");
         helpExecute("select e1 from model.G1 where e2 IS NOT NULL", "SELECT g1_0.e1 FROM pm1.G1 g1_0 WHERE g1_0.e2 IS NOT NULL");
+
+        // left to the client, a document matches when any of its child documents does
+        helpExecute("select * from model.G4 where e2 IS NULL", "FROM pm1.G2 g2_1");
+        helpExecute("select * from model.G4 where G2_e1 = 2 and e2 IS NULL", "FROM pm1.G2 g2_1 WHERE g2_1.e1 = 2");
+    }
+
+    @Test
+    public void testDistinct() throws Exception {
+        IckleConvertionVisitor visitor = helpExecute("select distinct e1, e2 from model.G1",
+                "SELECT g1_0.e1, g1_0.e2 FROM pm1.G1 g1_0 GROUP BY g1_0.e1, g1_0.e2");
+        assertTrue(visitor.isDistinctByGroupBy());
+        assertNull(visitor.getKeysetColumn());
+
+        visitor = helpExecute("select distinct e1, g3_e1 from model.G2", "FROM pm1.G2 g2_0");
+        assertFalse(visitor.isDistinctByGroupBy());
+
+        // the limit counts the distinct rows, applied after they are made distinct on the client
+        visitor = helpExecute("select distinct e1, g3_e1 from model.G2 limit 2, 5", "FROM pm1.G2 g2_0");
+        assertNull(visitor.getRowLimit());
+        assertEquals(2, visitor.getDistinctLimit().getRowOffset());
+        assertEquals(5, visitor.getDistinctLimit().getRowLimit());
+    }
+
+    @Test
+    public void testNegation() throws Exception {
+        // Ickle matches the documents without the field for a negation
+        helpExecute("select e1 from model.G1 where e2 NOT IN ('foo', 'bar')",
+                "SELECT g1_0.e1 FROM pm1.G1 g1_0 WHERE (g1_0.e2 NOT IN ('foo', 'bar') AND g1_0.e2 IS NOT NULL)");
+        helpExecute("select e1 from model.G1 where e2 NOT LIKE 'foo%'",
+                "SELECT g1_0.e1 FROM pm1.G1 g1_0 WHERE (g1_0.e2 NOT LIKE 'foo%' AND g1_0.e2 IS NOT NULL)");
+
+        Select select = (Select)helpParse("select e1 from model.G1 where e2 = 'foo' and e1 = 1");
+        select.setWhere(new Not(select.getWhere()));
+        assertEquals("SELECT g1_0.e1 FROM pm1.G1 g1_0 WHERE ((NOT (g1_0.e2 = 'foo') AND g1_0.e2 IS NOT NULL) "
+                + "OR (NOT (g1_0.e1 = 1) AND g1_0.e1 IS NOT NULL))", helpVisit(select).getQuery());
     }
 
     @Test
     public void testWithEmbeddedChild() throws Exception {
         helpExecute("select * from model.G2", "FROM pm1.G2 g2_0");
         helpExecute("select * from model.G2 as p", "FROM pm1.G2 p");
-        helpExecute("select * from model.G2 as p where g3_e1 = 2",
+        IckleConvertionVisitor visitor = helpExecute("select * from model.G2 as p where g3_e1 = 2",
                 "FROM pm1.G2 p WHERE p.g3.e1 = 2");
+        assertTrue(visitor.isSingleRowPerDocument());
+        // the embedded message is optional, the row is kept when it is not set, as with the row marshaller
+        assertEquals(Boolean.TRUE, visitor.getNestedDocuments().get("pm1.G3"));
     }
 
     @Test
@@ -179,16 +256,189 @@ public class TestIckleConversionVisitor {
                 "FROM pm1.G2 g2_0 WHERE g2_0.e1 = 2");
         assertArrayEquals(new String[] { "pm1.G2/pm1.G4/e1", "pm1.G2/pm1.G4/e2", "e1" },
                 visitor.getProjectedDocumentAttributes().toArray(new String[2]));
+        assertFalse(visitor.isSingleRowPerDocument());
     }
 
     @Test
     public void testJoins() throws Exception {
-        helpExecute("select g2.e1, g4.e1 from model.G2 g2 JOIN model.G4 g4 ON g2.e1 = g4.g2_e1",
+        IckleConvertionVisitor visitor = helpExecute(
+                "select g2.e1, g4.e1 from model.G2 g2 JOIN model.G4 g4 ON g2.e1 = g4.g2_e1",
                 "FROM pm1.G2 g2"); // where is not generated because both columns as one and same
+        assertFalse(visitor.isSingleRowPerDocument());
 
         helpExecute("select g2.e1, g4.e1 from model.G2 g2 JOIN model.G4 g4 ON g2.e1 = g4.g2_e1 "
                 + "WHERE g2.e2 = 'foo' AND g4.e2 = 'bar'",
                 "FROM pm1.G2 g2 WHERE g2.e2 = 'foo' AND g2.g4.e2 = 'bar'");
 
     }
+
+    @Test
+    public void testKeysetQuery() throws Exception {
+        IckleConvertionVisitor visitor = helpExecute("select e2 from model.G1 where e2 = 'foo' or e2 = 'bar'",
+                "SELECT g1_0.e2 FROM pm1.G1 g1_0 WHERE g1_0.e2 = 'foo' OR g1_0.e2 = 'bar'");
+        assertEquals("e1", visitor.getKeysetColumn().getName());
+        assertEquals("SELECT g1_0.e2 FROM pm1.G1 g1_0 WHERE (g1_0.e2 = 'foo' OR g1_0.e2 = 'bar') ORDER BY g1_0.e1",
+                visitor.getKeysetQuery(true));
+        assertEquals("SELECT g1_0.e2 FROM pm1.G1 g1_0 WHERE (g1_0.e2 = 'foo' OR g1_0.e2 = 'bar') "
+                + "AND g1_0.e1 > :lastKey ORDER BY g1_0.e1", visitor.getKeysetQuery(false));
+
+        visitor = helpExecute("select * from model.G4", "FROM pm1.G2 g2_1");
+        assertEquals("FROM pm1.G2 g2_1 WHERE g2_1.e1 > :lastKey ORDER BY g2_1.e1", visitor.getKeysetQuery(false));
+
+        visitor = helpExecute("select e1, e2 from model.G1 order by e2",
+                "SELECT g1_0.e1, g1_0.e2 FROM pm1.G1 g1_0 ORDER BY g1_0.e2");
+        assertNull(visitor.getKeysetColumn());
+
+        visitor = helpExecute("select count(*) from model.G1", "SELECT COUNT(*) FROM pm1.G1 g1_0");
+        assertNull(visitor.getKeysetColumn());
+    }
+
+    private InfinispanQueryExecution.KeyLookup helpKeyLookup(String query) throws Exception {
+        Select cmd = (Select)helpParse(query);
+        return InfinispanQueryExecution.getKeyLookup(cmd, helpVisit(cmd));
+    }
+
+    @Test
+    public void testKeyLookup() throws Exception {
+        InfinispanQueryExecution.KeyLookup lookup = helpKeyLookup(
+                "select e1, e2 from model.G1 where e1 in (3, 1, 2) and e2 = 'foo'");
+        assertEquals(Arrays.asList(3, 1, 2), new ArrayList<Object>(lookup.keys));
+        assertEquals(1, lookup.parentConditions.size());
+        assertTrue(lookup.childConditions.isEmpty());
+
+        lookup = helpKeyLookup("select e1, e2 from model.G1 where 1 = e1");
+        assertEquals(Arrays.asList(1), new ArrayList<Object>(lookup.keys));
+        assertTrue(lookup.parentConditions.isEmpty());
+
+        lookup = helpKeyLookup("select * from model.G4 where G2_e1 = 1 and e2 = 'bar'");
+        assertEquals(Arrays.asList(1), new ArrayList<Object>(lookup.keys));
+        assertEquals(1, lookup.childConditions.size());
+
+        lookup = helpKeyLookup("select e1, e2 from model.G1 where e1 in (1, 2) or e1 in (2, 3) or e1 = 4");
+        assertEquals(Arrays.asList(1, 2, 3, 4), new ArrayList<Object>(lookup.keys));
+
+        assertNull(helpKeyLookup("select e1, e2 from model.G1 where e1 > 1"));
+        assertNull(helpKeyLookup("select e1, e2 from model.G1 where e1 in (1, 2) or e2 = 'foo'"));
+        assertNull(helpKeyLookup("select e1, e2 from model.G1 where e1 not in (1, 2)"));
+        assertNull(helpKeyLookup("select e1, e2 from model.G1 where e1 = 1 or e2 = 'foo'"));
+        assertNull(helpKeyLookup("select e1, e2 from model.G1 where e1 = 1 order by e2"));
+        assertNull(helpKeyLookup("select count(*) from model.G1 where e1 = 1"));
+    }
+
+    @Test
+    public void testSplitConditions() throws Exception {
+        // the shape of a dependent join criteria with more values than one IN predicate can have
+        StringBuilder sb = new StringBuilder("select e1, e2 from model.G1 where e3 = 1.0 and (e2 in (");
+        for (int i = 0; i < 2500; i++) {
+            if (i == InfinispanExecutionFactory.MAX_SET_SIZE) {
+                sb.append(") or e2 in (");
+            } else if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append("'").append(i % 2000).append("'");
+        }
+        sb.append("))");
+        Select cmd = (Select)helpParse(sb.toString());
+        IckleConvertionVisitor visitor = helpVisit(cmd);
+        List<Condition> splits = InfinispanQueryExecution.getSplitConditions(cmd, visitor.getParentTable());
+        assertEquals(2, splits.size());
+        Set<Object> values = new HashSet<>();
+        for (Condition split : splits) {
+            In in = (In)((AndOr)split).getRightCondition();
+            for (Expression value : in.getRightExpressions()) {
+                assertTrue(values.add(((Literal)value).getValue()));
+            }
+        }
+        assertEquals(2000, values.size());
+
+        cmd = (Select)helpParse("select e1, e2 from model.G1 where e2 in ('1', '2') or e2 = '3'");
+        assertNull(InfinispanQueryExecution.getSplitConditions(cmd, visitor.getParentTable()));
+    }
+
+    @Test
+    public void testScanConditions() throws Exception {
+        IckleConvertionVisitor visitor = helpExecute("select e1, e2 from model.G1",
+                "SELECT g1_0.e1, g1_0.e2 FROM pm1.G1 g1_0");
+        assertNotNull(InfinispanQueryExecution.getScanConditions((Select)helpParse("select e1, e2 from model.G1"),
+                visitor));
+
+        // indexed field, left to the query
+        visitor = helpExecute("select e1, e2 from model.G1 where e2 = 'foo'",
+                "SELECT g1_0.e1, g1_0.e2 FROM pm1.G1 g1_0 WHERE g1_0.e2 = 'foo'");
+        assertNull(InfinispanQueryExecution.getScanConditions(
+                (Select)helpParse("select e1, e2 from model.G1 where e2 = 'foo'"), visitor));
+
+        visitor = helpExecute("select count(*) from model.G1", "SELECT COUNT(*) FROM pm1.G1 g1_0");
+        assertNull(InfinispanQueryExecution.getScanConditions((Select)helpParse("select count(*) from model.G1"),
+                visitor));
+
+        visitor = helpExecute("select e1, e2 from model.G2", "SELECT g2_0.e1, g2_0.e2 FROM pm1.G2 g2_0");
+        assertFalse(ProtobufMetadataProcessor.isIndexed(visitor.getParentTable().getColumnByName("e5")));
+        assertTrue(ProtobufMetadataProcessor.isIndexed(visitor.getParentTable().getColumnByName("e2")));
+
+        // join criteria restrict the documents read
+        Select select = (Select)helpParse("select g2.e1, g4.e1 from model.G2 g2 JOIN model.G4 g4 ON g2.e1 = g4.g2_e1");
+        visitor = new IckleConvertionVisitor(visitor.getMetadata(), false);
+        assertNull(InfinispanQueryExecution.getScanConditions(select, visitor));
+
+        assertTrue(ProtobufMetadataProcessor.isIndexed("/* @Indexed */"));
+        assertTrue(ProtobufMetadataProcessor.isIndexed("@Indexed(true)"));
+        assertFalse(ProtobufMetadataProcessor.isIndexed("@Indexed(false)"));
+        assertFalse(ProtobufMetadataProcessor.isIndexed("@IndexedField"));
+        assertTrue(ProtobufMetadataProcessor.isIndexedField("@IndexedField(index=true, store=false)"));
+        assertFalse(ProtobufMetadataProcessor.isIndexedField("@IndexedField(index = false)"));
+        assertFalse(ProtobufMetadataProcessor.isIndexedField("@Field(store=Store.NO, index=Index.NO)"));
+    }
+
+    @Test
+    public void testCountQuery() throws Exception {
+        IckleConvertionVisitor visitor = helpExecute("select count(*) from model.G1 where e2 = 'foo'",
+                "SELECT COUNT(*) FROM pm1.G1 g1_0 WHERE g1_0.e2 = 'foo'");
+        assertEquals("FROM pm1.G1 g1_0 WHERE g1_0.e2 = 'foo'", visitor.getCountQuery());
+        assertTrue(InfinispanQueryExecution.isCount((Select)helpParse("select count(*) from model.G1")));
+        assertFalse(InfinispanQueryExecution.isCount((Select)helpParse("select count(e2) from model.G1")));
+        assertFalse(InfinispanQueryExecution.isCount(
+                (Select)helpParse("select count(*) from model.G1 group by e2")));
+    }
+
+    @Test
+    public void testParameters() throws Exception {
+        Select cmd = (Select)helpParse("select e1, e2 from model.G1 where e1 in (1, 2) and e2 like 'f%' "
+                + "and e3 > 1.5");
+        IckleConvertionVisitor visitor = new IckleConvertionVisitor(new RuntimeMetadataImpl(metadata), false);
+        visitor.setUseParameters(true);
+        visitor.visitNode(cmd);
+        assertEquals("SELECT g1_0.e1, g1_0.e2 FROM pm1.G1 g1_0 WHERE g1_0.e1 IN (:p1, :p2) AND g1_0.e2 LIKE 'f%' "
+                + "AND g1_0.e3 > :p3", visitor.getQuery());
+        assertEquals(3, visitor.getParameters().size());
+        assertEquals(1, visitor.getParameters().get("p1"));
+        assertEquals(2, visitor.getParameters().get("p2"));
+    }
+
+    private AggregateTask helpAggregateTask(String query) throws Exception {
+        Select cmd = (Select)helpParse(query);
+        return AggregateTask.getAggregateTask(cmd, helpVisit(cmd));
+    }
+
+    @Test
+    public void testAggregateTask() throws Exception {
+        AggregateTask task = helpAggregateTask("select sum(e1), avg(e1), count(*) from model.G4 where G2_e1 = 2");
+        assertEquals(Arrays.asList("SUM(g2_1.g4.e1)", "COUNT(g2_1.g4.e1)", "COUNT(g2_1.g4)"), task.getPartials());
+
+        // partial aggregates of two nodes, one without documents
+        Object[] row = task.getRow(Arrays.asList(Arrays.asList(10L, 4L, 4L), null, Arrays.asList(5L, 2L, 3L)));
+        assertEquals(15L, row[0]);
+        assertEquals(2.5, ((Number)row[1]).doubleValue(), 0);
+        assertEquals(7, row[2]);
+
+        row = task.getRow(Arrays.asList(null, null, null));
+        assertNull(row[0]);
+        assertNull(row[1]);
+        assertEquals(0, row[2]);
+
+        assertNull(helpAggregateTask("select sum(e1) from model.G4 where e2 = 'foo'"));
+        assertNull(helpAggregateTask("select sum(e1) from model.G4 group by e2"));
+        assertNull(helpAggregateTask("select sum(e1) from model.G2"));
+        assertNull(helpAggregateTask("select e2, sum(e1) from model.G4 group by e2"));
+    }
 }
@@ -0,0 +1,156 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.translator.infinispan.hotrod;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.infinispan.protostream.BaseMarshaller;
+import org.infinispan.query.dsl.Query;
+import org.infinispan.query.dsl.QueryFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.teiid.infinispan.api.InfinispanConnection;
+import org.teiid.translator.DataNotAvailableException;
+import org.teiid.translator.ExecutionContext;
+
+@SuppressWarnings("nls")
+public class TestInfinispanResponse {
+
+    /**
+     * Holds the tasks until they are run by the test
+     */
+    static class QueuedExecutor implements Executor {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            this.tasks.add(command);
+        }
+
+        void runAll() {
+            List<Runnable> run = new ArrayList<Runnable>(this.tasks);
+            this.tasks.clear();
+            for (Runnable r : run) {
+                r.run();
+            }
+        }
+    }
+
+    private Query query;
+    private QueryFactory queryFactory;
+    private ExecutionContext context;
+    private InfinispanConnection connection;
+    private BaseMarshaller<?> marshaller;
+
+    @Before
+    public void setUp() {
+        this.query = Mockito.mock(Query.class);
+        Mockito.doReturn(Arrays.asList(new Object[] {1, "one"}, new Object[] {2, "two"})).when(this.query).list();
+        this.queryFactory = Mockito.mock(QueryFactory.class);
+        Mockito.stub(this.queryFactory.create("FROM G1")).toReturn(this.query);
+        this.context = Mockito.mock(ExecutionContext.class);
+        this.connection = Mockito.mock(InfinispanConnection.class);
+        this.marshaller = Mockito.mock(BaseMarshaller.class);
+    }
+
+    private InfinispanResponse getResponse(Executor executor) {
+        InfinispanResponse response = new InfinispanResponse(this.queryFactory, "FROM G1", 10, null, null,
+                Arrays.asList("e1", "e2"), null);
+        response.setPrefetch(executor, this.context, this.connection, this.marshaller);
+        return response;
+    }
+
+    @Test
+    public void testNoPollingUntilPrefetched() throws Exception {
+        QueuedExecutor executor = new QueuedExecutor();
+        InfinispanResponse response = getResponse(executor);
+        response.start();
+        assertEquals(1, executor.tasks.size());
+
+        try {
+            response.getNextRow();
+            fail();
+        } catch (DataNotAvailableException e) {
+            assertSame(DataNotAvailableException.NO_POLLING, e);
+        }
+        Mockito.verify(this.context, Mockito.never()).dataAvailable();
+
+        executor.runAll();
+        Mockito.verify(this.context).dataAvailable();
+
+        assertEquals(Arrays.asList(1, "one"), response.getNextRow());
+        assertEquals(Arrays.asList(2, "two"), response.getNextRow());
+        // short batch is the last one, no further prefetch
+        assertNull(response.getNextRow());
+        assertTrue(executor.tasks.isEmpty());
+        Mockito.verify(this.query, Mockito.times(1)).list();
+    }
+
+    @Test
+    public void testCancelOnClose() throws Exception {
+        QueuedExecutor executor = new QueuedExecutor();
+        InfinispanResponse response = getResponse(executor);
+        response.start();
+        response.close();
+
+        // the cancelled task does not query
+        executor.runAll();
+        Mockito.verify(this.query, Mockito.never()).list();
+        Mockito.verify(this.connection, Mockito.never()).registerMarshaller(this.marshaller);
+    }
+
+    @Test
+    public void testMarshallerRegisteredOnWorker() throws Exception {
+        final List<Thread> registered = new ArrayList<Thread>();
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                registered.add(Thread.currentThread());
+                return null;
+            }
+        }).when(this.connection).registerMarshaller(this.marshaller);
+
+        final List<Thread> workers = new ArrayList<Thread>();
+        InfinispanResponse response = getResponse(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                Thread t = new Thread(command);
+                workers.add(t);
+                t.start();
+            }
+        });
+        response.start();
+        workers.get(0).join();
+
+        assertEquals(workers, registered);
+        Mockito.verify(this.connection).unRegisterMarshaller(this.marshaller);
+        assertEquals(Arrays.asList(1, "one"), response.getNextRow());
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.translator.infinispan.hotrod;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.infinispan.client.hotrod.RemoteCache;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.teiid.core.util.ObjectConverterUtil;
+
+@SuppressWarnings("unchecked")
+public class TestLobStore {
+
+    private RemoteCache<String, byte[]> mockCache(final Map<String, byte[]> contents) {
+        RemoteCache<String, byte[]> cache = Mockito.mock(RemoteCache.class);
+        Mockito.stub(cache.getName()).toReturn("lobs");
+        Mockito.stub(cache.put(Matchers.anyString(), Matchers.any(byte[].class))).toAnswer(new Answer<byte[]>() {
+            @Override
+            public byte[] answer(InvocationOnMock invocation) throws Throwable {
+                return contents.put((String)invocation.getArguments()[0], (byte[])invocation.getArguments()[1]);
+            }
+        });
+        Mockito.stub(cache.get(Matchers.anyString())).toAnswer(new Answer<byte[]>() {
+            @Override
+            public byte[] answer(InvocationOnMock invocation) throws Throwable {
+                return contents.get(invocation.getArguments()[0]);
+            }
+        });
+        Mockito.stub(cache.remove(Matchers.anyString())).toAnswer(new Answer<byte[]>() {
+            @Override
+            public byte[] answer(InvocationOnMock invocation) throws Throwable {
+                return contents.remove(invocation.getArguments()[0]);
+            }
+        });
+        return cache;
+    }
+
+    @Test
+    public void testChunks() throws Exception {
+        Map<String, byte[]> contents = new HashMap<>();
+        LobStore store = new LobStore(mockCache(contents), 4, true);
+
+        byte[] value = "0123456789".getBytes("UTF-8");
+        byte[] ref = store.store("G2/1/e5", new ByteArrayInputStream(value));
+        assertTrue(LobStore.isReference(ref));
+        assertEquals(3, contents.size());
+
+        Blob blob = (Blob)store.read(ref, Blob.class);
+        assertEquals(10, blob.length());
+        assertArrayEquals(value, ObjectConverterUtil.convertToByteArray(blob.getBinaryStream()));
+
+        Clob clob = (Clob)store.read(ref, Clob.class);
+        assertEquals("0123456789", ObjectConverterUtil.convertToString(clob.getCharacterStream()));
+
+        // references are left as is for the update
+        assertSame(ref, store.forUpdate().read(ref, Blob.class));
+
+        // the new value is written next to the old one, which is removed only when released
+        byte[] shorter = store.store("G2/1/e5@2", new ByteArrayInputStream("01234".getBytes("UTF-8")));
+        assertEquals(5, contents.size());
+        Map<String, byte[]> references = new HashMap<String, byte[]>();
+        references.put("e5", ref);
+        store.release(references, null);
+        assertEquals(2, contents.size());
+        assertEquals("01234", ObjectConverterUtil.convertToString(
+                ((Clob)store.read(shorter, Clob.class)).getCharacterStream()));
+    }
+
+    @Test
+    public void testInline() throws Exception {
+        Map<String, byte[]> contents = new HashMap<>();
+        RemoteCache<String, byte[]> cache = mockCache(contents);
+        LobStore store = new LobStore(cache, 4, true);
+
+        // small value is kept inline, without a round trip to the cache
+        byte[] inline = store.store("G2/1/e5", new ByteArrayInputStream("012".getBytes("UTF-8")));
+        assertFalse(LobStore.isReference(inline));
+        assertEquals("012", new String(inline, "UTF-8"));
+        assertTrue(contents.isEmpty());
+        Mockito.verify(cache, Mockito.never()).remove(Matchers.anyString());
+        Mockito.verify(cache, Mockito.never()).put(Matchers.anyString(), Matchers.any(byte[].class));
+    }
+
+    @Test(expected=IOException.class)
+    public void testMissingChunk() throws Exception {
+        Map<String, byte[]> contents = new HashMap<>();
+        LobStore store = new LobStore(mockCache(contents), 4, true);
+        byte[] ref = store.store("G2/1/e5", new ByteArrayInputStream("0123456789".getBytes("UTF-8")));
+        contents.remove("G2/1/e5#1");
+        Blob blob = (Blob)store.read(ref, Blob.class);
+        ObjectConverterUtil.convertToByteArray(blob.getBinaryStream());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.translator.infinispan.hotrod;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.infinispan.client.hotrod.RemoteCache;
+import org.infinispan.client.hotrod.event.ClientCacheEntryModifiedEvent;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.teiid.infinispan.api.NearCache;
+import org.teiid.infinispan.api.NearCacheMXBean;
+
+@SuppressWarnings("unchecked")
+public class TestNearCache {
+
+    @Test
+    public void testHitsAndInvalidation() {
+        RemoteCache<Object, Object> cache = Mockito.mock(RemoteCache.class);
+        Mockito.stub(cache.getName()).toReturn("default");
+
+        NearCache nearCache = new NearCache(cache, 2);
+        Mockito.verify(cache, Mockito.times(1)).addClientListener(Mockito.any(NearCache.Invalidator.class));
+
+        assertNull(nearCache.get(1));
+        long version = nearCache.getVersion();
+        nearCache.put(1, "one", version);
+        nearCache.put(2, "two", version);
+        assertEquals("one", nearCache.get(1));
+        assertEquals(1, nearCache.getHits());
+        assertEquals(1, nearCache.getMisses());
+
+        // bounded, the least recently read is dropped
+        nearCache.put(3, "three", version);
+        assertEquals(2, nearCache.size());
+        assertNull(nearCache.get(2));
+
+        ClientCacheEntryModifiedEvent<Object> event = Mockito.mock(ClientCacheEntryModifiedEvent.class);
+        Mockito.stub(event.getKey()).toReturn(1);
+        nearCache.new Invalidator().modified(event);
+        assertNull(nearCache.get(1));
+
+        // changed while the value was read
+        nearCache.put(1, "one", version);
+        assertNull(nearCache.get(1));
+
+        nearCache.put(1, "one", nearCache.getVersion());
+        nearCache.new Invalidator().failover(null);
+        assertEquals(0, nearCache.size());
+
+        nearCache.put(1, "one", nearCache.getVersion());
+        nearCache.close();
+        Mockito.verify(cache, Mockito.times(1)).removeClientListener(Mockito.any(NearCache.Invalidator.class));
+        assertEquals(0, nearCache.size());
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        RemoteCache<Object, Object> cache = Mockito.mock(RemoteCache.class);
+        Mockito.stub(cache.getName()).toReturn("stats");
+        NearCache nearCache = new NearCache(cache, 2);
+        nearCache.put(1, "one", nearCache.getVersion());
+        nearCache.get(1);
+        nearCache.get(2);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.teiid.infinispan:type=NearCache,name=stats");
+        server.registerMBean(nearCache, name);
+        try {
+            assertEquals(1L, server.getAttribute(name, "Hits"));
+            assertEquals(1L, server.getAttribute(name, "Misses"));
+            assertEquals(1, server.getAttribute(name, "Size"));
+            assertEquals("stats", ((NearCacheMXBean)nearCache).getCacheName());
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
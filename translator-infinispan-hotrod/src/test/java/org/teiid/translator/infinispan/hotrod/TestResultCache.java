@@ -0,0 +1,123 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.translator.infinispan.hotrod;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.infinispan.client.hotrod.RemoteCache;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+@SuppressWarnings("unchecked")
+public class TestResultCache {
+
+    private List<List<?>> rows(Object... values) {
+        return Arrays.<List<?>>asList(Arrays.asList(values));
+    }
+
+    @Test
+    public void testInvalidation() {
+        RemoteCache<Object, Object> cache = Mockito.mock(RemoteCache.class);
+        Mockito.stub(cache.getName()).toReturn("default");
+
+        ResultCache resultCache = new ResultCache(10, 60000);
+        ResultCache.Invalidator invalidator = resultCache.getInvalidator(cache);
+        assertSame(invalidator, resultCache.getInvalidator(cache));
+        Mockito.verify(cache, Mockito.times(1)).addClientListener(invalidator);
+
+        long version = resultCache.getVersion(invalidator);
+        resultCache.put(invalidator, "FROM pm1.G1", rows(1, "one"), version);
+        assertEquals(rows(1, "one"), resultCache.get(invalidator, "FROM pm1.G1"));
+        assertNull(resultCache.get(invalidator, "FROM pm1.G2"));
+
+        invalidator.modified(null);
+        assertNull(resultCache.get(invalidator, "FROM pm1.G1"));
+
+        // changed while the results were read
+        resultCache.put(invalidator, "FROM pm1.G1", rows(1, "one"), version);
+        assertNull(resultCache.get(invalidator, "FROM pm1.G1"));
+    }
+
+    @Test
+    public void testRemoveIdle() throws Exception {
+        RemoteCache<Object, Object> cache = Mockito.mock(RemoteCache.class);
+        ResultCache resultCache = new ResultCache(10, 10);
+        ResultCache.Invalidator invalidator = resultCache.getInvalidator(cache);
+        resultCache.put(invalidator, "a", rows(1), resultCache.getVersion(invalidator));
+        assertTrue(resultCache.removeIdleInvalidators());
+
+        Thread.sleep(20);
+        assertFalse(resultCache.removeIdleInvalidators());
+        Mockito.verify(cache).removeClientListener(invalidator);
+        assertNull(resultCache.get(invalidator, "a"));
+
+        // listened to again
+        assertNotSame(invalidator, resultCache.getInvalidator(cache));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        RemoteCache<Object, Object> cache = Mockito.mock(RemoteCache.class);
+        ResultCache resultCache = new ResultCache(2, 60000);
+        ResultCache.Invalidator invalidator = resultCache.getInvalidator(cache);
+        long version = resultCache.getVersion(invalidator);
+        resultCache.put(invalidator, "a", rows(1), version);
+        resultCache.put(invalidator, "b", rows(2), version);
+        resultCache.get(invalidator, "a");
+        resultCache.put(invalidator, "c", rows(3), version);
+        assertNotNull(resultCache.get(invalidator, "a"));
+        assertNull(resultCache.get(invalidator, "b"));
+
+        resultCache = new ResultCache(2, -1);
+        invalidator = resultCache.getInvalidator(cache);
+        resultCache.put(invalidator, "a", rows(1), resultCache.getVersion(invalidator));
+        assertNull(resultCache.get(invalidator, "a"));
+    }
+
+    @Test
+    public void testInvalidateOnWrite() {
+        RemoteCache<Object, Object> cache = Mockito.mock(RemoteCache.class);
+        RemoteCache<Object, Object> other = Mockito.mock(RemoteCache.class);
+        ResultCache resultCache = new ResultCache(10, 60000);
+
+        // nothing read from the cache yet
+        resultCache.invalidate(cache);
+        Mockito.verify(cache, Mockito.never()).addClientListener(Mockito.any());
+
+        ResultCache.Invalidator invalidator = resultCache.getInvalidator(cache);
+        ResultCache.Invalidator otherInvalidator = resultCache.getInvalidator(other);
+        long version = resultCache.getVersion(invalidator);
+        resultCache.put(invalidator, "FROM pm1.G1", rows(1), version);
+        resultCache.put(otherInvalidator, "FROM pm1.G1", rows(2), resultCache.getVersion(otherInvalidator));
+
+        resultCache.invalidate(cache);
+        assertNull(resultCache.get(invalidator, "FROM pm1.G1"));
+        assertEquals(rows(2), resultCache.get(otherInvalidator, "FROM pm1.G1"));
+
+        // read before the write
+        resultCache.put(invalidator, "FROM pm1.G1", rows(1), version);
+        assertNull(resultCache.get(invalidator, "FROM pm1.G1"));
+    }
+}
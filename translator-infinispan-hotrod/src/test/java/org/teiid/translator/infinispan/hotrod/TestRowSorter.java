@@ -0,0 +1,122 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.translator.infinispan.hotrod;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.teiid.language.ColumnReference;
+import org.teiid.language.DerivedColumn;
+import org.teiid.language.Limit;
+import org.teiid.language.OrderBy;
+import org.teiid.language.SortSpecification;
+import org.teiid.language.SortSpecification.Ordering;
+import org.teiid.metadata.Column;
+
+public class TestRowSorter {
+
+    private List<DerivedColumn> columns = new ArrayList<>();
+    private List<ColumnReference> refs = new ArrayList<>();
+
+    public TestRowSorter() {
+        for (String name : new String[] {"parent", "child"}) {
+            Column column = new Column();
+            column.setName(name);
+            ColumnReference ref = new ColumnReference(null, name, column, Integer.class);
+            this.refs.add(ref);
+            this.columns.add(new DerivedColumn(null, ref));
+        }
+    }
+
+    private List<List<Object>> sort(RowSorter sorter, Object[][] rows) throws Exception {
+        List<List<Object>> result = new ArrayList<>();
+        int i = 0;
+        while (true) {
+            List<Object> row = sorter.next();
+            if (row != null) {
+                result.add(row);
+                continue;
+            }
+            if (!sorter.needsRows()) {
+                break;
+            }
+            if (i < rows.length) {
+                sorter.add(new ArrayList<>(Arrays.asList(rows[i++])));
+            } else {
+                sorter.finish();
+            }
+        }
+        sorter.close();
+        return result;
+    }
+
+    private OrderBy orderBy(Ordering childOrdering) {
+        return new OrderBy(Arrays.asList(new SortSpecification(Ordering.ASC, this.refs.get(0)),
+                new SortSpecification(childOrdering, this.refs.get(1))));
+    }
+
+    @Test
+    public void testSortGroups() throws Exception {
+        Object[][] rows = {{1, 3}, {1, null}, {1, 2}, {2, 5}, {2, 4}, {3, 1}};
+        List<List<Object>> expected = Arrays.asList(Arrays.<Object>asList(1, null), Arrays.<Object>asList(1, 2),
+                Arrays.<Object>asList(1, 3), Arrays.<Object>asList(2, 4), Arrays.<Object>asList(2, 5),
+                Arrays.<Object>asList(3, 1));
+        assertEquals(expected, sort(new RowSorter(orderBy(Ordering.ASC), this.columns, 1, null, 100), rows));
+
+        assertEquals(expected, sort(new RowSorter(orderBy(Ordering.ASC), this.columns, 1, null, 3), rows));
+
+        // only the rows within the limit are kept
+        assertEquals(Arrays.asList(Arrays.<Object>asList(1, 2), Arrays.<Object>asList(1, null)),
+                sort(new RowSorter(orderBy(Ordering.DESC), this.columns, 0, new Limit(1, 2), 4), rows));
+        assertEquals(Arrays.asList(Arrays.<Object>asList(1, 2), Arrays.<Object>asList(1, null),
+                Arrays.<Object>asList(2, 5)),
+                sort(new RowSorter(orderBy(Ordering.DESC), this.columns, 1, new Limit(1, 3), 100), rows));
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        Object[][] rows = {{1, 3}, {1, null}, {1, 2}, {2, 5}, {2, 4}, {3, 1}};
+        List<List<Object>> expected = Arrays.asList(Arrays.<Object>asList(1, null), Arrays.<Object>asList(1, 2),
+                Arrays.<Object>asList(1, 3), Arrays.<Object>asList(2, 4), Arrays.<Object>asList(2, 5),
+                Arrays.<Object>asList(3, 1));
+        // written to runs of two rows
+        assertEquals(expected, sort(new RowSorter(orderBy(Ordering.ASC), this.columns, 1, null, 2), rows));
+        assertEquals(expected, sort(new RowSorter(orderBy(Ordering.ASC), this.columns, 0, null, 2), rows));
+
+        // the limit is above the rows kept in memory
+        assertEquals(Arrays.asList(Arrays.<Object>asList(1, 2), Arrays.<Object>asList(1, null),
+                Arrays.<Object>asList(2, 5)),
+                sort(new RowSorter(orderBy(Ordering.DESC), this.columns, 1, new Limit(1, 3), 2), rows));
+    }
+
+    @Test
+    public void testMixedTypes() throws Exception {
+        Object[][] rows = {{1, 3L}, {1, 2}, {1, 2.5d}};
+        assertEquals(Arrays.asList(Arrays.<Object>asList(1, 2), Arrays.<Object>asList(1, 2.5d),
+                Arrays.<Object>asList(1, 3L)),
+                sort(new RowSorter(orderBy(Ordering.ASC), this.columns, 1, null, 100), rows));
+    }
+}
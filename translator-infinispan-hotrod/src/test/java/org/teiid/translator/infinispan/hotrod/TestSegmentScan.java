@@ -0,0 +1,133 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * See the COPYRIGHT.txt file distributed with this work for information
+ * regarding copyright ownership.  Some portions may be licensed
+ * to Red Hat, Inc. under one or more contributor license agreements.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+package org.teiid.translator.infinispan.hotrod;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+import org.infinispan.client.hotrod.CacheTopologyInfo;
+import org.infinispan.client.hotrod.RemoteCache;
+import org.infinispan.commons.util.CloseableIterator;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.teiid.infinispan.api.InfinispanConnection;
+import org.teiid.infinispan.api.InfinispanDocument;
+import org.teiid.infinispan.api.TableWireFormat;
+import org.teiid.translator.DataNotAvailableException;
+import org.teiid.translator.ExecutionContext;
+
+public class TestSegmentScan {
+
+    @Test
+    public void testPartitions() {
+        Map<SocketAddress, Set<Integer>> segments = new LinkedHashMap<>();
+        segments.put(InetSocketAddress.createUnresolved("host1", 11222), new HashSet<>(Arrays.asList(0, 1, 2, 3)));
+        segments.put(InetSocketAddress.createUnresolved("host2", 11222), new HashSet<>(Arrays.asList(2, 3, 4, 5)));
+        segments.put(InetSocketAddress.createUnresolved("host3", 11222), new HashSet<>(Arrays.asList(0, 5)));
+
+        CacheTopologyInfo topology = Mockito.mock(CacheTopologyInfo.class);
+        Mockito.stub(topology.getSegmentsPerServer()).toReturn(segments);
+
+        List<Set<Integer>> partitions = SegmentScan.getPartitions(topology);
+        assertEquals(2, partitions.size());
+        assertEquals(new HashSet<>(Arrays.asList(0, 1, 2, 3)), partitions.get(0));
+        assertEquals(new HashSet<>(Arrays.asList(4, 5)), partitions.get(1));
+    }
+
+    @Test
+    public void testNoSegments() {
+        List<Set<Integer>> partitions = SegmentScan.getPartitions(Mockito.mock(CacheTopologyInfo.class));
+        assertEquals(1, partitions.size());
+        assertNull(partitions.get(0));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test(timeout=10000)
+    public void testCloseReleasesWorker() throws Exception {
+        final InfinispanDocument document = new InfinispanDocument("pm1.G1", new TreeMap<Integer, TableWireFormat>(),
+                null);
+        final boolean[] closed = new boolean[1];
+        // more documents than the queue holds
+        CloseableIterator<Map.Entry<Object, Object>> iter = new CloseableIterator<Map.Entry<Object, Object>>() {
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public Map.Entry<Object, Object> next() {
+                return new AbstractMap.SimpleEntry<Object, Object>(1, document);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        RemoteCache<Object, Object> cache = Mockito.mock(RemoteCache.class);
+        Mockito.stub(cache.retrieveEntries(Matchers.anyString(), Matchers.anySet(), Matchers.anyInt()))
+                .toReturn(iter);
+
+        SegmentScan scan = new SegmentScan(cache, 1, Mockito.mock(ExecutionContext.class),
+                Mockito.mock(InfinispanConnection.class), null, null);
+        final List<Thread> workers = new ArrayList<>();
+        scan.start(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                Thread t = new Thread(command);
+                workers.add(t);
+                t.start();
+            }
+        }, false);
+        List<Object> batch = null;
+        while (batch == null) {
+            try {
+                batch = scan.nextBatch();
+            } catch (DataNotAvailableException e) {
+                Thread.sleep(10);
+            }
+        }
+        assertEquals(Arrays.asList(document), batch);
+
+        scan.close();
+        workers.get(0).join();
+        assertTrue(closed[0]);
+    }
+}
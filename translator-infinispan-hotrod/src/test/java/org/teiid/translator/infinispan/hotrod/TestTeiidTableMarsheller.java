@@ -24,12 +24,17 @@ package org.teiid.translator.infinispan.hotrod;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -43,16 +48,20 @@ import org.infinispan.protostream.WrappedMessage;
 import org.infinispan.protostream.config.Configuration;
 import org.infinispan.protostream.impl.RawProtoStreamReaderImpl;
 import org.infinispan.protostream.impl.RawProtoStreamWriterImpl;
+import org.infinispan.protostream.impl.WireFormat;
 import org.junit.Test;
 import org.teiid.cdk.api.TranslationUtility;
+import org.teiid.core.types.BinaryType;
 import org.teiid.core.util.ObjectConverterUtil;
 import org.teiid.core.util.UnitTestUtil;
 import org.teiid.dqp.internal.datamgr.RuntimeMetadataImpl;
 import org.teiid.infinispan.api.InfinispanDocument;
+import org.teiid.infinispan.api.ProtobufDataManager;
 import org.teiid.infinispan.api.TableWireFormat;
 import org.teiid.language.Select;
 import org.teiid.metadata.MetadataFactory;
 import org.teiid.metadata.RuntimeMetadata;
+import org.teiid.metadata.Table;
 import org.teiid.query.metadata.TransformationMetadata;
 import org.teiid.translator.TranslatorException;
 import org.teiid.translator.document.Document;
@@ -370,4 +379,241 @@ public class TestTeiidTableMarsheller {
         ctx.unregisterMarshaller(readMarshaller);
         assertEquals(buildG2(), result);
     }
+
+    @Test
+    public void testWireSchema() throws Exception {
+        IckleConvertionVisitor visitor = helpExecute("select * from G2");
+        WireSchema schema = MarshallerBuilder.getWireSchema(visitor.getParentTable(), visitor.getMetadata());
+        assertEquals("pm1.G2", schema.getName());
+
+        WireSchema.Field e2 = schema.getField(WireFormat.makeTag(2, WireFormat.WIRETYPE_LENGTH_DELIMITED));
+        assertEquals("e2", e2.columnName);
+        assertEquals(WireCodec.STRING, e2.codec);
+
+        WireSchema.Field e6 = schema.getField(WireFormat.makeTag(8, WireFormat.WIRETYPE_FIXED64));
+        assertEquals(WireCodec.FIXED64, e6.codec);
+
+        // wrong wire type for the field
+        assertNull(schema.getField(WireFormat.makeTag(1, WireFormat.WIRETYPE_LENGTH_DELIMITED)));
+        // unknown field
+        assertNull(schema.getField(WireFormat.makeTag(20, WireFormat.WIRETYPE_VARINT)));
+
+        WireSchema.Field g4 = schema.getField(TableWireFormat.buildNestedTag(6));
+        assertTrue(g4.isNested());
+        assertEquals("pm1.G4", g4.nested.getName());
+        WireSchema.Field g4e1 = g4.nested.getField(WireFormat.makeTag(1, WireFormat.WIRETYPE_VARINT));
+        assertEquals("pm1.G2/pm1.G4/e1", g4e1.attributeName);
+        assertEquals("e1", g4e1.columnName);
+    }
+
+    @Test
+    public void testReadProjected() throws Exception {
+        IckleConvertionVisitor visitor = helpExecute("select * from G2");
+
+        TeiidTableMarsheller readMarshaller = new TeiidTableMarsheller(
+                MarshallerBuilder.getWireSchema(visitor.getParentTable(), visitor.getMetadata()), null,
+                new HashSet<String>(Arrays.asList("e2", "pm1.G2/pm1.G4/e1")));
+
+        SerializationContext ctx = ProtobufUtil.newSerializationContext(Configuration.builder().build());
+        ctx.registerProtoFiles(FileDescriptorSource.fromString("tables.proto",
+                ObjectConverterUtil.convertFileToString(UnitTestUtil.getTestDataFile("tables.proto"))));
+        ctx.registerMarshaller(new G3Marshaller());
+        ctx.registerMarshaller(new G4Marshaller());
+        G2Marshaller writeMarshaller = new G2Marshaller();
+        ctx.registerMarshaller(writeMarshaller);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        RawProtoStreamWriter out = RawProtoStreamWriterImpl.newInstance(baos);
+        WrappedMessage.writeMessage(ctx, out, buildG2());
+        out.flush();
+        baos.flush();
+        ctx.unregisterMarshaller(writeMarshaller);
+
+        ctx.registerMarshaller(readMarshaller);
+        RawProtoStreamReader in = RawProtoStreamReaderImpl.newInstance(baos.toByteArray());
+        InfinispanDocument result = WrappedMessage.readMessage(ctx, in);
+        ctx.unregisterMarshaller(readMarshaller);
+
+        assertEquals("foo", result.getProperties().get("e2"));
+        assertNull(result.getProperties().get("e1"));
+        assertNull(result.getProperties().get("e5"));
+        // nothing selected from one-2-one child, not decoded
+        assertNull(result.getChildDocuments("pm1.G3"));
+
+        List<? extends Document> children = result.getChildDocuments("pm1.G4");
+        assertEquals(2, children.size());
+        assertEquals(1, children.get(0).getProperties().get("pm1.G2/pm1.G4/e1"));
+        assertNull(children.get(0).getProperties().get("pm1.G2/pm1.G4/e2"));
+        assertEquals(2, children.get(1).getProperties().get("pm1.G2/pm1.G4/e1"));
+    }
+
+    @Test
+    public void testReadRow() throws Exception {
+        IckleConvertionVisitor visitor = helpExecute("select * from G2");
+
+        TeiidTableRowMarsheller readMarshaller = new TeiidTableRowMarsheller(
+                MarshallerBuilder.getWireSchema(visitor.getParentTable(), visitor.getMetadata()),
+                Arrays.asList("e2", "pm1.G2/pm1.G3/e2", "e1", "e2"));
+
+        SerializationContext ctx = ProtobufUtil.newSerializationContext(Configuration.builder().build());
+        ctx.registerProtoFiles(FileDescriptorSource.fromString("tables.proto",
+                ObjectConverterUtil.convertFileToString(UnitTestUtil.getTestDataFile("tables.proto"))));
+        ctx.registerMarshaller(new G3Marshaller());
+        ctx.registerMarshaller(new G4Marshaller());
+        G2Marshaller writeMarshaller = new G2Marshaller();
+        ctx.registerMarshaller(writeMarshaller);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        RawProtoStreamWriter out = RawProtoStreamWriterImpl.newInstance(baos);
+        WrappedMessage.writeMessage(ctx, out, buildG2());
+        out.flush();
+        baos.flush();
+        ctx.unregisterMarshaller(writeMarshaller);
+
+        ctx.registerMarshaller(readMarshaller);
+        RawProtoStreamReader in = RawProtoStreamReaderImpl.newInstance(baos.toByteArray());
+        Object[] result = WrappedMessage.readMessage(ctx, in);
+        ctx.unregisterMarshaller(readMarshaller);
+
+        assertArrayEquals(new Object[] {"foo", "bar", 1, "foo"}, result);
+    }
+
+    @Test
+    public void testReadOutOfOrder() throws Exception {
+        IckleConvertionVisitor visitor = helpExecute("select * from G1");
+        TeiidTableMarsheller readMarshaller = MarshallerBuilder.getMarshaller(visitor.getParentTable(),
+                visitor.getMetadata());
+
+        // fields are not in the field number order, and the repeated field is interleaved
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        RawProtoStreamWriter out = RawProtoStreamWriterImpl.newInstance(baos);
+        out.writeString(5, "world");
+        out.writeString(2, "foo");
+        out.writeString(4, "hello");
+        out.writeInt32(1, 1);
+        out.writeString(4, "infinispan");
+        out.flush();
+        baos.flush();
+
+        RawProtoStreamReader in = RawProtoStreamReaderImpl.newInstance(baos.toByteArray());
+        Map<String, Object> row = readMarshaller.readFrom(null, in).flatten().get(0);
+        assertEquals(1, row.get("e1"));
+        assertEquals("foo", row.get("e2"));
+        assertEquals(Arrays.asList("hello", "infinispan"), row.get("e4"));
+        assertEquals(Arrays.asList("world"), row.get("e5"));
+    }
+
+    @Test
+    public void testConverters() throws Exception {
+        IckleConvertionVisitor visitor = helpExecute("select * from G2");
+        WireSchema schema = MarshallerBuilder.getWireSchema(visitor.getParentTable(), visitor.getMetadata());
+
+        WireSchema.Field e1 = schema.getField(WireFormat.makeTag(1, WireFormat.WIRETYPE_VARINT));
+        assertSame(ProtobufDataManager.IDENTITY, e1.readConverter);
+        assertEquals(1, e1.writeConverter.convert(1));
+
+        // declared as long, but timestamp given
+        WireSchema.Field e6 = schema.getField(WireFormat.makeTag(8, WireFormat.WIRETYPE_FIXED64));
+        assertEquals(1489835322801L, e6.writeConverter.convert(new Timestamp(1489835322801L)));
+
+        assertEquals(new Timestamp(1489835322801L),
+                ProtobufDataManager.getRuntimeConverter(Timestamp.class, Long.class).convert(1489835322801L));
+        assertEquals(1489835322801L, ProtobufDataManager.getInfinispanConverter(Long.class, Timestamp.class)
+                .convert(new Timestamp(1489835322801L)));
+
+        WireSchema.Field e5 = schema.getField(WireFormat.makeTag(7, WireFormat.WIRETYPE_LENGTH_DELIMITED));
+        assertEquals("Hello", new String((byte[])e5.writeConverter.convert("Hello"), "UTF-8"));
+        assertEquals("Hello", new String((byte[])e5.writeConverter.convert(new BinaryType("Hello".getBytes("UTF-8"))),
+                "UTF-8"));
+
+        assertEquals(2, ProtobufDataManager.getInfinispanConverter(Integer.class, Short.class).convert((short)2));
+        // value not of the declared type falls back to the generic conversion
+        assertEquals(1L, ProtobufDataManager.getInfinispanConverter(Long.class, Integer.class)
+                .convert(new Timestamp(1L)));
+    }
+
+    @Test
+    public void testWriteLargeChildren() throws Exception {
+        IckleConvertionVisitor visitor = helpExecute("select * from G2");
+        TreeMap<Integer, TableWireFormat> wireMap = MarshallerBuilder.getWireMap(visitor.getParentTable(),
+                visitor.getMetadata());
+        TeiidTableMarsheller writeMarshaller = new TeiidTableMarsheller("pm1.G2", wireMap);
+
+        // children longer than a single byte length prefix, with multi byte characters
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("h\u00e9llo");
+        }
+        InfinispanDocument g2 = new InfinispanDocument("pm1.G2", wireMap, null);
+        g2.addProperty("e1", 1);
+        g2.addProperty("e2", "foo");
+        g2.addProperty("e6", 1489835322801L);
+        G2 expected = new G2();
+        expected.setE1(1);
+        expected.setE2("foo");
+        expected.setE6(new Timestamp(1489835322801L));
+        List<G4> g4s = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            InfinispanDocument g4 = new InfinispanDocument("pm1.G4", getWireMap(wireMap, "pm1.G4"), g2);
+            g4.addProperty("e1", -i);
+            g4.addProperty("e2", sb.toString() + i);
+            g2.addChildDocument("pm1.G4", g4);
+
+            G4 expectedG4 = new G4();
+            expectedG4.setE1(-i);
+            expectedG4.setE2(sb.toString() + i);
+            g4s.add(expectedG4);
+        }
+        expected.setG4(g4s);
+
+        SerializationContext ctx = ProtobufUtil.newSerializationContext(Configuration.builder().build());
+        ctx.registerProtoFiles(FileDescriptorSource.fromString("tables.proto",
+                ObjectConverterUtil.convertFileToString(UnitTestUtil.getTestDataFile("tables.proto"))));
+        ctx.registerMarshaller(new G3Marshaller());
+        ctx.registerMarshaller(new G4Marshaller());
+
+        ctx.registerMarshaller(writeMarshaller);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        RawProtoStreamWriter out = RawProtoStreamWriterImpl.newInstance(baos);
+        WrappedMessage.writeMessage(ctx, out, g2);
+        out.flush();
+        baos.flush();
+        ctx.unregisterMarshaller(writeMarshaller);
+
+        G2Marshaller readMarshaller = new G2Marshaller();
+        ctx.registerMarshaller(readMarshaller);
+        RawProtoStreamReader in = RawProtoStreamReaderImpl.newInstance(baos.toByteArray());
+        G2 result = WrappedMessage.readMessage(ctx, in);
+        ctx.unregisterMarshaller(readMarshaller);
+        assertEquals(expected, result);
+    }
+
+    @Test
+    public void testWireSchemaCache() throws Exception {
+        IckleConvertionVisitor visitor = helpExecute("select * from G2");
+        Table g2 = visitor.getParentTable();
+        RuntimeMetadata metadata = visitor.getMetadata();
+
+        WireSchema schema = MarshallerBuilder.getWireSchema(g2, metadata);
+        assertSame(schema, MarshallerBuilder.getWireSchema(g2, metadata));
+        assertEquals(schema.getWireMap(), MarshallerBuilder.getWireMap(g2, metadata));
+        assertNotSame(schema.getWireMap(), MarshallerBuilder.getWireMap(g2, metadata));
+        assertSame(MarshallerBuilder.getMarshaller(g2, metadata), MarshallerBuilder.getMarshaller(g2, metadata, null));
+
+        // change in the table
+        g2.setLastModified(g2.getLastModified() + 1);
+        WireSchema modified = MarshallerBuilder.getWireSchema(g2, metadata);
+        assertNotSame(schema, modified);
+        assertSame(modified, MarshallerBuilder.getWireSchema(g2, metadata));
+
+        // change in the merged child table
+        Table g4 = metadata.getTable(g2.getParent().getName() + ".G4");
+        g4.setLastModified(g4.getLastModified() + 1);
+        WireSchema childModified = MarshallerBuilder.getWireSchema(g2, metadata);
+        assertNotSame(modified, childModified);
+
+        // metadata of the schema loaded again
+        MarshallerBuilder.evict(g2.getParent().getName());
+        assertNotSame(childModified, MarshallerBuilder.getWireSchema(g2, metadata));
+    }
 }